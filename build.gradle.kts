@@ -7,6 +7,7 @@ plugins {
     java
     application
     id("io.franzbecker.gradle-lombok").version("1.14")
+    id("me.champeau.gradle.jmh").version("0.4.7")
 }
 
 lombok {
@@ -42,6 +43,9 @@ dependencies {
     // Guava for the best
     compile("com.google.guava:guava:23.1-jre")
 
+    // HdrHistogram for latency metrics
+    compile("org.hdrhistogram:HdrHistogram:2.1.10")
+
     // Logging
     loggingDependencies.map { compile(it) }
 
@@ -51,11 +55,34 @@ dependencies {
     testRuntimeOnly("org.junit.jupiter:junit-jupiter-engine:5.3.1")
 }
 
+// Load generator from src/loadtest/java
+sourceSets {
+    create("loadtest") {
+        compileClasspath += sourceSets["main"].output + configurations["runtimeClasspath"]
+        runtimeClasspath += output + compileClasspath
+    }
+}
+
 tasks {
     "test"(Test::class) {
         maxHeapSize = "128m"
         useJUnitPlatform()
     }
+
+    // E.g. gradle loadtest --args="--start-cluster --rate 5000 --mix get=80,put=20"
+    create<JavaExec>("loadtest") {
+        description = "Runs the load generator against a 3-node cluster on localhost"
+        main = "ru.kspt.highload.loadtest.LoadGenerator"
+        classpath = sourceSets["loadtest"].runtimeClasspath
+        maxHeapSize = "128m"
+    }
+}
+
+// Benchmarks from src/jmh/java, run with `gradle jmh`
+jmh {
+    jmhVersion = "1.21"
+    // Reports allocation rate next to throughput
+    profilers = listOf("gc")
 }
 
 application {
@@ -0,0 +1,64 @@
+package ru.kspt.highload;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Executors of {@link ThreadPools} serving bursts of blocking tasks, the way the replica calls
+ * and the replication requests are served. Every operation submits a burst of tasks, each
+ * blocking for the given time like a call waiting for the network, and waits for all of them.
+ * Virtual threads are only available on JDK 21+, on older JDKs both modes use thread pools.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(value = 3, jvmArgsAppend = "-Xmx128m")
+public class ThreadPoolsBenchmark {
+    /**
+     * Whether the executors use virtual threads. The mode is read once {@link ThreadPools} is
+     * loaded, which happens in the setup, since every combination of the parameters is
+     * measured in its own fork.
+     */
+    @Param({"false", "true"})
+    public boolean virtualThreads;
+
+    @Param({"16", "512"})
+    public int burstSize;
+
+    @Param({"0", "1000"})
+    public int blockMicros;
+
+    private ExecutorService executor;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        System.setProperty(ThreadPools.VIRTUAL_THREADS_PROPERTY, String.valueOf(virtualThreads));
+        executor = ThreadPools.newCachedPool("Benchmark");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Benchmark
+    public void burst() {
+        final CompletableFuture<?>[] tasks = new CompletableFuture<?>[burstSize];
+        for (int i = 0; i < burstSize; i++) {
+            tasks[i] = CompletableFuture.runAsync(this::block, executor);
+        }
+        CompletableFuture.allOf(tasks).join();
+    }
+
+    private void block() {
+        if (blockMicros > 0) {
+            LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(blockMicros));
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package ru.kspt.highload.dao;
+
+import org.openjdk.jmh.annotations.*;
+import ru.mail.polis.KVDao;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Operations of a {@link KVDao} on its own, without HTTP and replication. Thread count is given
+ * with the JMH {@code -t} option, the rest is configured by the parameters below.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx128m")
+public class KVDaoBenchmark {
+    @Param({"h2"})
+    public String engine;
+
+    @Param({"16"})
+    public int keySize;
+
+    @Param({"100", "4096"})
+    public int valueSize;
+
+    /**
+     * Number of keys put into the storage before the measurement
+     */
+    @Param({"10000"})
+    public int keysCount;
+
+    private Path dataDirectory;
+
+    private KVDao dao;
+
+    private byte[][] keys;
+
+    private byte[][] missingKeys;
+
+    private byte[] value;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        dataDirectory = Files.createTempDirectory("kvdao-benchmark");
+        dao = createDao(engine, dataDirectory.toFile());
+        keys = new byte[keysCount][];
+        missingKeys = new byte[keysCount][];
+        value = new byte[valueSize];
+        ThreadLocalRandom.current().nextBytes(value);
+        for (int i = 0; i < keysCount; i++) {
+            keys[i] = makeKey(i);
+            missingKeys[i] = makeKey(keysCount + i);
+            dao.upsert(keys[i], value);
+        }
+    }
+
+    private static KVDao createDao(final String engine, final File data) {
+        switch (engine) {
+            case "h2": return new H2Dao(data);
+            default: throw new IllegalArgumentException("Unknown engine " + engine);
+        }
+    }
+
+    private byte[] makeKey(final int index) {
+        final ByteBuffer key = ByteBuffer.allocate(Math.max(keySize, Integer.BYTES));
+        key.putInt(index);
+        return key.array();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        dao.close();
+        try (Stream<Path> files = Files.walk(dataDirectory)) {
+            files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    private static int randomIndex(final int bound) {
+        return ThreadLocalRandom.current().nextInt(bound);
+    }
+
+    @State(Scope.Benchmark)
+    public static class Lookups {
+        /**
+         * Share of the gets looking for the existing keys
+         */
+        @Param({"1.0", "0.5"})
+        public double hitRatio;
+    }
+
+    @Benchmark
+    public byte[] get(final Lookups lookups) throws IOException {
+        final int index = randomIndex(keysCount);
+        if (ThreadLocalRandom.current().nextDouble() < lookups.hitRatio) {
+            return dao.get(keys[index]);
+        }
+        try {
+            return dao.get(missingKeys[index]);
+        } catch (NoSuchElementException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Overwrites the existing keys, so the data size stays the same
+     */
+    @Benchmark
+    public void upsert() throws IOException {
+        dao.upsert(keys[randomIndex(keysCount)], value);
+    }
+
+    /**
+     * Removes the existing keys, which are only marked as deleted by {@link H2Dao}
+     */
+    @Benchmark
+    public void remove() throws IOException {
+        dao.remove(keys[randomIndex(keysCount)]);
+    }
+}
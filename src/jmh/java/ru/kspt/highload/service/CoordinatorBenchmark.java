@@ -0,0 +1,118 @@
+package ru.kspt.highload.service;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import ru.kspt.highload.dto.Key;
+import ru.kspt.highload.dto.ReplicaResponse;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-request CPU work of the coordinator which touches neither the disk nor the network.
+ * The gc profiler is on by default, its {@code gc.alloc.rate.norm} is the number of bytes
+ * allocated per operation.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx128m")
+public class CoordinatorBenchmark {
+    @Param({"3", "5"})
+    public int replicasCount;
+
+    @Param({"16", "128"})
+    public int keyLength;
+
+    private String replicasParam;
+
+    private String key;
+
+    private byte[] keyBytes;
+
+    private Key parsedKey;
+
+    private ReplicaResolver resolver;
+
+    private byte[] value;
+
+    private List<ReplicaResponse> responses;
+
+    @Setup
+    public void setUp() {
+        replicasParam = (replicasCount / 2 + 1) + "/" + replicasCount;
+        final char[] keyChars = new char[keyLength];
+        Arrays.fill(keyChars, 'k');
+        key = new String(keyChars);
+        keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        parsedKey = Key.of(key);
+        final List<Replica> replicas = new ArrayList<>(replicasCount);
+        for (int i = 0; i < replicasCount; i++) {
+            replicas.add(Replica.create("localhost:" + (8080 + i)));
+        }
+        resolver = new ReplicaResolver(replicas);
+        value = new byte[64];
+        responses = new ArrayList<>(replicasCount);
+        for (int i = 0; i < replicasCount; i++) {
+            responses.add(i == 0 ? ReplicaResponse.entityNotFound() : ReplicaResponse.entityFound(value));
+        }
+    }
+
+    @Benchmark
+    public ReplicationFactor parseReplicationFactor() {
+        return ReplicationFactor.parse(replicasParam);
+    }
+
+    @Benchmark
+    public Replica[] chooseReplicasForKey() {
+        return resolver.chooseReplicasForKey(parsedKey, replicasCount);
+    }
+
+    @Benchmark
+    public ReplicaResponse createReplicaResponse() {
+        return ReplicaResponse.entityFound(value);
+    }
+
+    @Benchmark
+    public byte[] findEntity() {
+        return KeyValueStorageGateway.findEntity(responses);
+    }
+
+    /**
+     * The only conversion made for a request to {@code /v0/entity}, the key is passed along as is
+     */
+    @Benchmark
+    public Key keyFromParam() {
+        return Key.of(key);
+    }
+
+    /**
+     * Conversion made for every key of a batch request and for every binary replica request,
+     * which wraps the bytes without copying
+     */
+    @Benchmark
+    public Key keyFromBytes() {
+        return Key.of(keyBytes);
+    }
+
+    /**
+     * Key handling of a whole request: parsing, choosing the replicas and passing the bytes to
+     * the local storage and to every replica. Only the key itself and the array of replicas
+     * are allocated.
+     */
+    @Benchmark
+    public void keyPerRequest(final Blackhole blackhole) {
+        final Key requestKey = Key.of(key);
+        final Replica[] chosen = resolver.chooseReplicasForKey(requestKey, replicasCount);
+        for (Replica replica : chosen) {
+            blackhole.consume(replica);
+            blackhole.consume(requestKey.getBytes());
+        }
+        blackhole.consume(requestKey.hashCode());
+    }
+}
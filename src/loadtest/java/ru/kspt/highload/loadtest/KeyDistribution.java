@@ -0,0 +1,63 @@
+package ru.kspt.highload.loadtest;
+
+import java.util.Random;
+
+/**
+ * Chooses indices of the keys to request, from {@code 0} to {@code keysCount - 1}
+ */
+interface KeyDistribution {
+    int next(Random random);
+
+    static KeyDistribution of(final String name, final int keysCount) {
+        switch (name) {
+            case "uniform": return random -> random.nextInt(keysCount);
+            case "zipfian": return new Zipfian(keysCount, Zipfian.DEFAULT_THETA);
+            default: throw new IllegalArgumentException("Unknown key distribution " + name);
+        }
+    }
+
+    /**
+     * Zipfian distribution, the key {@code i} is requested with the probability proportional to
+     * {@code 1 / (i + 1)^theta}. The algorithm is the one of Gray et al. "Quickly generating
+     * billion-record synthetic databases", as used by YCSB.
+     */
+    class Zipfian implements KeyDistribution {
+        static final double DEFAULT_THETA = 0.99;
+
+        private final int keysCount;
+
+        private final double theta;
+
+        private final double zetaN;
+
+        private final double alpha;
+
+        private final double eta;
+
+        Zipfian(final int keysCount, final double theta) {
+            this.keysCount = keysCount;
+            this.theta = theta;
+            this.zetaN = zeta(keysCount, theta);
+            this.alpha = 1 / (1 - theta);
+            this.eta = (1 - Math.pow(2.0 / keysCount, 1 - theta)) / (1 - zeta(2, theta) / zetaN);
+        }
+
+        private static double zeta(final int n, final double theta) {
+            double sum = 0;
+            for (int i = 1; i <= n; i++) {
+                sum += 1 / Math.pow(i, theta);
+            }
+            return sum;
+        }
+
+        @Override
+        public int next(final Random random) {
+            final double u = random.nextDouble();
+            final double uz = u * zetaN;
+            if (uz < 1) return 0;
+            if (uz < 1 + Math.pow(0.5, theta)) return Math.min(1, keysCount - 1);
+            final int index = (int) (keysCount * Math.pow(eta * u - eta + 1, alpha));
+            return Math.min(index, keysCount - 1);
+        }
+    }
+}
@@ -0,0 +1,280 @@
+package ru.kspt.highload.loadtest;
+
+import one.nio.http.HttpClient;
+import one.nio.http.Response;
+import one.nio.net.ConnectionString;
+import org.HdrHistogram.Histogram;
+import ru.mail.polis.Cluster;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Open-model load generator: requests are sent on a fixed schedule, constant or linearly growing
+ * rate, no matter how fast the previous ones are answered. The latency of a request is measured
+ * from the time it was scheduled to be sent, not from the time it was actually sent, so the time
+ * requests wait for a free connection is not hidden (coordinated omission correction).
+ * The uncorrected latency is reported for comparison.
+ */
+public final class LoadGenerator {
+    private static final long MAX_LATENCY_MICROS = TimeUnit.MINUTES.toMicros(10);
+
+    private static final int SIGNIFICANT_DIGITS = 3;
+
+    private static final double[] PERCENTILES = {50, 90, 99, 99.9, 99.99};
+
+    private static final long CLUSTER_START_TIMEOUT_MILLIS = 10_000;
+
+    private final LoadOptions options;
+
+    private final KeyDistribution keys;
+
+    private final Operation[] operations;
+
+    private final int[] cumulativeWeights;
+
+    private final byte[] value;
+
+    private final AtomicLong tickets = new AtomicLong();
+
+    private final long totalRequests;
+
+    private long startNanos;
+
+    private LoadGenerator(final LoadOptions options) {
+        this.options = options;
+        this.keys = KeyDistribution.of(options.distribution, options.keysCount);
+        this.operations = options.mix.keySet().toArray(new Operation[0]);
+        this.cumulativeWeights = new int[operations.length];
+        int weight = 0;
+        for (int i = 0; i < operations.length; i++) {
+            weight += options.mix.get(operations[i]);
+            cumulativeWeights[i] = weight;
+        }
+        this.value = new byte[options.valueSize];
+        ThreadLocalRandom.current().nextBytes(value);
+        this.totalRequests = (long) ((options.rate + options.finalRate()) / 2
+                * options.duration.getSeconds());
+    }
+
+    public static void main(String[] args) throws Exception {
+        final LoadOptions options;
+        try {
+            options = LoadOptions.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(LoadOptions.USAGE);
+            System.exit(1);
+            return;
+        }
+        if (options.startCluster) {
+            Cluster.main(new String[0]);
+            awaitNodes(options.nodes);
+        }
+        new LoadGenerator(options).run();
+        System.exit(0);
+    }
+
+    private static void awaitNodes(final List<String> nodes) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + CLUSTER_START_TIMEOUT_MILLIS;
+        for (String node : nodes) {
+            final HttpClient client = createClient(node);
+            try {
+                while (true) {
+                    try {
+                        if (client.get("/v0/status").getStatus() == 200) break;
+                    } catch (Exception e) {
+                        if (System.currentTimeMillis() > deadline) {
+                            throw new IllegalStateException("Node " + node + " hasn't started", e);
+                        }
+                    }
+                    Thread.sleep(100);
+                }
+            } finally {
+                client.close();
+            }
+        }
+    }
+
+    private static HttpClient createClient(final String node) {
+        return new HttpClient(new ConnectionString("http://" + node));
+    }
+
+    private void run() throws InterruptedException {
+        System.out.printf(Locale.ROOT, "Sending %d requests at %.0f to %.0f rps for %d s%n",
+                totalRequests, options.rate, options.finalRate(), options.duration.getSeconds());
+        final List<Worker> workers = new ArrayList<>(options.threads);
+        final List<Thread> threads = new ArrayList<>(options.threads);
+        startNanos = System.nanoTime();
+        for (int i = 0; i < options.threads; i++) {
+            final Worker worker = new Worker();
+            final Thread thread = new Thread(worker, "load-" + i);
+            workers.add(worker);
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        final long elapsedNanos = System.nanoTime() - startNanos;
+        report(workers, elapsedNanos);
+    }
+
+    /**
+     * @return time the request is to be sent at, relative to the start
+     */
+    private long scheduledOffsetNanos(final long ticket) {
+        final double r0 = options.rate;
+        final double r1 = options.finalRate();
+        final double seconds;
+        if (r0 == r1) {
+            seconds = ticket / r0;
+        } else {
+            // the ticket-th request of the rate growing from r0 to r1 during the run
+            final double a = (r1 - r0) / (2 * options.duration.getSeconds());
+            seconds = (-r0 + Math.sqrt(r0 * r0 + 4 * a * ticket)) / (2 * a);
+        }
+        return (long) (seconds * TimeUnit.SECONDS.toNanos(1));
+    }
+
+    private Operation chooseOperation(final Random random) {
+        final int weight = random.nextInt(cumulativeWeights[cumulativeWeights.length - 1]);
+        for (int i = 0; i < operations.length; i++) {
+            if (weight < cumulativeWeights[i]) return operations[i];
+        }
+        return operations[operations.length - 1];
+    }
+
+    private String entityUri(final int keyIndex) {
+        final String uri = "/v0/entity?id=key" + keyIndex;
+        return options.replicas == null ? uri : uri + "&replicas=" + options.replicas;
+    }
+
+    private class Worker implements Runnable {
+        private final Map<Operation, Histogram> correctedLatencies = new EnumMap<>(Operation.class);
+
+        private final Histogram uncorrectedLatencies =
+                new Histogram(MAX_LATENCY_MICROS, SIGNIFICANT_DIGITS);
+
+        private final Map<String, Long> statuses = new TreeMap<>();
+
+        private final HttpClient[] clients = new HttpClient[options.nodes.size()];
+
+        Worker() {
+            for (Operation operation : operations) {
+                correctedLatencies.put(operation, new Histogram(MAX_LATENCY_MICROS, SIGNIFICANT_DIGITS));
+            }
+            for (int i = 0; i < clients.length; i++) {
+                clients[i] = createClient(options.nodes.get(i));
+            }
+        }
+
+        @Override
+        public void run() {
+            final Random random = ThreadLocalRandom.current();
+            try {
+                long ticket;
+                while ((ticket = tickets.getAndIncrement()) < totalRequests) {
+                    final long scheduledAt = startNanos + scheduledOffsetNanos(ticket);
+                    long now;
+                    while ((now = System.nanoTime()) < scheduledAt) {
+                        LockSupport.parkNanos(scheduledAt - now);
+                    }
+                    final Operation operation = chooseOperation(random);
+                    final String status = send(clients[(int) (ticket % clients.length)],
+                            operation, entityUri(keys.next(random)));
+                    final long end = System.nanoTime();
+                    record(correctedLatencies.get(operation), end - scheduledAt);
+                    record(uncorrectedLatencies, end - now);
+                    statuses.merge(status, 1L, Long::sum);
+                }
+            } finally {
+                for (HttpClient client : clients) {
+                    client.close();
+                }
+            }
+        }
+
+        private void record(final Histogram histogram, final long nanos) {
+            histogram.recordValue(Math.min(TimeUnit.NANOSECONDS.toMicros(nanos), MAX_LATENCY_MICROS));
+        }
+
+        /**
+         * @return response status or the name of the failure
+         */
+        private String send(final HttpClient client, final Operation operation, final String uri) {
+            try {
+                final Response response;
+                switch (operation) {
+                    case GET: response = client.get(uri); break;
+                    case PUT: response = client.put(uri, value); break;
+                    default: response = client.delete(uri); break;
+                }
+                return String.valueOf(response.getStatus());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return e.getClass().getSimpleName();
+            } catch (Exception e) {
+                return e.getClass().getSimpleName();
+            }
+        }
+    }
+
+    private void report(final List<Worker> workers, final long elapsedNanos) {
+        final Map<Operation, Histogram> corrected = new EnumMap<>(Operation.class);
+        final Histogram correctedTotal = new Histogram(MAX_LATENCY_MICROS, SIGNIFICANT_DIGITS);
+        final Histogram uncorrectedTotal = new Histogram(MAX_LATENCY_MICROS, SIGNIFICANT_DIGITS);
+        final Map<String, Long> statuses = new TreeMap<>();
+        for (Worker worker : workers) {
+            worker.correctedLatencies.forEach((operation, histogram) -> {
+                corrected.computeIfAbsent(operation,
+                        __ -> new Histogram(MAX_LATENCY_MICROS, SIGNIFICANT_DIGITS)).add(histogram);
+                correctedTotal.add(histogram);
+            });
+            uncorrectedTotal.add(worker.uncorrectedLatencies);
+            worker.statuses.forEach((status, count) -> statuses.merge(status, count, Long::sum));
+        }
+        final double seconds = elapsedNanos / (double) TimeUnit.SECONDS.toNanos(1);
+        System.out.printf(Locale.ROOT, "%nSent %d requests in %.1f s, %.0f rps%n",
+                correctedTotal.getTotalCount(), seconds, correctedTotal.getTotalCount() / seconds);
+        System.out.println("Statuses: " + statuses);
+        System.out.println();
+        System.out.println("Latency corrected for coordinated omission, ms");
+        printHeader();
+        corrected.forEach((operation, histogram) -> printRow(operation.toString(), histogram));
+        printRow("ALL", correctedTotal);
+        System.out.println();
+        System.out.println("Latency from the actual send time (not corrected), ms");
+        printHeader();
+        printRow("ALL", uncorrectedTotal);
+    }
+
+    private static void printHeader() {
+        final StringBuilder header = new StringBuilder(String.format(Locale.ROOT, "%-8s %10s", "", "count"));
+        for (double percentile : PERCENTILES) {
+            header.append(String.format(Locale.ROOT, " %9s", "p" + percentile));
+        }
+        header.append(String.format(Locale.ROOT, " %9s %9s", "max", "mean"));
+        System.out.println(header);
+    }
+
+    private static void printRow(final String name, final Histogram histogram) {
+        final StringBuilder row = new StringBuilder(
+                String.format(Locale.ROOT, "%-8s %10d", name, histogram.getTotalCount()));
+        for (double percentile : PERCENTILES) {
+            row.append(String.format(Locale.ROOT, " %9.3f", histogram.getValueAtPercentile(percentile) / 1000.0));
+        }
+        row.append(String.format(Locale.ROOT, " %9.3f %9.3f",
+                histogram.getMaxValue() / 1000.0, histogram.getMean() / 1000.0));
+        System.out.println(row);
+    }
+}
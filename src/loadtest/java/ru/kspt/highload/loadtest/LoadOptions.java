@@ -0,0 +1,113 @@
+package ru.kspt.highload.loadtest;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Command line options of the {@link LoadGenerator}, all of them are {@code --name value} pairs
+ * except for the {@code --start-cluster} flag
+ */
+class LoadOptions {
+    static final String USAGE = String.join("\n",
+            "Options:",
+            "  --start-cluster              start ru.mail.polis.Cluster in this JVM",
+            "  --nodes host:port,...        nodes to send the requests to in turn"
+                    + " (localhost:8080,localhost:8081,localhost:8082)",
+            "  --rate N                     requests per second (1000)",
+            "  --ramp-to N                  rate to grow linearly to by the end of the run",
+            "  --duration SECONDS           duration of the run (60)",
+            "  --threads N                  maximum number of requests in flight (64)",
+            "  --mix get=N,put=N,delete=N   weights of the operations (get=50,put=50)",
+            "  --keys N                     number of distinct keys (100000)",
+            "  --distribution NAME          uniform or zipfian (uniform)",
+            "  --value-size BYTES           size of the values put (256)",
+            "  --replicas ACK/FROM          replicas parameter of the requests (node default)");
+
+    List<String> nodes = Arrays.asList("localhost:8080", "localhost:8081", "localhost:8082");
+
+    boolean startCluster;
+
+    double rate = 1000;
+
+    double rampTo = -1;
+
+    Duration duration = Duration.ofSeconds(60);
+
+    int threads = 64;
+
+    final Map<Operation, Integer> mix = new EnumMap<>(Operation.class);
+
+    int keysCount = 100_000;
+
+    String distribution = "uniform";
+
+    int valueSize = 256;
+
+    @Nullable
+    String replicas;
+
+    LoadOptions() {
+        mix.put(Operation.GET, 50);
+        mix.put(Operation.PUT, 50);
+    }
+
+    static LoadOptions parse(final String[] args) {
+        final LoadOptions options = new LoadOptions();
+        for (int i = 0; i < args.length; i++) {
+            final String name = args[i];
+            if (name.equals("--start-cluster")) {
+                options.startCluster = true;
+                continue;
+            }
+            if (i + 1 == args.length) {
+                throw new IllegalArgumentException("No value for " + name);
+            }
+            final String value = args[++i];
+            switch (name) {
+                case "--nodes": options.nodes = Arrays.asList(value.split(",")); break;
+                case "--rate": options.rate = Double.parseDouble(value); break;
+                case "--ramp-to": options.rampTo = Double.parseDouble(value); break;
+                case "--duration": options.duration = Duration.ofSeconds(Long.parseLong(value)); break;
+                case "--threads": options.threads = Integer.parseInt(value); break;
+                case "--mix": options.parseMix(value); break;
+                case "--keys": options.keysCount = Integer.parseInt(value); break;
+                case "--distribution": options.distribution = value; break;
+                case "--value-size": options.valueSize = Integer.parseInt(value); break;
+                case "--replicas": options.replicas = value; break;
+                default: throw new IllegalArgumentException("Unknown option " + name);
+            }
+        }
+        if (options.rate <= 0 || options.threads <= 0 || options.keysCount <= 0
+                || options.duration.isZero() || options.mix.isEmpty()) {
+            throw new IllegalArgumentException("Rate, threads, keys, duration and mix must be positive");
+        }
+        return options;
+    }
+
+    private void parseMix(final String value) {
+        mix.clear();
+        for (String weight : value.split(",")) {
+            final String[] parts = weight.split("=");
+            if (parts.length != 2) {
+                throw new IllegalArgumentException("Malformed mix " + value);
+            }
+            final int count = Integer.parseInt(parts[1]);
+            if (count > 0) {
+                mix.put(Operation.valueOf(parts[0].toUpperCase(Locale.ROOT)), count);
+            }
+        }
+    }
+
+    /**
+     * @return final rate of the run, which is the same as the initial one if there's no ramp
+     */
+    double finalRate() {
+        return rampTo < 0 ? rate : rampTo;
+    }
+}
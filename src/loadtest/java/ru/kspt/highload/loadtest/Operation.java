@@ -0,0 +1,5 @@
+package ru.kspt.highload.loadtest;
+
+enum Operation {
+    GET, PUT, DELETE
+}
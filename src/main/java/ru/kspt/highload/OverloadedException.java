@@ -0,0 +1,5 @@
+package ru.kspt.highload;
+
+public class OverloadedException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+}
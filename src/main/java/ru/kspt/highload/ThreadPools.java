@@ -0,0 +1,73 @@
+package ru.kspt.highload;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import lombok.experimental.UtilityClass;
+import lombok.extern.slf4j.Slf4j;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Executors for the blocking tasks: local storage operations, HTTP calls to replicas and
+ * replication connections. By default these are cached thread pools. With
+ * {@code -Dkvstorage.virtualThreads=true} on a JDK with virtual threads (21+) every task
+ * gets its own virtual thread instead. The JDK API is reached reflectively, since
+ * the project targets Java 8. The modes are compared by {@code ThreadPoolsBenchmark}, where
+ * virtual threads do better on JDK 21. The thread pools stay the default still, since H2 blocks
+ * inside synchronized methods, which pins the carrier threads of virtual threads on JDK 21.
+ */
+@Slf4j
+@UtilityClass
+public class ThreadPools {
+    public final String VIRTUAL_THREADS_PROPERTY = "kvstorage.virtualThreads";
+
+    private final boolean USE_VIRTUAL_THREADS = Boolean.getBoolean(VIRTUAL_THREADS_PROPERTY);
+
+    /**
+     * @param name prefix of the thread names
+     */
+    public ExecutorService newCachedPool(final String name) {
+        if (USE_VIRTUAL_THREADS) {
+            try {
+                return newVirtualThreadPerTaskExecutor(name);
+            } catch (ReflectiveOperationException e) {
+                log.warn("Virtual threads are not available, falling back to a thread pool: {}",
+                        e.toString());
+            }
+        }
+        return Executors.newCachedThreadPool(new ThreadFactoryBuilder()
+                .setNameFormat(name + "-%d").build());
+    }
+
+    /**
+     * @param name prefix of the thread names
+     * @param threadsCount number of threads, unless virtual threads are used
+     */
+    public ExecutorService newFixedPool(final String name, final int threadsCount) {
+        if (USE_VIRTUAL_THREADS) {
+            try {
+                return newVirtualThreadPerTaskExecutor(name);
+            } catch (ReflectiveOperationException e) {
+                log.warn("Virtual threads are not available, falling back to a thread pool: {}",
+                        e.toString());
+            }
+        }
+        return Executors.newFixedThreadPool(threadsCount, new ThreadFactoryBuilder()
+                .setNameFormat(name + "-%d").build());
+    }
+
+    private ExecutorService newVirtualThreadPerTaskExecutor(final String name)
+            throws ReflectiveOperationException {
+        final Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+        final Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+        final Method nameMethod = builderClass.getMethod("name", String.class, long.class);
+        final Object namedBuilder = nameMethod.invoke(builder, name + "-virtual-", 0L);
+        final ThreadFactory factory =
+                (ThreadFactory) builderClass.getMethod("factory").invoke(namedBuilder);
+        return (ExecutorService) Executors.class
+                .getMethod("newThreadPerTaskExecutor", ThreadFactory.class)
+                .invoke(null, factory);
+    }
+}
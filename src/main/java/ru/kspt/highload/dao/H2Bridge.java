@@ -2,16 +2,30 @@ package ru.kspt.highload.dao;
 
 import lombok.AccessLevel;
 import lombok.Getter;
-import lombok.RequiredArgsConstructor;
 import lombok.experimental.Accessors;
 import org.h2.jdbcx.JdbcConnectionPool;
+import org.h2.tools.DeleteDbFiles;
+import org.h2.tools.Restore;
+import org.jetbrains.annotations.Nullable;
 import org.jooq.*;
+import org.jooq.exception.DataAccessException;
+import org.jooq.exception.SQLStateClass;
+import org.jooq.impl.DefaultConfiguration;
+import org.jooq.impl.DefaultExecuteListenerProvider;
+import ru.kspt.highload.dto.Key;
+import ru.kspt.highload.metrics.MetricsRegistry;
+import ru.kspt.highload.tracing.StorageOperationEvent;
 
+import java.io.File;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.IntStream;
 
 import static org.jooq.impl.DSL.*;
 
-@RequiredArgsConstructor
 @Accessors(fluent = true)
 class H2Bridge {
     private final static String DB_INIT_SCRIPT_PATH = "src/main/resources/db_init.sql";
@@ -26,36 +40,114 @@ class H2Bridge {
 
     private final static String DELETED_FLAG_COLUMN = "deleted";
 
+    private final static String DB_NAME = "kvstorage";
+
+    private final static String DB_FILES_PREFIX = DB_NAME + ".";
+
+    private final static String ENGINE_INFO_PREFIX = "info.";
+
     private final String dbFilesDirectory;
 
+    private final MetricsRegistry metrics;
+
+    @Getter
+    private final LongAdder bytesRead;
+
+    @Getter
+    private final LongAdder bytesWritten;
+
     @Getter(value = AccessLevel.PRIVATE, lazy = true)
     private final JdbcConnectionPool connectionPool =
             JdbcConnectionPool.create(makeH2ConnectionString(), "sa", "sa");
 
+    @Getter(value = AccessLevel.PRIVATE, lazy = true)
+    private final DSLContext sql = using(new DefaultConfiguration()
+            .set(connectionPool())
+            .set(SQLDialect.H2)
+            .set(new DefaultExecuteListenerProvider(new QueryTimingListener(metrics))));
+
+    H2Bridge(final String dbFilesDirectory, final MetricsRegistry metrics) {
+        this.dbFilesDirectory = dbFilesDirectory;
+        this.metrics = metrics;
+        this.bytesRead = metrics.counter("kvstorage_dao_logical_bytes_total", "op", "read");
+        this.bytesWritten = metrics.counter("kvstorage_dao_logical_bytes_total", "op", "write");
+    }
+
     private String makeH2ConnectionString() {
-        return "jdbc:h2:file:" + dbFilesDirectory + "/kvstorage;"
+        return "jdbc:h2:file:" + dbFilesDirectory + "/" + DB_NAME + ";"
                 + "INIT=RUNSCRIPT FROM '" + DB_INIT_SCRIPT_PATH + "'";
     }
 
+    /**
+     * Replaces the database files with the ones from the backup, the database must not be
+     * opened yet. The files are just unpacked, so it takes as long as reading the backup.
+     */
+    void restoreFrom(final File backup) {
+        DeleteDbFiles.execute(dbFilesDirectory, DB_NAME, true);
+        Restore.execute(backup.getAbsolutePath(), dbFilesDirectory, DB_NAME);
+    }
+
+    /**
+     * Copies the database files to the zip archive online: MVStore doesn't reuse the space
+     * of its file while it is being copied, so the copy is consistent and writes go on
+     */
+    void backupTo(final File backup) {
+        final StorageOperationEvent event = StorageOperationEvent.start();
+        sql().execute("BACKUP TO {0}", inline(backup.getAbsolutePath()));
+        event.complete("backup", 0, 0, "ok");
+    }
+
     void closeConnection() {
         exterminateDeletedEntries();
         connectionPool().dispose();
     }
 
-    private DSLContext sql() {
-        return using(connectionPool(), SQLDialect.H2);
-    }
-
     void insert(final Key key, final byte[] value) {
+        final StorageOperationEvent event = StorageOperationEvent.start();
         sql().insertInto(table(TABLE_NAME))
                 .set(field(KEY_HASH_COLUMN), key.getHash())
                 .set(field(KEY_BYTES_COLUMN), key.getBytes())
                 .set(field(VALUE_BYTES_COLUMN), value)
                 .set(field(DELETED_FLAG_COLUMN), false)
                 .execute();
+        bytesWritten.add(key.getBytes().length + value.length);
+        event.complete("insert", key.getBytes().length, value.length, "ok");
+    }
+
+    /**
+     * Inserts the entry in a single statement, so that it never overrides the entry upserted
+     * concurrently. The entry inserted between the check and the insert fails the statement
+     * with a duplicate key, which means the same as the entry found by the check.
+     *
+     * @param isDeleted whether a tombstone is inserted, its value is to be empty then
+     * @return whether the entry is inserted
+     */
+    boolean insertIfAbsent(final Key key, final byte[] value, final boolean isDeleted) {
+        final StorageOperationEvent event = StorageOperationEvent.start();
+        int insertedCount;
+        try {
+            // plain SQL for the same reason as in upsertAll
+            insertedCount = sql().execute("INSERT INTO " + TABLE_NAME
+                    + " (" + KEY_HASH_COLUMN + ", " + KEY_BYTES_COLUMN + ", " + VALUE_BYTES_COLUMN
+                    + ", " + DELETED_FLAG_COLUMN + ") SELECT ?, ?, ?, ? WHERE NOT EXISTS"
+                    + " (SELECT 1 FROM " + TABLE_NAME + " WHERE " + KEY_BYTES_COLUMN + " = ?)",
+                    key.getHash(), key.getBytes(), value, isDeleted, key.getBytes());
+        } catch (DataAccessException e) {
+            if (e.sqlStateClass() != SQLStateClass.C23_INTEGRITY_CONSTRAINT_VIOLATION) {
+                throw e;
+            }
+            insertedCount = 0;
+        }
+        if (insertedCount != 0) {
+            bytesWritten.add(key.getBytes().length + value.length);
+        }
+        event.complete("insert if absent", key.getBytes().length, value.length,
+                insertedCount != 0 ? "ok" : "found");
+        return insertedCount != 0;
     }
 
     void update(final Key key, final byte[] value) {
+        final StorageOperationEvent event = StorageOperationEvent.start();
         sql().update(table(TABLE_NAME))
                 .set(field(KEY_HASH_COLUMN), key.getHash())
                 .set(field(KEY_BYTES_COLUMN), key.getBytes())
@@ -64,34 +156,89 @@ class H2Bridge {
                 .where(field(KEY_HASH_COLUMN).eq(key.getHash())
                         .and(field(KEY_BYTES_COLUMN).eq(key.getBytes())))
                 .execute();
+        bytesWritten.add(key.getBytes().length + value.length);
+        event.complete("update", key.getBytes().length, value.length, "ok");
     }
 
+    /**
+     * Merges all the entries in a single transaction as a JDBC batch. Entries are merged in
+     * the order of key bytes, so the primary key index pages are filled one after another
+     * rather than at random. If a key is repeated, its last value is kept.
+     */
+    void upsertAll(final List<Key> keys, final List<byte[]> values) {
+        final StorageOperationEvent event = StorageOperationEvent.start();
+        final int[] order = IntStream.range(0, keys.size())
+                .boxed()
+                .sorted((i, j) -> compareBytes(keys.get(i).getBytes(), keys.get(j).getBytes()))
+                .mapToInt(Integer::intValue)
+                .toArray();
+        sql().transaction(configuration -> {
+            // plain SQL, since jOOQ quotes the columns of MERGE and they are not found then
+            final BatchBindStep batch = using(configuration).batch("MERGE INTO " + TABLE_NAME
+                    + " (" + KEY_HASH_COLUMN + ", " + KEY_BYTES_COLUMN + ", " + VALUE_BYTES_COLUMN
+                    + ", " + DELETED_FLAG_COLUMN + ") KEY (" + KEY_BYTES_COLUMN + ")"
+                    + " VALUES (?, ?, ?, ?)");
+            for (int i : order) {
+                batch.bind(keys.get(i).getHash(), keys.get(i).getBytes(), values.get(i), false);
+            }
+            batch.execute();
+        });
+        long bytes = 0;
+        for (int i = 0; i < keys.size(); i++) {
+            bytes += keys.get(i).getBytes().length + values.get(i).length;
+        }
+        bytesWritten.add(bytes);
+        event.complete("upsert all", 0, (int) Math.min(Integer.MAX_VALUE, bytes), "ok");
+    }
+
+    private static int compareBytes(final byte[] left, final byte[] right) {
+        final int length = Math.min(left.length, right.length);
+        for (int i = 0; i < length; i++) {
+            final int result = Integer.compare(left[i] & 0xFF, right[i] & 0xFF);
+            if (result != 0) {
+                return result;
+            }
+        }
+        return Integer.compare(left.length, right.length);
+    }
+
+    /**
+     * Fetches at most one record, the value bytes are taken as they are read by the driver
+     */
     Value get(final Key key) throws NoSuchElementException {
-        final Result<Record2<Object, Object>> result = sql().select(
+        final StorageOperationEvent event = StorageOperationEvent.start();
+        final Record2<Object, Object> record = sql().select(
                 field(VALUE_BYTES_COLUMN), field(DELETED_FLAG_COLUMN))
                 .from(table(TABLE_NAME))
                 .where(field(KEY_BYTES_COLUMN).eq(key.getBytes()))
-                .fetch();
-        if (result.isNotEmpty()) {
-            final byte[] value = (byte[]) result.getValue(0, 0);
-            final boolean isDeleted = (Boolean) result.getValue(0, 1);
+                .fetchAny();
+        if (record != null) {
+            final byte[] value = (byte[]) record.value1();
+            final boolean isDeleted = (Boolean) record.value2();
+            bytesRead.add(key.getBytes().length + (value == null ? 0 : value.length));
+            event.complete("get", key.getBytes().length, value == null ? 0 : value.length,
+                    isDeleted ? "deleted" : "found");
             return new Value(value, isDeleted);
         } else {
+            event.complete("get", key.getBytes().length, 0, "not found");
             throw new NoSuchElementException();
         }
     }
 
     void remove(final Key key) {
-        sql().update(table(TABLE_NAME))
+        final StorageOperationEvent event = StorageOperationEvent.start();
+        final int removedCount = sql().update(table(TABLE_NAME))
                 .set(field(DELETED_FLAG_COLUMN), true)
                 .where(field(KEY_BYTES_COLUMN).eq(key.getBytes()))
                 .execute();
+        event.complete("remove", key.getBytes().length, 0, removedCount > 0 ? "ok" : "not found");
     }
 
     boolean contains(final Key key) {
-        if (countEqualHashes(key.getHash()) == 0) {
-            return false;
-        } else return countEqualKeys(key) == 1;
+        final StorageOperationEvent event = StorageOperationEvent.start();
+        final boolean isContained = countEqualHashes(key.getHash()) != 0 && countEqualKeys(key) == 1;
+        event.complete("contains", key.getBytes().length, 0, isContained ? "found" : "not found");
+        return isContained;
     }
 
     private int countEqualHashes(final int hash) {
@@ -108,6 +255,84 @@ class H2Bridge {
         return (Integer) equalsKeysCount.getValue(0, 0);
     }
 
+    /**
+     * Fetches the entries, tombstones included, in the order of key bytes, which is the order
+     * of the primary key index, so the scan is resumed from the last key fetched cheaply
+     *
+     * @param after key to start after, {@code null} to start from the first one
+     * @return at most {@code limit} entries in the order of keys
+     */
+    LinkedHashMap<Key, Value> scan(@Nullable final Key after, final int limit) {
+        final StorageOperationEvent event = StorageOperationEvent.start();
+        final Result<Record3<Object, Object, Object>> records = sql().select(
+                field(KEY_BYTES_COLUMN), field(VALUE_BYTES_COLUMN), field(DELETED_FLAG_COLUMN))
+                .from(table(TABLE_NAME))
+                .where(after == null ? trueCondition() : field(KEY_BYTES_COLUMN).gt(after.getBytes()))
+                .orderBy(field(KEY_BYTES_COLUMN))
+                .limit(limit)
+                .fetch();
+        final LinkedHashMap<Key, Value> entries = new LinkedHashMap<>();
+        long bytes = 0;
+        for (Record3<Object, Object, Object> record : records) {
+            final byte[] key = (byte[]) record.value1();
+            final byte[] value = (byte[]) record.value2();
+            entries.put(Key.of(key), new Value(value, (Boolean) record.value3()));
+            bytes += key.length + value.length;
+        }
+        bytesRead.add(bytes);
+        event.complete("scan", 0, (int) bytes, entries.isEmpty() ? "not found" : "ok");
+        return entries;
+    }
+
+    TableStats tableStats() {
+        final Result<Record3<Object, Integer, Long>> groups = sql().select(
+                field(DELETED_FLAG_COLUMN),
+                count(),
+                sum(field("LENGTH(" + KEY_BYTES_COLUMN + ") + LENGTH(" + VALUE_BYTES_COLUMN + ")",
+                        Long.class)).cast(Long.class))
+                .from(table(TABLE_NAME))
+                .groupBy(field(DELETED_FLAG_COLUMN))
+                .fetch();
+        long liveKeys = 0, tombstones = 0, liveBytes = 0;
+        for (Record3<Object, Integer, Long> group : groups) {
+            if (Boolean.TRUE.equals(group.value1())) {
+                tombstones = group.value2();
+            } else {
+                liveKeys = group.value2();
+                liveBytes = group.value3() == null ? 0 : group.value3();
+            }
+        }
+        return new TableStats(liveKeys, tombstones, liveBytes);
+    }
+
+    /**
+     * Statistics H2 reports about its MVStore, e.g. file reads and writes or page cache size
+     */
+    Map<String, String> engineInfo() {
+        final Map<String, String> info = new LinkedHashMap<>();
+        final Field<String> settingName = field(name("NAME"), String.class);
+        final Field<String> settingValue = field(name("VALUE"), String.class);
+        sql().select(settingName, settingValue)
+                .from(table("INFORMATION_SCHEMA.SETTINGS"))
+                .where(settingName.startsWith(ENGINE_INFO_PREFIX))
+                .orderBy(settingName)
+                .fetch()
+                .forEach(setting -> info.put(setting.value1(), setting.value2()));
+        return info;
+    }
+
+    long bytesOnDisk() {
+        final File[] dbFiles = new File(dbFilesDirectory)
+                .listFiles((dir, name) -> name.startsWith(DB_FILES_PREFIX));
+        long bytes = 0;
+        if (dbFiles != null) {
+            for (File dbFile : dbFiles) {
+                bytes += dbFile.length();
+            }
+        }
+        return bytes;
+    }
+
     private void exterminateDeletedEntries() {
         sql().deleteFrom(table(TABLE_NAME))
                 .where(field(DELETED_FLAG_COLUMN).eq(true))
@@ -1,17 +1,83 @@
 package ru.kspt.highload.dao;
 
+import lombok.extern.slf4j.Slf4j;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import ru.kspt.highload.dto.Key;
+import ru.kspt.highload.metrics.MetricsRegistry;
 import ru.mail.polis.KVDao;
 
 import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.concurrent.TimeUnit;
 
+@Slf4j
 public class H2Dao implements KVDao {
+    /**
+     * Snapshot put to the data directory under this name is restored at startup
+     */
+    public static final String RESTORE_FILE_NAME = "restore.zip";
+
+    private static final String RESTORED_FILE_SUFFIX = ".restored";
+
+    private static final String FILE_READ_BYTES_INFO = "info.FILE_READ_BYTES";
+
+    private static final String FILE_WRITE_BYTES_INFO = "info.FILE_WRITE_BYTES";
+
+    private final MetricsRegistry metrics = new MetricsRegistry();
+
+    private final File dataDirectory;
+
     private final H2Bridge h2Bridge;
 
     public H2Dao(final File dataDirectory) {
         final String path = dataDirectory.getAbsolutePath();
-        h2Bridge = new H2Bridge(path);
+        this.dataDirectory = dataDirectory;
+        h2Bridge = new H2Bridge(path, metrics);
+        restoreIfPresent();
+    }
+
+    /**
+     * The snapshot is renamed once it is restored, so that it is not restored again
+     */
+    private void restoreIfPresent() {
+        final File snapshot = new File(dataDirectory, RESTORE_FILE_NAME);
+        if (!snapshot.isFile()) {
+            return;
+        }
+        final long startTime = System.nanoTime();
+        h2Bridge.restoreFrom(snapshot);
+        final File restored = new File(dataDirectory, RESTORE_FILE_NAME + RESTORED_FILE_SUFFIX);
+        if (!snapshot.renameTo(restored)) {
+            log.warn("Failed to rename restored snapshot {}", snapshot);
+        }
+        log.info("Restored {} bytes snapshot in {} ms", restored.length(),
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime));
+    }
+
+    /**
+     * Takes a consistent snapshot of the storage without stopping reads and writes, which
+     * is restored at startup if it is put to the data directory as {@value #RESTORE_FILE_NAME}
+     *
+     * @return zip archive in the data directory, which is to be deleted by the caller
+     */
+    @NotNull
+    public File snapshot() throws IOException {
+        final File snapshot = File.createTempFile("snapshot-", ".zip", dataDirectory);
+        try {
+            h2Bridge.backupTo(snapshot);
+        } catch (RuntimeException e) {
+            if (!snapshot.delete()) {
+                log.warn("Failed to delete incomplete snapshot {}", snapshot);
+            }
+            throw e;
+        }
+        return snapshot;
     }
 
     @NotNull
@@ -27,12 +93,23 @@ public class H2Dao implements KVDao {
 
     @NotNull
     public Value getValue(@NotNull byte[] keyBytes) throws NoSuchElementException {
-        return h2Bridge.get(new Key(keyBytes));
+        return getValue(Key.of(keyBytes));
+    }
+
+    /**
+     * The same as {@link #getValue(byte[])}, the overloads taking a {@link Key} reuse its hash
+     */
+    @NotNull
+    public Value getValue(@NotNull Key key) throws NoSuchElementException {
+        return h2Bridge.get(key);
     }
 
     @Override
     public void upsert(@NotNull byte[] keyBytes, @NotNull byte[] value) {
-        final Key key = new Key(keyBytes);
+        upsert(Key.of(keyBytes), value);
+    }
+
+    public void upsert(@NotNull Key key, @NotNull byte[] value) {
         if (h2Bridge.contains(key)) {
             h2Bridge.update(key, value);
         } else {
@@ -40,12 +117,86 @@ public class H2Dao implements KVDao {
         }
     }
 
+    /**
+     * Upserts all the entries at once, in a single transaction, which is much cheaper than
+     * upserting them one by one
+     */
+    public void upsertAll(@NotNull List<Key> keys, @NotNull List<byte[]> values) {
+        h2Bridge.upsertAll(keys, values);
+    }
+
     @Override
     public void remove(@NotNull byte[] keyBytes) {
-        final Key key = new Key(keyBytes);
+        remove(Key.of(keyBytes));
+    }
+
+    public void remove(@NotNull Key key) {
         h2Bridge.remove(key);
     }
 
+    /**
+     * Stores the entry unless there is one for the key already, even a deleted one. This is how
+     * the entries copied from other nodes are stored, so that they never override the newer ones.
+     *
+     * @param value value, {@code null} for a tombstone
+     * @return whether the entry is stored
+     */
+    public boolean insertIfAbsent(@NotNull Key key, @Nullable byte[] value) {
+        return h2Bridge.insertIfAbsent(key, value == null ? new byte[0] : value, value == null);
+    }
+
+    /**
+     * @param after key to start after, {@code null} to start from the first one
+     * @return at most {@code limit} entries, including tombstones, in the order of key bytes
+     */
+    @NotNull
+    public LinkedHashMap<Key, Value> scan(@Nullable Key after, int limit) {
+        return h2Bridge.scan(after, limit);
+    }
+
+    /**
+     * Renders the table contents, the files H2 keeps on disk and the time spent in queries
+     * in the Prometheus text format. Amplification is the ratio of bytes H2 has read or written
+     * to its files to bytes of keys and values read or written through this DAO since it
+     * was opened.
+     */
+    public String renderStats() {
+        final MetricsRegistry stats = new MetricsRegistry();
+        final TableStats table = h2Bridge.tableStats();
+        stats.gauge("kvstorage_dao_live_keys", table::getLiveKeys);
+        stats.gauge("kvstorage_dao_tombstones", table::getTombstones);
+        stats.gauge("kvstorage_dao_live_bytes", table::getLiveBytes);
+        final long bytesOnDisk = h2Bridge.bytesOnDisk();
+        stats.gauge("kvstorage_dao_disk_bytes", () -> bytesOnDisk);
+        if (table.getLiveBytes() > 0) {
+            stats.gauge("kvstorage_dao_space_amplification",
+                    () -> (double) bytesOnDisk / table.getLiveBytes());
+        }
+        final Map<String, Long> engineInfo = new HashMap<>();
+        h2Bridge.engineInfo().forEach((name, value) -> {
+            try {
+                engineInfo.put(name, Long.parseLong(value));
+            } catch (NumberFormatException e) {
+                // versions and other textual settings are of no use as gauges
+            }
+        });
+        engineInfo.forEach((name, value) ->
+                stats.gauge("kvstorage_dao_h2_info", () -> value, "name", name));
+        addAmplification(stats, "read", engineInfo.get(FILE_READ_BYTES_INFO),
+                h2Bridge.bytesRead().sum());
+        addAmplification(stats, "write", engineInfo.get(FILE_WRITE_BYTES_INFO),
+                h2Bridge.bytesWritten().sum());
+        return stats.renderPrometheus() + metrics.renderPrometheus();
+    }
+
+    private static void addAmplification(final MetricsRegistry stats, final String op,
+            final Long fileBytes, final long logicalBytes) {
+        if (fileBytes != null && logicalBytes > 0) {
+            final double amplification = fileBytes / (double) logicalBytes;
+            stats.gauge("kvstorage_dao_amplification", () -> amplification, "op", op);
+        }
+    }
+
     @Override
     public void close() {
         h2Bridge.closeConnection();
@@ -0,0 +1,83 @@
+package ru.kspt.highload.dao;
+
+import org.jooq.ExecuteContext;
+import org.jooq.ExecuteType;
+import org.jooq.impl.DefaultExecuteListener;
+import ru.kspt.highload.metrics.LatencyHistogram;
+import ru.kspt.highload.metrics.MetricsRegistry;
+
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Splits the time of every query into the time jOOQ spends rendering the SQL and the time
+ * H2 spends executing it and fetching the results
+ */
+class QueryTimingListener extends DefaultExecuteListener {
+    private static final long serialVersionUID = 1L;
+
+    private static final String QUERY_LATENCY_METRIC = "kvstorage_dao_query_seconds";
+
+    private static final String START_NANOS = "kvstorage.startNanos";
+
+    private static final String RENDER_START_NANOS = "kvstorage.renderStartNanos";
+
+    private static final String EXECUTE_START_NANOS = "kvstorage.executeStartNanos";
+
+    private enum Phase {
+        RENDER, EXECUTE, TOTAL
+    }
+
+    private final Map<ExecuteType, Map<Phase, LatencyHistogram>> histograms =
+            new EnumMap<>(ExecuteType.class);
+
+    QueryTimingListener(final MetricsRegistry metrics) {
+        for (ExecuteType type : ExecuteType.values()) {
+            final Map<Phase, LatencyHistogram> phaseHistograms = new EnumMap<>(Phase.class);
+            for (Phase phase : Phase.values()) {
+                phaseHistograms.put(phase, metrics.histogram(QUERY_LATENCY_METRIC,
+                        "type", type.name().toLowerCase(Locale.ROOT),
+                        "phase", phase.name().toLowerCase(Locale.ROOT)));
+            }
+            histograms.put(type, phaseHistograms);
+        }
+    }
+
+    @Override
+    public void start(final ExecuteContext ctx) {
+        ctx.data(START_NANOS, System.nanoTime());
+    }
+
+    @Override
+    public void renderStart(final ExecuteContext ctx) {
+        ctx.data(RENDER_START_NANOS, System.nanoTime());
+    }
+
+    @Override
+    public void renderEnd(final ExecuteContext ctx) {
+        record(ctx, Phase.RENDER, RENDER_START_NANOS);
+    }
+
+    @Override
+    public void executeStart(final ExecuteContext ctx) {
+        ctx.data(EXECUTE_START_NANOS, System.nanoTime());
+    }
+
+    @Override
+    public void executeEnd(final ExecuteContext ctx) {
+        record(ctx, Phase.EXECUTE, EXECUTE_START_NANOS);
+    }
+
+    @Override
+    public void end(final ExecuteContext ctx) {
+        record(ctx, Phase.TOTAL, START_NANOS);
+    }
+
+    private void record(final ExecuteContext ctx, final Phase phase, final String startKey) {
+        final Object startNanos = ctx.data(startKey);
+        if (startNanos != null) {
+            histograms.get(ctx.type()).get(phase).record(System.nanoTime() - (Long) startNanos);
+        }
+    }
+}
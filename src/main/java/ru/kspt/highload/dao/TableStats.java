@@ -0,0 +1,15 @@
+package ru.kspt.highload.dao;
+
+import lombok.Value;
+
+@Value
+class TableStats {
+    long liveKeys;
+
+    long tombstones;
+
+    /**
+     * Sum of key and value sizes of the live entries
+     */
+    long liveBytes;
+}
@@ -0,0 +1,71 @@
+package ru.kspt.highload.dto;
+
+import lombok.Getter;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Entity key as it is stored and sent to the replicas: UTF-8 bytes with their hash. The key is
+ * encoded once where it enters the node and is passed along as is, so the bytes and the hash
+ * are computed once per request. Neither the bytes nor the string must be modified.
+ */
+public final class Key {
+    @Getter
+    private final int hash;
+
+    @Getter
+    private final byte[] bytes;
+
+    @Nullable
+    private String string;
+
+    private Key(final byte[] bytes, @Nullable final String string) {
+        this.hash = Arrays.hashCode(bytes);
+        this.bytes = bytes;
+        this.string = string;
+    }
+
+    public static Key of(final String string) {
+        return new Key(string.getBytes(StandardCharsets.UTF_8), string);
+    }
+
+    public static Key of(final byte[] bytes) {
+        return new Key(bytes, null);
+    }
+
+    /**
+     * @return key decoded from UTF-8, for the keys which came as bytes it is decoded on first call
+     */
+    public String getString() {
+        String result = string;
+        if (result == null) {
+            result = new String(bytes, StandardCharsets.UTF_8);
+            string = result;
+        }
+        return result;
+    }
+
+    public boolean isEmpty() {
+        return bytes.length == 0;
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+        if (this == o) return true;
+        if (!(o instanceof Key)) return false;
+        final Key other = (Key) o;
+        return hash == other.hash && Arrays.equals(bytes, other.bytes);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return getString();
+    }
+}
@@ -0,0 +1,44 @@
+package ru.kspt.highload.metrics;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latency distribution since the start. Recording is wait-free: values go to
+ * an HdrHistogram {@link Recorder}, whose interval histograms are merged into the total
+ * one only when the distribution is read.
+ */
+public class LatencyHistogram {
+    private static final long HIGHEST_TRACKABLE_MICROS = TimeUnit.MINUTES.toMicros(1);
+
+    private static final int SIGNIFICANT_DIGITS = 2;
+
+    private final Recorder recorder = new Recorder(HIGHEST_TRACKABLE_MICROS, SIGNIFICANT_DIGITS);
+
+    private final Histogram total = new Histogram(HIGHEST_TRACKABLE_MICROS, SIGNIFICANT_DIGITS);
+
+    private final LongAdder sumNanos = new LongAdder();
+
+    private Histogram interval;
+
+    public void record(final long nanos) {
+        recorder.recordValue(Math.min(HIGHEST_TRACKABLE_MICROS, TimeUnit.NANOSECONDS.toMicros(nanos)));
+        sumNanos.add(nanos);
+    }
+
+    /**
+     * @return copy of the distribution, values are in microseconds
+     */
+    public synchronized Histogram snapshot() {
+        interval = recorder.getIntervalHistogram(interval);
+        total.add(interval);
+        return total.copy();
+    }
+
+    public long sumNanos() {
+        return sumNanos.sum();
+    }
+}
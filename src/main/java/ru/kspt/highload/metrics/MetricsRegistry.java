@@ -0,0 +1,124 @@
+package ru.kspt.highload.metrics;
+
+import org.HdrHistogram.Histogram;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Metrics of a single node, rendered in the Prometheus text exposition format. Metrics are
+ * identified by name and labels, given as {@code key, value} pairs. Updating a metric is
+ * lock-free, so callers on the hot path are expected to look it up once and keep it.
+ */
+public class MetricsRegistry {
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    private static final double NANOS_PER_SECOND = 1e9;
+
+    private static final double MICROS_PER_SECOND = 1e6;
+
+    private final ConcurrentMap<String, Map<String, LatencyHistogram>> histograms =
+            new ConcurrentSkipListMap<>();
+
+    private final ConcurrentMap<String, Map<String, LongAdder>> counters =
+            new ConcurrentSkipListMap<>();
+
+    private final ConcurrentMap<String, Map<String, LongSupplier>> counterFunctions =
+            new ConcurrentSkipListMap<>();
+
+    private final ConcurrentMap<String, Map<String, Supplier<? extends Number>>> gauges =
+            new ConcurrentSkipListMap<>();
+
+    /**
+     * @param name name of a summary in seconds
+     */
+    public LatencyHistogram histogram(final String name, final String... labels) {
+        return family(histograms, name).computeIfAbsent(renderLabels(labels),
+                __ -> new LatencyHistogram());
+    }
+
+    public LongAdder counter(final String name, final String... labels) {
+        return family(counters, name).computeIfAbsent(renderLabels(labels), __ -> new LongAdder());
+    }
+
+    /**
+     * Registers a counter maintained elsewhere
+     */
+    public void counter(final String name, final LongSupplier value, final String... labels) {
+        family(counterFunctions, name).put(renderLabels(labels), value);
+    }
+
+    public void gauge(final String name, final Supplier<? extends Number> value,
+            final String... labels) {
+        family(gauges, name).put(renderLabels(labels), value);
+    }
+
+    private static <T> Map<String, T> family(final ConcurrentMap<String, Map<String, T>> metrics,
+            final String name) {
+        return metrics.computeIfAbsent(name, __ -> new ConcurrentHashMap<>());
+    }
+
+    private static String renderLabels(final String... labels) {
+        if (labels.length % 2 != 0) {
+            throw new IllegalArgumentException("Labels are to be given as key-value pairs");
+        }
+        final StringBuilder result = new StringBuilder();
+        for (int i = 0; i < labels.length; i += 2) {
+            if (i > 0) result.append(',');
+            result.append(labels[i]).append("=\"")
+                    .append(labels[i + 1].replace("\\", "\\\\").replace("\"", "\\\""))
+                    .append('"');
+        }
+        return result.toString();
+    }
+
+    public String renderPrometheus() {
+        final StringBuilder out = new StringBuilder();
+        histograms.forEach((name, family) -> {
+            out.append("# TYPE ").append(name).append(" summary\n");
+            family.forEach((labels, histogram) -> renderSummary(out, name, labels, histogram));
+        });
+        counters.forEach((name, family) -> {
+            out.append("# TYPE ").append(name).append(" counter\n");
+            family.forEach((labels, counter) -> renderSample(out, name, labels, counter.sum()));
+        });
+        counterFunctions.forEach((name, family) -> {
+            out.append("# TYPE ").append(name).append(" counter\n");
+            family.forEach((labels, counter) -> renderSample(out, name, labels, counter.getAsLong()));
+        });
+        gauges.forEach((name, family) -> {
+            out.append("# TYPE ").append(name).append(" gauge\n");
+            family.forEach((labels, gauge) -> renderSample(out, name, labels, gauge.get()));
+        });
+        return out.toString();
+    }
+
+    private static void renderSummary(final StringBuilder out, final String name,
+            final String labels, final LatencyHistogram histogram) {
+        final Histogram snapshot = histogram.snapshot();
+        final String separator = labels.isEmpty() ? "" : ",";
+        for (double quantile : QUANTILES) {
+            final double seconds =
+                    snapshot.getValueAtPercentile(quantile * 100) / MICROS_PER_SECOND;
+            out.append(name).append('{').append(labels).append(separator)
+                    .append("quantile=\"").append(quantile).append("\"} ")
+                    .append(seconds).append('\n');
+        }
+        renderSample(out, name + "_sum", labels, histogram.sumNanos() / NANOS_PER_SECOND);
+        renderSample(out, name + "_count", labels, snapshot.getTotalCount());
+    }
+
+    private static void renderSample(final StringBuilder out, final String name,
+            final String labels, final Number value) {
+        out.append(name);
+        if (!labels.isEmpty()) {
+            out.append('{').append(labels).append('}');
+        }
+        out.append(' ').append(value).append('\n');
+    }
+}
@@ -0,0 +1,135 @@
+package ru.kspt.highload.replication;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Pool of direct buffers the replication frames are read into and encoded to. Buffers are
+ * grouped into power-of-two size classes, each class keeps at most
+ * {@code pooledBytesPerClass} bytes of released buffers (but at least two of them).
+ * Buffers larger than the largest class are allocated on the heap and never pooled.
+ * A buffer which is acquired and never released is simply garbage-collected.
+ */
+public class BufferPool {
+    private static final int MIN_BUFFERS_PER_CLASS = 2;
+
+    private final int minSizeShift;
+
+    private final BlockingQueue<ByteBuffer>[] classes;
+
+    private final LongAdder acquiredCount = new LongAdder();
+
+    private final LongAdder emptyClassMissesCount = new LongAdder();
+
+    private final LongAdder oversizedMissesCount = new LongAdder();
+
+    private final AtomicLong allocatedBytes = new AtomicLong();
+
+    private final AtomicLong pooledBytes = new AtomicLong();
+
+    /**
+     * @param minSize size of the smallest buffers, a power of two
+     * @param maxSize size of the largest buffers, a power of two
+     */
+    @SuppressWarnings("unchecked")
+    public BufferPool(final int minSize, final int maxSize, final int pooledBytesPerClass) {
+        if (Integer.bitCount(minSize) != 1 || Integer.bitCount(maxSize) != 1 || minSize > maxSize) {
+            throw new IllegalArgumentException("Buffer sizes must be powers of two");
+        }
+        this.minSizeShift = Integer.numberOfTrailingZeros(minSize);
+        this.classes = (BlockingQueue<ByteBuffer>[])
+                new BlockingQueue<?>[Integer.numberOfTrailingZeros(maxSize) - minSizeShift + 1];
+        for (int i = 0; i < classes.length; i++) {
+            classes[i] = new ArrayBlockingQueue<>(
+                    Math.max(MIN_BUFFERS_PER_CLASS, pooledBytesPerClass / classSize(i)));
+        }
+    }
+
+    private int classSize(final int classIndex) {
+        return 1 << (classIndex + minSizeShift);
+    }
+
+    private int classIndex(final int size) {
+        final int shift = size <= 1 ? 0 : 32 - Integer.numberOfLeadingZeros(size - 1);
+        return Math.max(0, shift - minSizeShift);
+    }
+
+    /**
+     * @return buffer with position zero and limit {@code size}, its contents are undefined
+     */
+    ByteBuffer acquire(final int size) {
+        acquiredCount.increment();
+        final int classIndex = classIndex(size);
+        if (classIndex >= classes.length) {
+            oversizedMissesCount.increment();
+            return ByteBuffer.allocate(size);
+        }
+        ByteBuffer buffer = classes[classIndex].poll();
+        if (buffer != null) {
+            pooledBytes.addAndGet(-buffer.capacity());
+        } else {
+            emptyClassMissesCount.increment();
+            buffer = ByteBuffer.allocateDirect(classSize(classIndex));
+            allocatedBytes.addAndGet(buffer.capacity());
+        }
+        buffer.clear().limit(size);
+        return buffer;
+    }
+
+    /**
+     * Returns the buffer to the pool, buffers not acquired from it are ignored. The buffer,
+     * as well as its slices and duplicates, must not be used after that.
+     */
+    void release(@Nullable final ByteBuffer buffer) {
+        if (buffer == null || !buffer.isDirect()) {
+            return;
+        }
+        final int classIndex = classIndex(buffer.capacity());
+        if (classIndex >= classes.length || classSize(classIndex) != buffer.capacity()) {
+            return;
+        }
+        if (classes[classIndex].offer(buffer)) {
+            pooledBytes.addAndGet(buffer.capacity());
+        } else {
+            allocatedBytes.addAndGet(-buffer.capacity());
+        }
+    }
+
+    public long acquiredCount() {
+        return acquiredCount.sum();
+    }
+
+    /**
+     * @return number of buffers allocated since there was no free one of the size
+     */
+    public long emptyClassMissesCount() {
+        return emptyClassMissesCount.sum();
+    }
+
+    /**
+     * @return number of heap buffers allocated since they are larger than the largest class
+     */
+    public long oversizedMissesCount() {
+        return oversizedMissesCount.sum();
+    }
+
+    /**
+     * @return size of the direct buffers allocated by the pool and not dropped, either pooled
+     * or in use
+     */
+    public long allocatedBytes() {
+        return allocatedBytes.get();
+    }
+
+    /**
+     * @return size of the direct buffers waiting in the pool to be acquired
+     */
+    public long pooledBytes() {
+        return pooledBytes.get();
+    }
+}
@@ -0,0 +1,23 @@
+package ru.kspt.highload.replication;
+
+import lombok.AllArgsConstructor;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.ByteBuffer;
+
+@AllArgsConstructor
+class Frame {
+    final long requestId;
+
+    final long traceId;
+
+    final Opcode opcode;
+
+    final ByteBuffer body;
+
+    /**
+     * Pooled buffer the frame was read into, {@code null} for the frames enclosed into another one
+     */
+    @Nullable
+    final ByteBuffer buffer;
+}
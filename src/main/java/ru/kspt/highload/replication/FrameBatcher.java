@@ -0,0 +1,125 @@
+package ru.kspt.highload.replication;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Nagle-like batcher of request frames going to the same node. The first queued frame waits
+ * for at most {@link #WINDOW} for others to join it, unless {@link #MAX_BATCH_BYTES} are
+ * collected earlier. All collected frames are then written as a single batch frame and their
+ * buffers are released, as are the buffers of the frames failed to be written or still queued
+ * once the batcher is closed.
+ */
+@Slf4j
+class FrameBatcher implements Closeable {
+    private static final Duration WINDOW = Duration.ofNanos(200_000);
+
+    private static final int MAX_BATCH_BYTES = 64 * 1024;
+
+    private final FrameChannel connection;
+
+    private final BufferPool pool;
+
+    private final Runnable onFailure;
+
+    private final BlockingQueue<ByteBuffer[]> queue = new LinkedBlockingQueue<>();
+
+    private final Thread flusher;
+
+    private volatile boolean isClosed;
+
+    FrameBatcher(final FrameChannel connection, final BufferPool pool, final String name,
+            final Runnable onFailure) {
+        this.connection = connection;
+        this.pool = pool;
+        this.onFailure = onFailure;
+        this.flusher = new Thread(this::flushContinuously, name);
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    /**
+     * @param frame parts of the frame, see {@link ReplicationProtocol#encodeRequest}
+     */
+    void submit(final ByteBuffer[] frame) {
+        queue.add(frame);
+        if (isClosed) {
+            releaseQueued();
+        }
+    }
+
+    private void flushContinuously() {
+        final List<ByteBuffer[]> batch = new ArrayList<>();
+        final List<ByteBuffer> batchParts = new ArrayList<>();
+        try {
+            while (!isClosed) {
+                collectBatch(batch);
+                if (batch.size() == 1) {
+                    connection.write(batch.get(0));
+                } else {
+                    batch.forEach(frame -> batchParts.addAll(Arrays.asList(frame)));
+                    connection.writeEnclosed(Opcode.BATCH, batchParts);
+                    batchParts.clear();
+                }
+                release(batch);
+            }
+        } catch (InterruptedException __) {
+            // the batcher is closed
+        } catch (IOException e) {
+            if (!isClosed) {
+                log.warn("Failed to send batch of replication requests: {}", e.getMessage());
+                onFailure.run();
+            }
+        } finally {
+            release(batch);
+            releaseQueued();
+        }
+    }
+
+    private void release(final List<ByteBuffer[]> batch) {
+        batch.forEach(frame -> ReplicationProtocol.release(pool, frame));
+        batch.clear();
+    }
+
+    private void releaseQueued() {
+        ByteBuffer[] frame;
+        while ((frame = queue.poll()) != null) {
+            ReplicationProtocol.release(pool, frame);
+        }
+    }
+
+    private void collectBatch(final List<ByteBuffer[]> batch) throws InterruptedException {
+        final ByteBuffer[] first = queue.take();
+        final long deadline = System.nanoTime() + WINDOW.toNanos();
+        batch.add(first);
+        long batchBytes = ReplicationProtocol.length(first);
+        while (batchBytes < MAX_BATCH_BYTES) {
+            ByteBuffer[] next = queue.poll();
+            if (next == null) {
+                final long nanosLeft = deadline - System.nanoTime();
+                if (nanosLeft <= 0) break;
+                next = queue.poll(nanosLeft, TimeUnit.NANOSECONDS);
+                if (next == null) break;
+            }
+            batch.add(next);
+            batchBytes += ReplicationProtocol.length(next);
+        }
+    }
+
+    @Override
+    public void close() {
+        isClosed = true;
+        flusher.interrupt();
+        releaseQueued();
+    }
+}
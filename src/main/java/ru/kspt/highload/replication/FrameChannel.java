@@ -0,0 +1,79 @@
+package ru.kspt.highload.replication;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.List;
+
+/**
+ * Persistent connection between two nodes. Frames may be written concurrently,
+ * but must be read from a single thread.
+ */
+class FrameChannel implements Closeable {
+    private final SocketChannel channel;
+
+    private final BufferPool pool;
+
+    FrameChannel(final SocketChannel channel, final BufferPool pool) throws IOException {
+        this.channel = channel;
+        this.pool = pool;
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+    }
+
+    synchronized void write(final ByteBuffer frame) throws IOException {
+        while (frame.hasRemaining()) {
+            channel.write(frame);
+        }
+    }
+
+    /**
+     * Writes the buffers with as few system calls as possible
+     */
+    synchronized void write(final ByteBuffer[] buffers) throws IOException {
+        long remaining = ReplicationProtocol.length(buffers);
+        while (remaining > 0) {
+            remaining -= channel.write(buffers);
+        }
+    }
+
+    /**
+     * Writes the frames (or their parts) enclosed into a single frame with the given opcode
+     */
+    void writeEnclosed(final Opcode opcode, final List<ByteBuffer> frames) throws IOException {
+        final ByteBuffer[] buffers = new ByteBuffer[frames.size() + 1];
+        buffers[0] = ReplicationProtocol.encodeEnclosingHeader(opcode, frames);
+        for (int i = 0; i < frames.size(); i++) {
+            buffers[i + 1] = frames.get(i);
+        }
+        write(buffers);
+    }
+
+    /**
+     * @return the next frame, which is to be {@link #release released} once it is decoded
+     */
+    @Nullable
+    Frame read() throws IOException {
+        return ReplicationProtocol.readFrame(channel, pool);
+    }
+
+    void release(final Frame frame) {
+        pool.release(frame.buffer);
+    }
+
+    boolean isOpen() {
+        return channel.isOpen();
+    }
+
+    @Override
+    public void close() {
+        try {
+            channel.close();
+        } catch (IOException __) {
+            // nothing to do
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package ru.kspt.highload.replication;
+
+import java.net.ProtocolException;
+
+enum Opcode {
+    GET, PUT, DELETE, RESPONSE, BATCH, MULTI_STATUS, PING, TRANSFER, BULK;
+
+    private static final Opcode[] VALUES = values();
+
+    byte code() {
+        return (byte) ordinal();
+    }
+
+    static Opcode of(final byte code) throws ProtocolException {
+        if (code < 0 || code >= VALUES.length) {
+            throw new ProtocolException("Unknown opcode " + code);
+        }
+        return VALUES[code];
+    }
+}
@@ -0,0 +1,258 @@
+package ru.kspt.highload.replication;
+
+import lombok.extern.slf4j.Slf4j;
+import org.jetbrains.annotations.Nullable;
+import ru.kspt.highload.dto.ReplicaResponse;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SocketChannel;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Client side of a persistent connection to the {@link ReplicationServer} of another node.
+ * Any number of requests may be in flight at once, responses are matched by request ID.
+ * Write requests are sent in batches, see {@link FrameBatcher}. Requests for many keys at once
+ * may also be sent explicitly as batches, or as bulks if they are to be stored at once.
+ */
+@Slf4j
+public class ReplicationClient implements Closeable {
+    private static final int MAX_BATCH_BYTES = 1024 * 1024;
+
+    private static final int MAX_BULK_BYTES = 4 * 1024 * 1024;
+
+    private static final byte[] NO_KEY = new byte[0];
+
+    private final FrameChannel connection;
+
+    private final BufferPool pool;
+
+    private final FrameBatcher batcher;
+
+    private final AtomicLong requestIds = new AtomicLong();
+
+    private final Map<Long, CompletableFuture<ReplicaResponse>> pending = new ConcurrentHashMap<>();
+
+    private volatile boolean isClosed;
+
+    private ReplicationClient(final FrameChannel connection, final BufferPool pool,
+            final String name) {
+        this.connection = connection;
+        this.pool = pool;
+        this.batcher = new FrameBatcher(connection, pool, name + "-batcher", this::close);
+    }
+
+    /**
+     * @param pool pool of the buffers requests are encoded to and responses are read into
+     */
+    public static ReplicationClient connect(final String host, final int port,
+            final Duration connectTimeout, final BufferPool pool) throws IOException {
+        final SocketChannel channel = SocketChannel.open();
+        try {
+            channel.socket().connect(new InetSocketAddress(host, port), (int) connectTimeout.toMillis());
+            final String name = "ReplicationClient-" + host + ":" + port;
+            final ReplicationClient client = new ReplicationClient(new FrameChannel(channel, pool), pool, name);
+            final Thread reader = new Thread(client::readResponses, name);
+            reader.setDaemon(true);
+            reader.start();
+            return client;
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @param traceId ID of the trace the request belongs to, zero if it is not traced
+     */
+    public CompletableFuture<ReplicaResponse> getEntity(final byte[] key, final long traceId) {
+        return send(Opcode.GET, key, null, traceId);
+    }
+
+    public CompletableFuture<ReplicaResponse> putEntity(final byte[] key, final byte[] value,
+            final long traceId) {
+        return send(Opcode.PUT, key, value, traceId);
+    }
+
+    public CompletableFuture<ReplicaResponse> deleteEntity(final byte[] key, final long traceId) {
+        return send(Opcode.DELETE, key, null, traceId);
+    }
+
+    /**
+     * @return future completed with a successful response once the server answers the heartbeat
+     */
+    public CompletableFuture<ReplicaResponse> ping() {
+        return send(Opcode.PING, NO_KEY, null, 0);
+    }
+
+    public List<CompletableFuture<ReplicaResponse>> getEntities(final List<byte[]> keys) {
+        return sendBatch(Opcode.BATCH, Opcode.GET, keys, null, MAX_BATCH_BYTES);
+    }
+
+    public List<CompletableFuture<ReplicaResponse>> putEntities(final List<byte[]> keys,
+            final List<byte[]> values) {
+        return sendBatch(Opcode.BATCH, Opcode.PUT, keys, values, MAX_BATCH_BYTES);
+    }
+
+    public List<CompletableFuture<ReplicaResponse>> deleteEntities(final List<byte[]> keys) {
+        return sendBatch(Opcode.BATCH, Opcode.DELETE, keys, null, MAX_BATCH_BYTES);
+    }
+
+    /**
+     * Sends the entities in bulk frames of at most {@link #MAX_BULK_BYTES} each, the server
+     * stores every bulk at once, so all the entities of a bulk get the same response
+     */
+    public List<CompletableFuture<ReplicaResponse>> bulkPutEntities(final List<byte[]> keys,
+            final List<byte[]> values) {
+        return sendBatch(Opcode.BULK, Opcode.PUT, keys, values, MAX_BULK_BYTES);
+    }
+
+    /**
+     * Copies the entries to the node, which keeps its own entries for the same keys if any
+     *
+     * @param values values of the entries, {@code null} for tombstones
+     */
+    public List<CompletableFuture<ReplicaResponse>> transferEntities(final List<byte[]> keys,
+            final List<byte[]> values) {
+        return sendBatch(Opcode.BATCH, Opcode.TRANSFER, keys, values, MAX_BATCH_BYTES);
+    }
+
+    private CompletableFuture<ReplicaResponse> register(final long requestId) {
+        final CompletableFuture<ReplicaResponse> response = new CompletableFuture<>();
+        pending.put(requestId, response);
+        response.whenComplete((r, e) -> pending.remove(requestId));
+        return response;
+    }
+
+    private CompletableFuture<ReplicaResponse> send(final Opcode opcode, final byte[] key,
+            @Nullable final byte[] value, final long traceId) {
+        final long requestId = requestIds.incrementAndGet();
+        final CompletableFuture<ReplicaResponse> response = register(requestId);
+        if (isClosed) {
+            response.completeExceptionally(new ClosedChannelException());
+            return response;
+        }
+        final ByteBuffer[] frame =
+                ReplicationProtocol.encodeRequest(pool, requestId, traceId, opcode, key, value);
+        if (opcode == Opcode.GET || opcode == Opcode.PING) {
+            try {
+                connection.write(frame);
+            } catch (IOException e) {
+                response.completeExceptionally(e);
+                close();
+            } finally {
+                ReplicationProtocol.release(pool, frame);
+            }
+        } else {
+            batcher.submit(frame);
+        }
+        return response;
+    }
+
+    /**
+     * Sends the requests bypassing the {@link FrameBatcher}, enclosed into frames
+     * of at most {@code maxBatchBytes} each
+     *
+     * @param batchOpcode opcode of the enclosing frames
+     */
+    private List<CompletableFuture<ReplicaResponse>> sendBatch(final Opcode batchOpcode,
+            final Opcode opcode, final List<byte[]> keys, @Nullable final List<byte[]> values,
+            final int maxBatchBytes) {
+        final List<CompletableFuture<ReplicaResponse>> responses = new ArrayList<>(keys.size());
+        final List<ByteBuffer[]> frames = new ArrayList<>();
+        long batchBytes = 0;
+        for (int i = 0; i < keys.size(); i++) {
+            final long requestId = requestIds.incrementAndGet();
+            responses.add(register(requestId));
+            final byte[] value = values == null ? null : values.get(i);
+            final ByteBuffer[] frame = opcode == Opcode.TRANSFER
+                    ? ReplicationProtocol.encodeTransferRequest(pool, requestId, keys.get(i), value)
+                    : ReplicationProtocol.encodeRequest(pool, requestId, 0, opcode, keys.get(i), value);
+            final long frameLength = ReplicationProtocol.length(frame);
+            if (!frames.isEmpty() && batchBytes + frameLength > maxBatchBytes) {
+                writeBatch(batchOpcode, frames);
+                frames.clear();
+                batchBytes = 0;
+            }
+            frames.add(frame);
+            batchBytes += frameLength;
+        }
+        if (!frames.isEmpty()) {
+            writeBatch(batchOpcode, frames);
+        }
+        return responses;
+    }
+
+    private void writeBatch(final Opcode batchOpcode, final List<ByteBuffer[]> frames) {
+        try {
+            if (isClosed) {
+                close();
+            } else {
+                final List<ByteBuffer> frameParts = new ArrayList<>();
+                frames.forEach(frame -> frameParts.addAll(Arrays.asList(frame)));
+                connection.writeEnclosed(batchOpcode, frameParts);
+            }
+        } catch (IOException e) {
+            log.warn("Failed to send replication batch: {}", e.getMessage());
+            close();
+        } finally {
+            frames.forEach(frame -> ReplicationProtocol.release(pool, frame));
+        }
+    }
+
+    private void readResponses() {
+        try {
+            Frame frame;
+            while ((frame = connection.read()) != null) {
+                try {
+                    if (frame.opcode == Opcode.MULTI_STATUS) {
+                        for (Frame enclosed : ReplicationProtocol.decodeEnclosedFrames(frame.body)) {
+                            completeResponse(enclosed);
+                        }
+                    } else {
+                        completeResponse(frame);
+                    }
+                } finally {
+                    connection.release(frame);
+                }
+            }
+        } catch (IOException e) {
+            if (!isClosed) {
+                log.warn("Replication connection failed: {}", e.getMessage());
+            }
+        } finally {
+            close();
+        }
+    }
+
+    private void completeResponse(final Frame frame) throws ProtocolException {
+        final CompletableFuture<ReplicaResponse> response = pending.get(frame.requestId);
+        if (response != null) {
+            response.complete(ReplicationProtocol.decodeResponse(frame.body));
+        }
+    }
+
+    public boolean isOpen() {
+        return !isClosed && connection.isOpen();
+    }
+
+    @Override
+    public void close() {
+        isClosed = true;
+        batcher.close();
+        connection.close();
+        pending.values().forEach(response ->
+                response.completeExceptionally(new ClosedChannelException()));
+    }
+}
@@ -0,0 +1,30 @@
+package ru.kspt.highload.replication;
+
+import org.jetbrains.annotations.Nullable;
+import ru.kspt.highload.dto.Key;
+import ru.kspt.highload.dto.ReplicaResponse;
+
+import java.util.List;
+
+/**
+ * Serves replication requests received by {@link ReplicationServer} against the local storage
+ */
+public interface ReplicationHandler {
+    ReplicaResponse getEntity(Key key);
+
+    ReplicaResponse putEntity(Key key, byte[] value);
+
+    ReplicaResponse deleteEntity(Key key);
+
+    /**
+     * Stores all the entities at once, so the response is the same for all of them
+     */
+    ReplicaResponse putEntities(List<Key> keys, List<byte[]> values);
+
+    /**
+     * Stores the entry copied from another node, unless there is an entry for the key already
+     *
+     * @param value value, {@code null} for a tombstone
+     */
+    ReplicaResponse transferEntity(Key key, @Nullable byte[] value);
+}
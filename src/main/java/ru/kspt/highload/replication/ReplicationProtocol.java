@@ -0,0 +1,279 @@
+package ru.kspt.highload.replication;
+
+import lombok.experimental.UtilityClass;
+import org.jetbrains.annotations.Nullable;
+import ru.kspt.highload.dto.PayloadStatus;
+import ru.kspt.highload.dto.ReplicaResponse;
+import ru.kspt.highload.dto.ResponseStatus;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Binary framing of the replica-to-replica requests. Every frame is
+ * <pre>
+ * [int length][long requestId][long traceId][byte opcode][body]
+ * </pre>
+ * where {@code length} counts all the bytes following it and {@code traceId} is the ID of the
+ * trace the request belongs to, zero for the untraced requests and the responses. Request body is
+ * {@code [int keyLength][key][value]} (value is present in PUT requests only),
+ * response body is {@code [byte responseStatus][byte payloadStatus][payload]}.
+ * Several request frames may be packed into the body of a single batch frame, responses to them
+ * are packed the same way into multi-status frames. PUT request frames packed into the body of
+ * a bulk frame are stored all at once, they are answered with a multi-status frame as well.
+ * Heartbeat (ping) requests have an empty key and are answered with an empty successful
+ * response. Transfer requests copying the entries to another node have
+ * {@code [int keyLength][key][byte isDeleted][value]} body.
+ * <p>
+ * Frames are encoded to and read into the buffers of a {@link BufferPool}, which are to be
+ * released once the frame is written or decoded. Values of the requests are not copied there,
+ * they are wrapped and written right after the pooled part of the frame.
+ */
+@UtilityClass
+class ReplicationProtocol {
+    private final int MAX_FRAME_LENGTH = 32 * 1024 * 1024;
+
+    private final int HEADER_LENGTH = 2 * Long.BYTES + Byte.BYTES;
+
+    private final ResponseStatus[] RESPONSE_STATUSES = ResponseStatus.values();
+
+    private final PayloadStatus[] PAYLOAD_STATUSES = PayloadStatus.values();
+
+    /**
+     * @return parts of the frame to be written one after another: the pooled head with
+     * everything up to the value and the value itself, which is wrapped rather than copied,
+     * so the same value may be sent to several nodes without copying it for each of them
+     */
+    ByteBuffer[] encodeRequest(final BufferPool pool, final long requestId, final long traceId,
+            final Opcode opcode, final byte[] key, @Nullable final byte[] value) {
+        final int valueLength = value == null ? 0 : value.length;
+        final int frameLength = HEADER_LENGTH + Integer.BYTES + key.length + valueLength;
+        final ByteBuffer head = pool.acquire(Integer.BYTES + frameLength - valueLength)
+                .putInt(frameLength)
+                .putLong(requestId)
+                .putLong(traceId)
+                .put(opcode.code())
+                .putInt(key.length)
+                .put(key);
+        head.flip();
+        return withValue(head, value);
+    }
+
+    /**
+     * @param value value of the entry transferred, {@code null} for a tombstone
+     * @return parts of the frame, see {@link #encodeRequest}
+     */
+    ByteBuffer[] encodeTransferRequest(final BufferPool pool, final long requestId,
+            final byte[] key, @Nullable final byte[] value) {
+        final int valueLength = value == null ? 0 : value.length;
+        final int frameLength = HEADER_LENGTH + Integer.BYTES + key.length + Byte.BYTES + valueLength;
+        final ByteBuffer head = pool.acquire(Integer.BYTES + frameLength - valueLength)
+                .putInt(frameLength)
+                .putLong(requestId)
+                .putLong(0)
+                .put(Opcode.TRANSFER.code())
+                .putInt(key.length)
+                .put(key)
+                .put((byte) (value == null ? 1 : 0));
+        head.flip();
+        return withValue(head, value);
+    }
+
+    private ByteBuffer[] withValue(final ByteBuffer head, @Nullable final byte[] value) {
+        return value == null ? new ByteBuffer[] {head} : new ByteBuffer[] {head, ByteBuffer.wrap(value)};
+    }
+
+    /**
+     * Releases the head of the request frame, the value belongs to the caller
+     */
+    void release(final BufferPool pool, final ByteBuffer[] frameParts) {
+        pool.release(frameParts[0]);
+    }
+
+    long length(final ByteBuffer[] frameParts) {
+        long length = 0;
+        for (ByteBuffer part : frameParts) {
+            length += part.remaining();
+        }
+        return length;
+    }
+
+    /**
+     * @return header of a frame enclosing the given frames (or their parts), which are to be
+     * written right after it
+     */
+    ByteBuffer encodeEnclosingHeader(final Opcode opcode, final List<ByteBuffer> frames) {
+        int frameLength = HEADER_LENGTH;
+        for (ByteBuffer frame : frames) {
+            frameLength += frame.remaining();
+        }
+        final ByteBuffer header = ByteBuffer.allocate(Integer.BYTES + HEADER_LENGTH)
+                .putInt(frameLength)
+                .putLong(0)
+                .putLong(0)
+                .put(opcode.code());
+        header.flip();
+        return header;
+    }
+
+    /**
+     * Response with a payload too large for a frame is encoded as a failure, so only the request
+     * fails rather than the connection, which the reader would close on such a frame
+     */
+    ByteBuffer encodeResponse(final BufferPool pool, final long requestId,
+            final ReplicaResponse response) {
+        final int payloadLength = response.payload == null ? 0 : response.payload.length;
+        if (payloadLength > MAX_FRAME_LENGTH - HEADER_LENGTH - 2 * Byte.BYTES) {
+            return encodeResponse(pool, requestId, ReplicaResponse.fail());
+        }
+        final int frameLength = HEADER_LENGTH + 2 * Byte.BYTES + payloadLength;
+        final ByteBuffer frame = pool.acquire(Integer.BYTES + frameLength)
+                .putInt(frameLength)
+                .putLong(requestId)
+                .putLong(0)
+                .put(Opcode.RESPONSE.code())
+                .put((byte) response.responseStatus.ordinal())
+                .put((byte) response.payloadStatus.ordinal());
+        if (response.payload != null) {
+            frame.put(response.payload);
+        }
+        frame.flip();
+        return frame;
+    }
+
+    byte[] decodeKey(final ByteBuffer body) throws ProtocolException {
+        if (body.remaining() < Integer.BYTES) {
+            throw new ProtocolException("Missing key length");
+        }
+        final int keyLength = body.getInt();
+        if (keyLength < 0 || keyLength > body.remaining()) {
+            throw new ProtocolException("Malformed key length " + keyLength);
+        }
+        final byte[] key = new byte[keyLength];
+        body.get(key);
+        return key;
+    }
+
+    /**
+     * @return hash of the key of the request, which is left in the body, zero if the key
+     * is malformed
+     */
+    int keyHash(final ByteBuffer body) {
+        if (body.remaining() < Integer.BYTES) {
+            return 0;
+        }
+        final int keyStart = body.position() + Integer.BYTES;
+        final int keyLength = body.getInt(body.position());
+        if (keyLength < 0 || keyLength > body.limit() - keyStart) {
+            return 0;
+        }
+        final ByteBuffer key = body.duplicate();
+        key.position(keyStart);
+        key.limit(keyStart + keyLength);
+        return key.hashCode();
+    }
+
+    byte[] decodeValue(final ByteBuffer body) {
+        final byte[] value = new byte[body.remaining()];
+        body.get(value);
+        return value;
+    }
+
+    /**
+     * @return value of the entry transferred, {@code null} for a tombstone
+     */
+    @Nullable
+    byte[] decodeTransferredValue(final ByteBuffer body) throws ProtocolException {
+        if (!body.hasRemaining()) {
+            throw new ProtocolException("Missing deleted flag of the transferred entry");
+        }
+        return body.get() != 0 ? null : decodeValue(body);
+    }
+
+    ReplicaResponse decodeResponse(final ByteBuffer body) throws ProtocolException {
+        if (body.remaining() < 2 * Byte.BYTES) {
+            throw new ProtocolException("Missing response status");
+        }
+        final byte responseStatus = body.get();
+        final byte payloadStatus = body.get();
+        if (responseStatus < 0 || responseStatus >= RESPONSE_STATUSES.length
+                || payloadStatus < 0 || payloadStatus >= PAYLOAD_STATUSES.length) {
+            throw new ProtocolException("Malformed response status");
+        }
+        final PayloadStatus status = PAYLOAD_STATUSES[payloadStatus];
+        return new ReplicaResponse(RESPONSE_STATUSES[responseStatus], status,
+                status == PayloadStatus.FOUND ? decodeValue(body) : null);
+    }
+
+    /**
+     * @return the next frame or {@code null} if the channel reached end-of-stream between frames
+     */
+    @Nullable
+    Frame readFrame(final ReadableByteChannel channel, final BufferPool pool) throws IOException {
+        final ByteBuffer lengthBuffer = ByteBuffer.allocate(Integer.BYTES);
+        if (!readFully(channel, lengthBuffer, true)) {
+            return null;
+        }
+        final int frameLength = lengthBuffer.getInt(0);
+        if (frameLength < HEADER_LENGTH || frameLength > MAX_FRAME_LENGTH) {
+            throw new ProtocolException("Malformed frame length " + frameLength);
+        }
+        final ByteBuffer frame = pool.acquire(frameLength);
+        try {
+            readFully(channel, frame, false);
+            frame.flip();
+            return decodeFrame(frame, frame);
+        } catch (IOException e) {
+            pool.release(frame);
+            throw e;
+        }
+    }
+
+    /**
+     * @return frames enclosed into the body of a batch, bulk or multi-status frame
+     */
+    List<Frame> decodeEnclosedFrames(final ByteBuffer body) throws ProtocolException {
+        final List<Frame> frames = new ArrayList<>();
+        while (body.hasRemaining()) {
+            final int frameLength = body.remaining() < Integer.BYTES ? -1 : body.getInt();
+            if (frameLength < HEADER_LENGTH || frameLength > body.remaining()) {
+                throw new ProtocolException("Malformed enclosed frame length " + frameLength);
+            }
+            final ByteBuffer frame = body.slice();
+            frame.limit(frameLength);
+            body.position(body.position() + frameLength);
+            frames.add(decodeFrame(frame, null));
+        }
+        return frames;
+    }
+
+    /**
+     * @param buffer pooled buffer the frame was read into, if it is not enclosed into another one
+     */
+    private Frame decodeFrame(final ByteBuffer frame, @Nullable final ByteBuffer buffer)
+            throws ProtocolException {
+        final long requestId = frame.getLong();
+        final long traceId = frame.getLong();
+        final Opcode opcode = Opcode.of(frame.get());
+        return new Frame(requestId, traceId, opcode, frame.slice(), buffer);
+    }
+
+    private boolean readFully(final ReadableByteChannel channel, final ByteBuffer buffer,
+            final boolean isEndOfStreamAllowed) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                if (isEndOfStreamAllowed && buffer.position() == 0) {
+                    return false;
+                } else {
+                    throw new EOFException("Unexpected end of stream in the middle of a frame");
+                }
+            }
+        }
+        return true;
+    }
+}
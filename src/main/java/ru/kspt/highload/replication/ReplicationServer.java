@@ -0,0 +1,318 @@
+package ru.kspt.highload.replication;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.jetbrains.annotations.Nullable;
+import ru.kspt.highload.ThreadPools;
+import ru.kspt.highload.dto.Key;
+import ru.kspt.highload.dto.ReplicaResponse;
+import ru.kspt.highload.tracing.SlowTraces;
+import ru.kspt.highload.tracing.Trace;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+/**
+ * Accepts persistent connections from the other nodes and serves the replication requests
+ * multiplexed over them. Responses are sent in the order of completion, not of arrival.
+ * Requests of a batch are served concurrently and answered with multi-status frames of at most
+ * {@link #MAX_MULTI_STATUS_BYTES} each, so a batch of large values never makes a frame the
+ * client would refuse to read.
+ * Writes are the exception: the writes of a connection are spread over {@link #WRITE_LANES}
+ * lanes by key, and every lane applies its writes one by one in the order of arrival, so
+ * the writes of the same key are never reordered, even if the client batched them together.
+ * Entities of a bulk are stored all at once, the multi-status frame has the same response
+ * for all of them.
+ * Traced requests are timed and offered to {@link SlowTraces}. Request frames are released
+ * to the {@link BufferPool} as soon as they are decoded, responses once they are written.
+ */
+@Slf4j
+@RequiredArgsConstructor
+public class ReplicationServer {
+    private static final int WRITE_LANES =
+            Integer.getInteger("kvstorage.replication.writeLanes", 16);
+
+    private static final int MAX_MULTI_STATUS_BYTES =
+            Integer.getInteger("kvstorage.replication.maxMultiStatusBytes", 1024 * 1024);
+
+    private final ReplicationHandler handler;
+
+    private final SlowTraces slowTraces;
+
+    private final BufferPool pool;
+
+    private final Set<FrameChannel> connections = ConcurrentHashMap.newKeySet();
+
+    private ServerSocketChannel serverChannel;
+
+    private ExecutorService connectionsExecutor;
+
+    private ExecutorService workersExecutor;
+
+    private int port;
+
+    public void start() throws IOException {
+        serverChannel = ServerSocketChannel.open().bind(new InetSocketAddress(0));
+        port = ((InetSocketAddress) serverChannel.getLocalAddress()).getPort();
+        connectionsExecutor = ThreadPools.newCachedPool("ReplicationServer-" + port + "-connection");
+        workersExecutor = ThreadPools.newCachedPool("ReplicationServer-" + port + "-worker");
+        connectionsExecutor.execute(this::acceptConnections);
+    }
+
+    public void stop() {
+        if (serverChannel != null) {
+            try {
+                serverChannel.close();
+            } catch (IOException e) {
+                log.warn("Failed to close replication server socket", e);
+            }
+        }
+        connections.forEach(FrameChannel::close);
+        connections.clear();
+        if (connectionsExecutor != null) {
+            connectionsExecutor.shutdownNow();
+        }
+        if (workersExecutor != null) {
+            workersExecutor.shutdownNow();
+        }
+    }
+
+    public int port() {
+        return port;
+    }
+
+    private void acceptConnections() {
+        while (serverChannel.isOpen()) {
+            try {
+                final SocketChannel channel = serverChannel.accept();
+                final FrameChannel connection = new FrameChannel(channel, pool);
+                connections.add(connection);
+                connectionsExecutor.execute(() -> serve(connection));
+            } catch (ClosedChannelException | RejectedExecutionException __) {
+                return;
+            } catch (IOException e) {
+                log.warn("Failed to accept replication connection", e);
+            }
+        }
+    }
+
+    private void serve(final FrameChannel connection) {
+        final WriteLanes lanes = new WriteLanes();
+        try {
+            Frame frame;
+            while ((frame = connection.read()) != null) {
+                final Frame request = frame;
+                final long receivedAt = System.nanoTime();
+                if (request.opcode == Opcode.BATCH) {
+                    handleBatch(connection, request, lanes);
+                } else if (request.opcode == Opcode.BULK) {
+                    handleBulk(connection, request);
+                } else if (isWrite(request.opcode)) {
+                    lanes.submit(request, () -> {
+                        handle(connection, request, receivedAt);
+                        return null;
+                    });
+                } else {
+                    workersExecutor.execute(() -> handle(connection, request, receivedAt));
+                }
+            }
+        } catch (ClosedChannelException | RejectedExecutionException __) {
+            // the server is stopping
+        } catch (IOException e) {
+            log.warn("Replication connection failed: {}", e.getMessage());
+        } finally {
+            connections.remove(connection);
+            connection.close();
+        }
+    }
+
+    private void handle(final FrameChannel connection, final Frame request, final long receivedAt) {
+        final Trace trace = request.traceId == 0
+                ? null
+                : new Trace(request.traceId, request.opcode + " replication", receivedAt);
+        if (trace != null) {
+            trace.record("queue", null, receivedAt);
+        }
+        final ByteBuffer frame;
+        try {
+            frame = respond(request, trace);
+        } finally {
+            connection.release(request);
+        }
+        final long writeStart = System.nanoTime();
+        try {
+            connection.write(frame);
+        } catch (IOException e) {
+            log.warn("Failed to send replication response: {}", e.getMessage());
+            connection.close();
+        } finally {
+            pool.release(frame);
+        }
+        if (trace != null) {
+            trace.record("write", null, writeStart);
+            slowTraces.offer(trace);
+        }
+    }
+
+    private void handleBatch(final FrameChannel connection, final Frame batch,
+            final WriteLanes lanes) throws IOException {
+        final List<Frame> requests;
+        try {
+            requests = ReplicationProtocol.decodeEnclosedFrames(batch.body);
+        } catch (IOException e) {
+            connection.release(batch);
+            throw e;
+        }
+        final List<CompletableFuture<ByteBuffer>> responses = requests.stream()
+                .map(request -> (isWrite(request.opcode)
+                        ? lanes.submit(request, () -> respond(request, null))
+                        : CompletableFuture.supplyAsync(() -> respond(request, null), workersExecutor))
+                        .exceptionally(e -> failure(request, e)))
+                .collect(Collectors.toList());
+        // the batch is released and answered even if some of its requests failed
+        CompletableFuture.allOf(responses.toArray(new CompletableFuture<?>[0])).whenComplete((__, e) -> {
+            connection.release(batch);
+            writeMultiStatus(connection, responses.stream()
+                    .map(CompletableFuture::join)
+                    .collect(Collectors.toList()));
+        });
+    }
+
+    private ByteBuffer failure(final Frame request, final Throwable e) {
+        log.warn("Failed to serve replication request", e);
+        return ReplicationProtocol.encodeResponse(pool, request.requestId, ReplicaResponse.fail());
+    }
+
+    private void writeMultiStatus(final FrameChannel connection, final List<ByteBuffer> frames) {
+        try {
+            int from = 0;
+            long chunkBytes = 0;
+            for (int i = 0; i < frames.size(); i++) {
+                final int frameBytes = frames.get(i).remaining();
+                if (i > from && chunkBytes + frameBytes > MAX_MULTI_STATUS_BYTES) {
+                    connection.writeEnclosed(Opcode.MULTI_STATUS, frames.subList(from, i));
+                    from = i;
+                    chunkBytes = 0;
+                }
+                chunkBytes += frameBytes;
+            }
+            connection.writeEnclosed(Opcode.MULTI_STATUS, frames.subList(from, frames.size()));
+        } catch (IOException e) {
+            log.warn("Failed to send replication multi-status response: {}", e.getMessage());
+            connection.close();
+        } finally {
+            frames.forEach(pool::release);
+        }
+    }
+
+    /**
+     * The entities are copied out of the bulk frame, which is released at once
+     */
+    private void handleBulk(final FrameChannel connection, final Frame bulk) throws IOException {
+        final List<Long> requestIds = new ArrayList<>();
+        final List<Key> keys = new ArrayList<>();
+        final List<byte[]> values = new ArrayList<>();
+        try {
+            for (Frame request : ReplicationProtocol.decodeEnclosedFrames(bulk.body)) {
+                if (request.opcode != Opcode.PUT) {
+                    throw new ProtocolException("Unexpected " + request.opcode + " request in bulk");
+                }
+                requestIds.add(request.requestId);
+                keys.add(Key.of(ReplicationProtocol.decodeKey(request.body)));
+                values.add(ReplicationProtocol.decodeValue(request.body));
+            }
+        } finally {
+            connection.release(bulk);
+        }
+        workersExecutor.execute(() -> {
+            final ReplicaResponse response = storeBulk(keys, values);
+            writeMultiStatus(connection, requestIds.stream()
+                    .map(requestId -> ReplicationProtocol.encodeResponse(pool, requestId, response))
+                    .collect(Collectors.toList()));
+        });
+    }
+
+    private ReplicaResponse storeBulk(final List<Key> keys, final List<byte[]> values) {
+        try {
+            return handler.putEntities(keys, values);
+        } catch (RuntimeException e) {
+            log.warn("Failed to store replicated bulk", e);
+            return ReplicaResponse.fail();
+        }
+    }
+
+    private static boolean isWrite(final Opcode opcode) {
+        return opcode == Opcode.PUT || opcode == Opcode.DELETE || opcode == Opcode.TRANSFER;
+    }
+
+    /**
+     * Lanes of a single connection, which are used by its reading thread only
+     */
+    private class WriteLanes {
+        private final CompletableFuture<?>[] tails = new CompletableFuture<?>[WRITE_LANES];
+
+        WriteLanes() {
+            Arrays.fill(tails, CompletableFuture.completedFuture(null));
+        }
+
+        /**
+         * @return future of the task, which runs once the previous write of the lane is done,
+         * whether it succeeded or not
+         */
+        <T> CompletableFuture<T> submit(final Frame request, final Supplier<T> task) {
+            final int lane = Math.floorMod(ReplicationProtocol.keyHash(request.body), tails.length);
+            final CompletableFuture<T> result =
+                    tails[lane].handleAsync((__, e) -> task.get(), workersExecutor);
+            tails[lane] = result;
+            return result;
+        }
+    }
+
+    private ByteBuffer respond(final Frame request, @Nullable final Trace trace) {
+        final long startTime = System.nanoTime();
+        ReplicaResponse response;
+        try {
+            response = process(request);
+        } catch (IOException e) {
+            log.warn("Malformed replication request: {}", e.getMessage());
+            response = ReplicaResponse.fail();
+        } catch (RuntimeException e) {
+            log.warn("Failed to serve replication request", e);
+            response = ReplicaResponse.fail();
+        }
+        if (trace != null) {
+            trace.record("local", response.responseStatus.toString(), startTime);
+        }
+        return ReplicationProtocol.encodeResponse(pool, request.requestId, response);
+    }
+
+    private ReplicaResponse process(final Frame request) throws IOException {
+        if (request.opcode == Opcode.PING) {
+            return ReplicaResponse.success();
+        }
+        final Key key = Key.of(ReplicationProtocol.decodeKey(request.body));
+        switch (request.opcode) {
+            case GET: return handler.getEntity(key);
+            case PUT: return handler.putEntity(key, ReplicationProtocol.decodeValue(request.body));
+            case DELETE: return handler.deleteEntity(key);
+            case TRANSFER: return handler.transferEntity(key,
+                    ReplicationProtocol.decodeTransferredValue(request.body));
+            default: return ReplicaResponse.fail();
+        }
+    }
+}
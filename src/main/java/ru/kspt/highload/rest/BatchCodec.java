@@ -0,0 +1,114 @@
+package ru.kspt.highload.rest;
+
+import lombok.experimental.UtilityClass;
+import org.jetbrains.annotations.Nullable;
+import ru.kspt.highload.dto.Key;
+import ru.kspt.highload.dto.ReplicaResponse;
+import ru.kspt.highload.dto.ResponseStatus;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Binary bodies of the batch requests and responses. Request body is a sequence of keys
+ * {@code [int keyLength][UTF-8 key]}, each followed by {@code [int valueLength][value]}
+ * in PUT requests. Response body has an entry {@code [short status][int length][payload]}
+ * for every requested key, in the same order, where status is the HTTP status code
+ * the single-key request would get.
+ */
+@UtilityClass
+class BatchCodec {
+    private final int ENTRY_HEADER_LENGTH = Short.BYTES + Integer.BYTES;
+
+    /**
+     * @throws IllegalArgumentException if the body is malformed
+     */
+    List<Key> decodeKeys(@Nullable final byte[] body) {
+        final ByteBuffer buffer = wrap(body);
+        final List<Key> keys = new ArrayList<>();
+        try {
+            while (buffer.hasRemaining()) {
+                keys.add(decodeKey(buffer));
+            }
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Malformed batch body", e);
+        }
+        return keys;
+    }
+
+    /**
+     * @throws IllegalArgumentException if the body is malformed
+     */
+    void decodeEntries(@Nullable final byte[] body, final List<Key> keys, final List<byte[]> values) {
+        final ByteBuffer buffer = wrap(body);
+        try {
+            while (buffer.hasRemaining()) {
+                keys.add(decodeKey(buffer));
+                values.add(readBytes(buffer));
+            }
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Malformed batch body", e);
+        }
+    }
+
+    private ByteBuffer wrap(@Nullable final byte[] body) {
+        return body == null ? ByteBuffer.allocate(0) : ByteBuffer.wrap(body);
+    }
+
+    /**
+     * Key is kept in UTF-8 as it came, it is never decoded unless sent to a replica over HTTP
+     */
+    private Key decodeKey(final ByteBuffer buffer) {
+        final Key key = Key.of(readBytes(buffer));
+        if (key.isEmpty()) {
+            throw new IllegalArgumentException("Empty key in batch body");
+        }
+        return key;
+    }
+
+    /**
+     * The length is checked before the array is allocated, so a malformed one can't make
+     * the selector thread allocate gigabytes
+     */
+    private byte[] readBytes(final ByteBuffer buffer) {
+        final int length = buffer.getInt();
+        if (length < 0 || length > buffer.remaining()) {
+            throw new IllegalArgumentException("Malformed length " + length + " in batch body");
+        }
+        final byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * @param successStatus status of the acknowledged responses
+     */
+    byte[] encodeResults(final List<ReplicaResponse> results, final int successStatus) {
+        int length = 0;
+        for (ReplicaResponse result : results) {
+            length += ENTRY_HEADER_LENGTH + (result.payload == null ? 0 : result.payload.length);
+        }
+        final ByteBuffer buffer = ByteBuffer.allocate(length);
+        for (ReplicaResponse result : results) {
+            final byte[] payload = result.payload == null ? new byte[0] : result.payload;
+            buffer.putShort((short) status(result, successStatus))
+                    .putInt(payload.length)
+                    .put(payload);
+        }
+        return buffer.array();
+    }
+
+    private int status(final ReplicaResponse result, final int successStatus) {
+        if (result.responseStatus != ResponseStatus.ACK) {
+            return 504;
+        }
+        switch (result.payloadStatus) {
+            case FOUND: return 200;
+            case NOT_FOUND:
+            case DELETED: return 404;
+            default: return successStatus;
+        }
+    }
+}
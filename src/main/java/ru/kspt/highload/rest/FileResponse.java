@@ -0,0 +1,103 @@
+package ru.kspt.highload.rest;
+
+import lombok.extern.slf4j.Slf4j;
+import one.nio.http.Response;
+import one.nio.net.Socket;
+import one.nio.net.Session;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Response with the body sent from a file by sendfile, so it is neither read to the heap nor
+ * limited by its size. The file is temporary: it is deleted once it is sent, or once
+ * the connection is closed before that. If the response fails to be handed over to the session,
+ * the file is to be {@link #discardUnlessSending() discarded} by the caller.
+ */
+@Slf4j
+class FileResponse extends Response {
+    private final File file;
+
+    private final RandomAccessFile content;
+
+    private final AtomicBoolean isDiscarded = new AtomicBoolean();
+
+    private final CompletableFuture<Void> discarded = new CompletableFuture<>();
+
+    private volatile boolean isSending;
+
+    FileResponse(final File file, final String contentType) throws IOException {
+        super(Response.OK);
+        this.file = file;
+        this.content = new RandomAccessFile(file, "r");
+        addHeader("Content-Type: " + contentType);
+        addHeader("Content-Length: " + content.length());
+    }
+
+    /**
+     * @return body, which the session releases once it is sent or the connection is closed
+     */
+    Session.QueueItem body() throws IOException {
+        final FileItem body = new FileItem(content.length());
+        isSending = true;
+        return body;
+    }
+
+    /**
+     * @return future completed once the file is deleted, whether it is sent or not
+     */
+    CompletableFuture<Void> discarded() {
+        return discarded;
+    }
+
+    void discardUnlessSending() {
+        if (!isSending) {
+            discard();
+        }
+    }
+
+    private void discard() {
+        if (!isDiscarded.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            content.close();
+        } catch (IOException e) {
+            log.warn("Failed to close {}: {}", file, e.getMessage());
+        }
+        if (!file.delete()) {
+            log.warn("Failed to delete {}", file);
+        }
+        discarded.complete(null);
+    }
+
+    private class FileItem extends Session.QueueItem {
+        private final long length;
+
+        private long offset;
+
+        FileItem(final long length) {
+            this.length = length;
+        }
+
+        @Override
+        public int remaining() {
+            return offset < length ? 1 : 0;
+        }
+
+        @Override
+        public int write(final Socket socket) throws IOException {
+            final long written = socket.sendFile(content, offset, length - offset);
+            offset += written;
+            return (int) written;
+        }
+
+        @Override
+        public void release() {
+            discard();
+        }
+    }
+}
@@ -6,32 +6,78 @@ import one.nio.http.HttpServerConfig;
 import one.nio.http.Request;
 import one.nio.http.Response;
 import one.nio.server.AcceptorConfig;
+import org.jetbrains.annotations.Nullable;
 import ru.kspt.highload.DeletedEntityException;
 import ru.kspt.highload.NotEnoughReplicasException;
+import ru.kspt.highload.OverloadedException;
+import ru.kspt.highload.ThreadPools;
+import ru.kspt.highload.dto.Key;
+import ru.kspt.highload.metrics.LatencyHistogram;
+import ru.kspt.highload.metrics.MetricsRegistry;
+import ru.kspt.highload.service.AdmissionController;
 import ru.kspt.highload.service.KeyValueStorageGateway;
 import ru.kspt.highload.service.KeyValueStorageService;
+import ru.kspt.highload.service.Rebalancer;
 import ru.kspt.highload.service.Replica;
 import ru.kspt.highload.service.ReplicationFactor;
+import ru.kspt.highload.tracing.EntityRequestEvent;
+import ru.kspt.highload.tracing.Trace;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.NoSuchElementException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
 
 import static one.nio.http.Request.*;
 
 @Slf4j
 public class KeyValueStorageController {
+    private final KeyValueStorageService service;
+
+    private final AdmissionController admissionController;
+
+    private final MetricsRegistry metrics = new MetricsRegistry();
+
+    private final RequestMetrics requestMetrics = new RequestMetrics(metrics);
+
+    /**
+     * Bulk records stored on enough replicas
+     */
+    private final LongAdder bulkRecords = metrics.counter("kvstorage_bulk_records_total");
+
+    private final LatencyHistogram snapshotDuration =
+            metrics.histogram("kvstorage_snapshot_duration_seconds");
+
     private final KeyValueStorageGateway gateway;
 
+    private final Rebalancer rebalancer;
+
     private final HttpServer httpServer;
 
-    private final List<Replica> replicas;
+    private final ExecutorService snapshotExecutor = ThreadPools.newCachedPool("Snapshot");
+
+    private final AtomicBoolean isSnapshotting = new AtomicBoolean();
 
     public KeyValueStorageController(final KeyValueStorageService service, final int port,
             final List<Replica> replicas) throws IOException {
+        this.service = service;
+        this.admissionController = service.admissionController();
         this.httpServer = new KeyValueStorageHttpServer(createConfig(port), this);
-        this.replicas = replicas;
-        this.gateway = new KeyValueStorageGateway(service, replicas);
+        this.gateway = new KeyValueStorageGateway(service, replicas, admissionController, metrics);
+        this.rebalancer = new Rebalancer(service, gateway, metrics);
+        metrics.gauge("kvstorage_requests_in_flight", admissionController::requestsInFlight);
+        metrics.counter("kvstorage_rejected_requests_total", admissionController::rejectedCount);
     }
 
     public void startHttpServer() {
@@ -41,6 +87,8 @@ public class KeyValueStorageController {
 
     public void stopHttpServer() {
         httpServer.stop();
+        rebalancer.stop();
+        snapshotExecutor.shutdownNow();
         gateway.stop();
     }
 
@@ -56,69 +104,364 @@ public class KeyValueStorageController {
         return Response.ok("Ready to work!");
     }
 
-    Response entity(final Request request, final String id, final String replicasParam,
+    Response metrics() {
+        final Response response = Response.ok(metrics.renderPrometheus());
+        response.addHeader("Content-Type: text/plain; version=0.0.4");
+        return response;
+    }
+
+    CompletableFuture<Response> storageStats() {
+        return gateway.storageStats()
+                .thenApply(stats -> {
+                    final Response response = Response.ok(stats);
+                    response.addHeader("Content-Type: text/plain; version=0.0.4");
+                    return response;
+                })
+                .exceptionally(e -> errorResponse(e, false));
+    }
+
+    Response traces() {
+        final Response response = Response.ok(service.slowTraces().render());
+        response.addHeader("Content-Type: text/plain");
+        return response;
+    }
+
+    /**
+     * Snapshots take a copy of the whole storage, so only one is taken and sent at a time
+     */
+    CompletableFuture<Response> snapshot(final Request request) {
+        if (request.getMethod() != METHOD_GET) {
+            return CompletableFuture.completedFuture(Responses.methodNotAllowed());
+        }
+        if (!isSnapshotting.compareAndSet(false, true)) {
+            return CompletableFuture.completedFuture(Responses.conflict());
+        }
+        return CompletableFuture.supplyAsync(this::takeSnapshot, snapshotExecutor)
+                .whenComplete((response, e) -> {
+                    if (response instanceof FileResponse) {
+                        ((FileResponse) response).discarded()
+                                .thenRun(() -> isSnapshotting.set(false));
+                    } else {
+                        isSnapshotting.set(false);
+                    }
+                })
+                .exceptionally(e -> errorResponse(e, false));
+    }
+
+    private Response takeSnapshot() {
+        final long startTime = System.nanoTime();
+        final File snapshot;
+        try {
+            snapshot = service.snapshot();
+        } catch (UnsupportedOperationException e) {
+            log.warn(e.getMessage());
+            return Responses.methodNotAllowed();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        snapshotDuration.record(System.nanoTime() - startTime);
+        log.info("Took {} bytes snapshot {}", snapshot.length(), snapshot);
+        try {
+            return new FileResponse(snapshot, "application/zip");
+        } catch (IOException e) {
+            if (!snapshot.delete()) {
+                log.warn("Failed to delete snapshot {}", snapshot);
+            }
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * @param traceIdHeader trace ID passed by the coordinator, if any
+     */
+    Trace startTrace(final Request request, final String traceIdHeader) {
+        return Trace.start(traceIdHeader, methodName(request) + " " + request.getURI());
+    }
+
+    /**
+     * Keeps the trace if the request is slow
+     */
+    void finishTrace(final Trace trace) {
+        service.slowTraces().offer(trace);
+    }
+
+    Response replicationPort() {
+        return Response.ok(String.valueOf(service.replicationPort()));
+    }
+
+    /**
+     * External GET renders the members, PUT rebalances the cluster to the members listed
+     * in the body, one URL per line. The entities are taken to be placed on as many members
+     * as {@code replicas} says, all of them by default. Internal requests are the coordinator's
+     * ones: GET gives the state of the transfer from this node as the status, PUT takes this
+     * node through the phase of the rebalancing.
+     */
+    Response topology(final Request request, final String phase, final String replicasParam,
             final boolean isInternal) {
-        if (isBadParameter(id)) {
+        try {
+            switch (request.getMethod()) {
+                case METHOD_GET:
+                    return isInternal ? transferState() : Response.ok(rebalancer.render());
+                case METHOD_PUT:
+                    return isInternal
+                            ? rebalancingPhase(phase, bodyText(request))
+                            : rebalance(request, replicasParam);
+                default:
+                    return Responses.methodNotAllowed();
+            }
+        } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+            log.warn("Malformed topology request: {}", e.getMessage());
             return Responses.badRequest();
         }
+    }
+
+    private Response transferState() {
+        switch (rebalancer.transferState()) {
+            case DONE: return Response.ok(Response.EMPTY);
+            case RUNNING: return Responses.accepted();
+            default: return Responses.internalServerError();
+        }
+    }
+
+    private Response rebalancingPhase(final String phase, final String members) {
+        if (isBadParameter(phase)) {
+            return Responses.badRequest();
+        }
+        return rebalancer.onPhase(phase, members)
+                ? Response.ok(Response.EMPTY)
+                : Responses.conflict();
+    }
+
+    private Response rebalance(final Request request, final String replicasParam) {
+        final List<String> members = Arrays.stream(bodyText(request).split("\\s+"))
+                .filter(member -> !member.isEmpty())
+                .collect(Collectors.toList());
+        final int replicasPerKey = isBadParameter(replicasParam)
+                ? Rebalancer.ALL_REPLICAS
+                : Integer.parseInt(replicasParam);
+        return rebalancer.rebalance(members, replicasPerKey)
+                ? Responses.accepted()
+                : Responses.conflict();
+    }
+
+    private static String bodyText(final Request request) {
+        if (request.getBody() == null) {
+            throw new IllegalArgumentException("Empty body");
+        }
+        return new String(request.getBody(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Overloaded node rejects the request at once with 503, see {@link AdmissionController}
+     */
+    private CompletableFuture<Response> admit(final Supplier<CompletableFuture<Response>> handler) {
+        if (!admissionController.tryAcquire()) {
+            return CompletableFuture.completedFuture(Responses.serviceUnavailable());
+        }
+        return handler.get().whenComplete((response, e) -> {
+            admissionController.release();
+            if (response != null) {
+                requestMetrics.responses(response.getStatus()).increment();
+            }
+        });
+    }
+
+    CompletableFuture<Response> entity(final Request request, final String id,
+            final String replicasParam, final boolean isInternal, final Trace trace) {
+        return admit(() -> handleEntityRequest(request, id, replicasParam, isInternal, trace));
+    }
+
+    private CompletableFuture<Response> handleEntityRequest(final Request request, final String id,
+            final String replicasParam, final boolean isInternal, final Trace trace) {
+        if (isBadParameter(id)) {
+            return CompletableFuture.completedFuture(Responses.badRequest());
+        }
+        final EntityRequestEvent event = EntityRequestEvent.start();
+        final Key key = Key.of(id);
         try {
             final ReplicationFactor replicationFactor =
                     isInternal ? ReplicationFactor.single() : parseReplicationFactor(replicasParam);
-            return handleEntity(request, id, replicationFactor);
-        } catch (IllegalArgumentException __) {
+            final LatencyHistogram latency = requestMetrics.latency(
+                    request.getMethod(), methodName(request), replicationFactor);
+            trace.record("parse", null, trace.startNanos());
+            final long startTime = System.nanoTime();
+            return handleEntity(request, key, replicationFactor, trace)
+                    .exceptionally(e -> errorResponse(e, isInternal))
+                    .whenComplete((response, e) -> {
+                        latency.record(System.nanoTime() - startTime);
+                        event.complete(methodName(request), key.getBytes().length,
+                                valueSize(request, response),
+                                replicationFactor.ack, replicationFactor.from, isInternal,
+                                response == null ? 0 : response.getStatus());
+                    });
+        } catch (Exception ex) {
+            return CompletableFuture.completedFuture(errorResponse(ex, isInternal));
+        }
+    }
+
+    /**
+     * @return size of the value put or got
+     */
+    private static int valueSize(final Request request, @Nullable final Response response) {
+        final byte[] body = request.getMethod() == METHOD_PUT
+                ? request.getBody()
+                : response == null ? null : response.getBody();
+        return body == null ? 0 : body.length;
+    }
+
+    private static String methodName(final Request request) {
+        switch (request.getMethod()) {
+            case METHOD_GET: return "GET";
+            case METHOD_POST: return "POST";
+            case METHOD_PUT: return "PUT";
+            case METHOD_DELETE: return "DELETE";
+            default: return "OTHER";
+        }
+    }
+
+    private static Response errorResponse(final Throwable error, final boolean isInternal) {
+        final Throwable cause = error instanceof CompletionException && error.getCause() != null
+                ? error.getCause()
+                : error;
+        if (cause instanceof IllegalArgumentException) {
             return Responses.badRequest();
-        } catch (DeletedEntityException __) {
+        } else if (cause instanceof DeletedEntityException) {
             return isInternal ? Responses.noContent() : Responses.notFound();
-        } catch (NotEnoughReplicasException __) {
+        } else if (cause instanceof NoSuchElementException) {
+            return Responses.notFound();
+        } else if (cause instanceof NotEnoughReplicasException) {
             return Responses.notEnoughReplicas();
-        } catch (Exception ex) {
-            log.error("Unexpected exception occurred!", ex);
+        } else if (cause instanceof OverloadedException) {
+            return Responses.serviceUnavailable();
+        } else {
+            log.error("Unexpected exception occurred!", cause);
             return Responses.internalServerError();
         }
     }
 
+    CompletableFuture<Response> batch(final Request request, final String replicasParam) {
+        return admit(() -> handleBatchRequest(request, replicasParam));
+    }
+
+    private CompletableFuture<Response> handleBatchRequest(final Request request,
+            final String replicasParam) {
+        try {
+            final ReplicationFactor replicationFactor = parseReplicationFactor(replicasParam);
+            return handleBatch(request, replicationFactor)
+                    .exceptionally(e -> errorResponse(e, false));
+        } catch (Exception ex) {
+            return CompletableFuture.completedFuture(errorResponse(ex, false));
+        }
+    }
+
+    private CompletableFuture<Response> handleBatch(final Request request,
+            final ReplicationFactor rf) {
+        switch (request.getMethod()) {
+            case METHOD_POST: return handleBatchGet(request, rf);
+            case METHOD_PUT: return handleBatchPut(request, rf);
+            case METHOD_DELETE: return handleBatchDelete(request, rf);
+            default: return CompletableFuture.completedFuture(Responses.methodNotAllowed());
+        }
+    }
+
+    private CompletableFuture<Response> handleBatchGet(final Request request,
+            final ReplicationFactor rf) {
+        final List<Key> keys = BatchCodec.decodeKeys(request.getBody());
+        return gateway.getEntities(keys, rf)
+                .thenApply(results -> Response.ok(BatchCodec.encodeResults(results, 200)));
+    }
+
+    private CompletableFuture<Response> handleBatchPut(final Request request,
+            final ReplicationFactor rf) {
+        final List<Key> keys = new ArrayList<>();
+        final List<byte[]> values = new ArrayList<>();
+        BatchCodec.decodeEntries(request.getBody(), keys, values);
+        return gateway.putEntities(keys, values, rf)
+                .thenApply(results -> Response.ok(BatchCodec.encodeResults(results, 201)));
+    }
+
+    private CompletableFuture<Response> handleBatchDelete(final Request request,
+            final ReplicationFactor rf) {
+        final List<Key> keys = BatchCodec.decodeKeys(request.getBody());
+        return gateway.deleteEntities(keys, rf)
+                .thenApply(results -> Response.ok(BatchCodec.encodeResults(results, 202)));
+    }
+
+    CompletableFuture<Response> bulk(final Request request, final String replicasParam) {
+        return admit(() -> handleBulkRequest(request, replicasParam));
+    }
+
+    /**
+     * Records are in the format of the batch PUT requests, see {@link BatchCodec}, there is
+     * no response for each of them though: the response is 201 if all of them are stored
+     * on enough replicas and 504 otherwise
+     */
+    private CompletableFuture<Response> handleBulkRequest(final Request request,
+            final String replicasParam) {
+        if (request.getMethod() != METHOD_PUT) {
+            return CompletableFuture.completedFuture(Responses.methodNotAllowed());
+        }
+        try {
+            final ReplicationFactor replicationFactor = parseReplicationFactor(replicasParam);
+            final List<Key> keys = new ArrayList<>();
+            final List<byte[]> values = new ArrayList<>();
+            BatchCodec.decodeEntries(request.getBody(), keys, values);
+            return gateway.bulkPutEntities(keys, values, replicationFactor)
+                    .thenApply(failedCount -> {
+                        bulkRecords.add(keys.size() - failedCount);
+                        if (failedCount > 0) {
+                            log.warn("{} of {} bulk records are not stored on enough replicas",
+                                    failedCount, keys.size());
+                            return Responses.notEnoughReplicas();
+                        } else {
+                            return Responses.created();
+                        }
+                    })
+                    .exceptionally(e -> errorResponse(e, false));
+        } catch (Exception ex) {
+            return CompletableFuture.completedFuture(errorResponse(ex, false));
+        }
+    }
+
     private static boolean isBadParameter(final String param) {
         return param == null || param.isEmpty();
     }
 
     private ReplicationFactor parseReplicationFactor(final String replicasParam) {
         if (isBadParameter(replicasParam)) {
-            return ReplicationFactor.quorum(replicas.size());
+            return ReplicationFactor.quorum(gateway.replicasCount());
         } else {
             final ReplicationFactor result = ReplicationFactor.parse(replicasParam);
-            if (result == null || result.from > replicas.size()) {
+            if (result == null || result.from > gateway.replicasCount()) {
                 throw new IllegalArgumentException();
             } else return result;
         }
     }
 
-    private Response handleEntity(final Request request, final String id,
-            final ReplicationFactor rf) {
+    private CompletableFuture<Response> handleEntity(final Request request, final Key key,
+            final ReplicationFactor rf, final Trace trace) {
         switch (request.getMethod()) {
-            case METHOD_GET: return handleGetEntity(id, rf);
-            case METHOD_PUT: return handlePutEntity(id, request, rf);
-            case METHOD_DELETE: return handleDeleteEntity(id, rf);
-            default: return Responses.methodNotAllowed();
+            case METHOD_GET: return handleGetEntity(key, rf, trace);
+            case METHOD_PUT: return handlePutEntity(key, request, rf, trace);
+            case METHOD_DELETE: return handleDeleteEntity(key, rf, trace);
+            default: return CompletableFuture.completedFuture(Responses.methodNotAllowed());
         }
     }
 
-    private Response handleGetEntity(final String entityId, final ReplicationFactor rf) {
-        try {
-            byte[] value = gateway.getEntity(entityId, rf);
-            return Response.ok(value);
-        } catch (NoSuchElementException ex) {
-            return Responses.notFound();
-        }
+    private CompletableFuture<Response> handleGetEntity(final Key entityId,
+            final ReplicationFactor rf, final Trace trace) {
+        return gateway.getEntity(entityId, rf, trace).thenApply(Response::ok);
     }
 
-    private Response handlePutEntity(final String entityId, final Request request,
-            final ReplicationFactor rf) {
-        gateway.putEntity(entityId, request.getBody(), rf);
-        return Responses.created();
+    private CompletableFuture<Response> handlePutEntity(final Key entityId,
+            final Request request, final ReplicationFactor rf, final Trace trace) {
+        return gateway.putEntity(entityId, request.getBody(), rf, trace)
+                .thenApply(__ -> Responses.created());
     }
 
-    private Response handleDeleteEntity(final String entityId, final ReplicationFactor rf) {
-        gateway.deleteEntity(entityId, rf);
-        return Responses.accepted();
+    private CompletableFuture<Response> handleDeleteEntity(final Key entityId,
+            final ReplicationFactor rf, final Trace trace) {
+        return gateway.deleteEntity(entityId, rf, trace)
+                .thenApply(__ -> Responses.accepted());
     }
 }
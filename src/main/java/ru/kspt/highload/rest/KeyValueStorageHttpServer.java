@@ -1,12 +1,19 @@
 package ru.kspt.highload.rest;
 
+import lombok.extern.slf4j.Slf4j;
 import one.nio.http.*;
+import one.nio.net.Socket;
+import ru.kspt.highload.tracing.Trace;
 
 import java.io.IOException;
 
 import static ru.kspt.highload.service.Replica.INTERNAL_REQUESTS_HTTP_HEADER;
 import static ru.kspt.highload.service.Replica.INTERNAL_REQUESTS_HTTP_HEADER_VALUE;
+import static ru.kspt.highload.service.Replica.REPLICATION_PORT_ENDPOINT;
+import static ru.kspt.highload.service.Replica.TOPOLOGY_ENDPOINT;
+import static ru.kspt.highload.service.Replica.TRACE_ID_HTTP_HEADER;
 
+@Slf4j
 public class KeyValueStorageHttpServer extends HttpServer {
     private final KeyValueStorageController controller;
 
@@ -21,14 +28,125 @@ public class KeyValueStorageHttpServer extends HttpServer {
         return controller.status();
     }
 
+    /**
+     * Entity requests are served asynchronously, the response is sent once the replicas answer.
+     * Every request is traced, the trace ID is taken from the coordinator if it is given.
+     */
     @Path("/v0/entity")
-    public Response handleEntity(final Request request,
+    public void handleEntity(final Request request, final HttpSession session,
             @Param("id") final String id,
             @Param("replicas") final String replicas,
+            @Header(INTERNAL_REQUESTS_HTTP_HEADER) final String internal,
+            @Header(TRACE_ID_HTTP_HEADER) final String traceId) {
+        final Trace trace = controller.startTrace(request, traceId);
+        controller.entity(request, id, replicas, isInternal(internal), trace)
+                .thenAccept(response -> {
+                    final long writeStart = System.nanoTime();
+                    sendResponse(session, response);
+                    trace.record("write", null, writeStart);
+                    controller.finishTrace(trace);
+                });
+    }
+
+    /**
+     * POST gets, PUT upserts and DELETE removes all the entities listed in the request body,
+     * see {@link BatchCodec} for the format
+     */
+    @Path("/v0/batch")
+    public void handleBatch(final Request request, final HttpSession session,
+            @Param("replicas") final String replicas) {
+        controller.batch(request, replicas)
+                .thenAccept(response -> sendResponse(session, response));
+    }
+
+    /**
+     * PUT stores all the records listed in the request body at once, bypassing the per-key
+     * quorums, see {@link BatchCodec} for the format. Large imports are to be split into
+     * a sequence of such requests.
+     */
+    @Path("/v0/bulk")
+    public void handleBulk(final Request request, final HttpSession session,
+            @Param("replicas") final String replicas) {
+        controller.bulk(request, replicas)
+                .thenAccept(response -> sendResponse(session, response));
+    }
+
+    /**
+     * Metrics of this node in the Prometheus text format
+     */
+    @Path("/v0/metrics")
+    public Response handleMetrics(final Request request) {
+        return controller.metrics();
+    }
+
+    /**
+     * Internals of the local storage in the Prometheus text format. Counting the entries
+     * scans the whole table, which is done off the selector thread.
+     */
+    @Path("/v0/storage/stats")
+    public void handleStorageStats(final Request request, final HttpSession session) {
+        controller.storageStats()
+                .thenAccept(response -> sendResponse(session, response));
+    }
+
+    /**
+     * Latest traces of the slow requests served by this node
+     */
+    @Path("/v0/traces")
+    public Response handleTraces(final Request request) {
+        return controller.traces();
+    }
+
+    /**
+     * GET streams a consistent snapshot of the local storage as a zip archive, taken without
+     * stopping the writes. The node restores it at startup from
+     * {@value ru.kspt.highload.dao.H2Dao#RESTORE_FILE_NAME} in its data directory.
+     */
+    @Path("/v0/snapshot")
+    public void handleSnapshot(final Request request, final HttpSession session) {
+        controller.snapshot(request).thenAccept(response -> {
+            try {
+                sendResponse(session, response);
+            } finally {
+                if (response instanceof FileResponse) {
+                    ((FileResponse) response).discardUnlessSending();
+                }
+            }
+        });
+    }
+
+    /**
+     * Members of the cluster, which are changed at runtime by rebalancing the cluster
+     */
+    @Path(TOPOLOGY_ENDPOINT)
+    public Response handleTopology(final Request request,
+            @Param("phase") final String phase,
+            @Param("replicas") final String replicas,
+            @Header(INTERNAL_REQUESTS_HTTP_HEADER) final String internal) {
+        return controller.topology(request, phase, replicas, isInternal(internal));
+    }
+
+    @Path(REPLICATION_PORT_ENDPOINT)
+    public Response handleReplicationPort(final Request request,
             @Header(INTERNAL_REQUESTS_HTTP_HEADER) final String internal) {
-        final boolean isInternal =
-                internal != null && internal.equals(INTERNAL_REQUESTS_HTTP_HEADER_VALUE);
-        return controller.entity(request, id, replicas, isInternal);
+        return isInternal(internal) ? controller.replicationPort() : Responses.badRequest();
+    }
+
+    private static void sendResponse(final HttpSession session, final Response response) {
+        try {
+            session.sendResponse(response);
+        } catch (IOException e) {
+            log.warn("Failed to send response: {}", e.getMessage());
+        }
+    }
+
+    private static boolean isInternal(final String internalHeader) {
+        return internalHeader != null && internalHeader.equals(INTERNAL_REQUESTS_HTTP_HEADER_VALUE);
+    }
+
+    @Override
+    public HttpSession createSession(final Socket socket) {
+        return new KeyValueStorageHttpSession(socket, this);
     }
 
     @Override
@@ -0,0 +1,52 @@
+package ru.kspt.highload.rest;
+
+import one.nio.http.HttpServer;
+import one.nio.http.HttpSession;
+import one.nio.http.Response;
+import one.nio.net.Socket;
+
+import java.io.IOException;
+
+/**
+ * Writes large response bodies to the socket as they are, instead of copying them along with
+ * the headers into a single array, which is what {@link Response#toBytes(boolean)} does.
+ * Small responses are still written at once, since a copy is cheaper than an extra write.
+ * File responses are sent by sendfile, see {@link FileResponse}.
+ */
+class KeyValueStorageHttpSession extends HttpSession {
+    private static final int MIN_SEPARATE_BODY_LENGTH = 4 * 1024;
+
+    KeyValueStorageHttpSession(final Socket socket, final HttpServer server) {
+        super(socket, server);
+    }
+
+    @Override
+    protected void writeResponse(final Response response, final boolean includeBody)
+            throws IOException {
+        if (response instanceof FileResponse) {
+            writeFileResponse((FileResponse) response, includeBody);
+            return;
+        }
+        final byte[] body = response.getBody();
+        if (!includeBody || body == null || body.length < MIN_SEPARATE_BODY_LENGTH) {
+            super.writeResponse(response, includeBody);
+        } else {
+            final byte[] headers = response.toBytes(false);
+            super.write(headers, 0, headers.length);
+            super.write(body, 0, body.length);
+        }
+    }
+
+    /**
+     * The body is released by the session once it is handed over, even if it fails to be
+     * written. Otherwise the response is to be discarded by the caller.
+     */
+    private void writeFileResponse(final FileResponse response, final boolean includeBody)
+            throws IOException {
+        final byte[] headers = response.toBytes(false);
+        super.write(headers, 0, headers.length);
+        if (includeBody) {
+            super.write(response.body());
+        }
+    }
+}
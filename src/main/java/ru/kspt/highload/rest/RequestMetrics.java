@@ -0,0 +1,80 @@
+package ru.kspt.highload.rest;
+
+import ru.kspt.highload.metrics.LatencyHistogram;
+import ru.kspt.highload.metrics.MetricsRegistry;
+import ru.kspt.highload.service.ReplicationFactor;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Per-request instruments, which are looked up in the {@link MetricsRegistry} once for every
+ * status and for every method and replication factor, and kept in arrays indexed by them,
+ * so the requests only update them
+ */
+class RequestMetrics {
+    private static final int MAX_STATUS = 600;
+
+    /**
+     * one-nio method constants are below this
+     */
+    private static final int MAX_METHOD = 16;
+
+    /**
+     * Instruments of the replication factors with more replicas are looked up every time
+     */
+    private static final int MAX_CACHED_REPLICAS = 8;
+
+    private final MetricsRegistry metrics;
+
+    private final AtomicReferenceArray<LongAdder> responses =
+            new AtomicReferenceArray<>(MAX_STATUS);
+
+    private final AtomicReferenceArray<LatencyHistogram> latencies =
+            new AtomicReferenceArray<>(MAX_METHOD * MAX_CACHED_REPLICAS * MAX_CACHED_REPLICAS);
+
+    RequestMetrics(final MetricsRegistry metrics) {
+        this.metrics = metrics;
+    }
+
+    LongAdder responses(final int status) {
+        if (status < 0 || status >= MAX_STATUS) {
+            return lookUpResponses(status);
+        }
+        LongAdder counter = responses.get(status);
+        if (counter == null) {
+            // the registry returns the same counter to the racing threads
+            counter = lookUpResponses(status);
+            responses.set(status, counter);
+        }
+        return counter;
+    }
+
+    private LongAdder lookUpResponses(final int status) {
+        return metrics.counter("kvstorage_responses_total", "status", String.valueOf(status));
+    }
+
+    /**
+     * @param method one-nio method constant
+     */
+    LatencyHistogram latency(final int method, final String methodName,
+            final ReplicationFactor rf) {
+        if (method < 0 || method >= MAX_METHOD
+                || rf.ack >= MAX_CACHED_REPLICAS || rf.from >= MAX_CACHED_REPLICAS) {
+            return lookUpLatency(methodName, rf);
+        }
+        final int index = (method * MAX_CACHED_REPLICAS + rf.ack) * MAX_CACHED_REPLICAS + rf.from;
+        LatencyHistogram histogram = latencies.get(index);
+        if (histogram == null) {
+            histogram = lookUpLatency(methodName, rf);
+            latencies.set(index, histogram);
+        }
+        return histogram;
+    }
+
+    private LatencyHistogram lookUpLatency(final String methodName, final ReplicationFactor rf) {
+        return metrics.histogram("kvstorage_request_latency_seconds",
+                "method", methodName,
+                "replicas", rf.ack + "/" + rf.from);
+    }
+}
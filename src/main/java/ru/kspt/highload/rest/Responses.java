@@ -47,6 +47,13 @@ class Responses {
         return new Response(Response.METHOD_NOT_ALLOWED, Response.EMPTY);
     }
 
+    /**
+     * HTTP code: 409
+     */
+    Response conflict() {
+        return new Response("409 Conflict", Response.EMPTY);
+    }
+
     /**
      * HTTP code: 500
      */
@@ -54,6 +61,15 @@ class Responses {
         return new Response(Response.INTERNAL_ERROR, Response.EMPTY);
     }
 
+    /**
+     * HTTP code: 503
+     */
+    Response serviceUnavailable() {
+        final Response response = new Response(Response.SERVICE_UNAVAILABLE, Response.EMPTY);
+        response.addHeader("Retry-After: 1");
+        return response;
+    }
+
     /**
      * HTTP code: 504
      */
@@ -0,0 +1,144 @@
+package ru.kspt.highload.service;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Load shedding with the CoDel control law of Nichols and Jacobson. Tracks the queueing delay
+ * of the local storage tasks: once it has stayed above the target for a whole interval, the queue
+ * is standing rather than absorbing a burst, and the controller starts dropping. It rejects
+ * a request at once, then the next ones after {@code interval / sqrt(n)} for the n-th drop, so
+ * the drop rate grows gradually while the delay stays above the target. The requests between
+ * the drops are admitted and keep sampling the delay, dropping stops once a sample falls below
+ * the target, or once nothing has been in flight nor above the target for an interval: the queue
+ * is empty then, and the rejected requests would never sample it. Dropping which resumes soon
+ * after it stopped starts near the previous rate, since the load is likely the same. While
+ * dropping, tasks queued for longer than the interval are dropped as well. The number of requests in flight is limited too.
+ * <p>
+ * Nothing is locked on the hot path, only the changes of the dropping state are.
+ */
+public class AdmissionController {
+    private final long targetDelayNanos;
+
+    private final long intervalNanos;
+
+    private final int maxRequestsInFlight;
+
+    private final AtomicInteger requestsInFlight = new AtomicInteger();
+
+    private final LongAdder rejectedCount = new LongAdder();
+
+    private volatile boolean isAboveTarget;
+
+    /**
+     * Time the delay is to stay above the target until, for dropping to start
+     */
+    private volatile long firstAboveNanos;
+
+    /**
+     * Time the delay was last seen above the target at
+     */
+    private volatile long lastAboveNanos;
+
+    private volatile boolean isDropping;
+
+    private volatile long dropNextNanos;
+
+    private int dropCount;
+
+    public AdmissionController(final Duration targetDelay, final Duration interval,
+            final int maxRequestsInFlight) {
+        this.targetDelayNanos = targetDelay.toNanos();
+        this.intervalNanos = interval.toNanos();
+        this.maxRequestsInFlight = maxRequestsInFlight;
+    }
+
+    /**
+     * @return {@code true} if the request is admitted, in which case {@link #release()}
+     * must be called once it is completed
+     */
+    public boolean tryAcquire() {
+        if (isDropping && System.nanoTime() - dropNextNanos >= 0 && tryDrop(System.nanoTime())) {
+            rejectedCount.increment();
+            return false;
+        }
+        if (requestsInFlight.incrementAndGet() > maxRequestsInFlight) {
+            requestsInFlight.decrementAndGet();
+            rejectedCount.increment();
+            return false;
+        }
+        return true;
+    }
+
+    public void release() {
+        requestsInFlight.decrementAndGet();
+    }
+
+    /**
+     * @return {@code true} if the task waited for too long and is to be dropped
+     */
+    boolean onQueueDelay(final long delayNanos) {
+        if (delayNanos < targetDelayNanos) {
+            if (isAboveTarget || isDropping) {
+                onBelowTarget();
+            }
+            return false;
+        }
+        final long nowNanos = System.nanoTime();
+        lastAboveNanos = nowNanos;
+        if (!isDropping) {
+            onAboveTarget(nowNanos);
+        }
+        return isDropping && delayNanos > intervalNanos;
+    }
+
+    private synchronized void onBelowTarget() {
+        isAboveTarget = false;
+        isDropping = false;
+    }
+
+    private synchronized void onAboveTarget(final long nowNanos) {
+        if (isDropping) {
+            return;
+        }
+        if (!isAboveTarget) {
+            isAboveTarget = true;
+            firstAboveNanos = nowNanos + intervalNanos;
+        } else if (nowNanos - firstAboveNanos >= 0) {
+            // like CoDel, resume near the previous drop rate if dropping stopped recently
+            final boolean isRecent = nowNanos - dropNextNanos < 16 * intervalNanos;
+            dropCount = dropCount > 2 && isRecent ? dropCount - 2 : 0;
+            dropNextNanos = nowNanos;
+            isDropping = true;
+        }
+    }
+
+    /**
+     * @return {@code true} if it is time for the next drop, which is scheduled then
+     */
+    private synchronized boolean tryDrop(final long nowNanos) {
+        if (!isDropping || nowNanos - dropNextNanos < 0) {
+            return false;
+        }
+        if (requestsInFlight.get() == 0 && nowNanos - lastAboveNanos >= intervalNanos) {
+            onBelowTarget();
+            return false;
+        }
+        dropCount++;
+        dropNextNanos = nowNanos + (long) (intervalNanos / Math.sqrt(dropCount));
+        return true;
+    }
+
+    public boolean isOverloaded() {
+        return isDropping;
+    }
+
+    public int requestsInFlight() {
+        return requestsInFlight.get();
+    }
+
+    public long rejectedCount() {
+        return rejectedCount.sum();
+    }
+}
@@ -0,0 +1,58 @@
+package ru.kspt.highload.service;
+
+import lombok.RequiredArgsConstructor;
+import org.jetbrains.annotations.Nullable;
+import ru.kspt.highload.dto.Key;
+import ru.kspt.highload.dto.ReplicaResponse;
+import ru.kspt.highload.replication.ReplicationHandler;
+
+import java.util.List;
+import java.util.function.Supplier;
+
+/**
+ * Admits the replication requests from the other nodes by the same {@link AdmissionController}
+ * as the client requests, since both are served by the same local storage. A rejected request
+ * fails at once, so the coordinator counts the node out of the quorum instead of waiting.
+ */
+@RequiredArgsConstructor
+class AdmittingReplicationHandler implements ReplicationHandler {
+    private final ReplicationHandler handler;
+
+    private final AdmissionController admissionController;
+
+    @Override
+    public ReplicaResponse getEntity(final Key key) {
+        return admitted(() -> handler.getEntity(key));
+    }
+
+    @Override
+    public ReplicaResponse putEntity(final Key key, final byte[] value) {
+        return admitted(() -> handler.putEntity(key, value));
+    }
+
+    @Override
+    public ReplicaResponse deleteEntity(final Key key) {
+        return admitted(() -> handler.deleteEntity(key));
+    }
+
+    @Override
+    public ReplicaResponse putEntities(final List<Key> keys, final List<byte[]> values) {
+        return admitted(() -> handler.putEntities(keys, values));
+    }
+
+    @Override
+    public ReplicaResponse transferEntity(final Key key, @Nullable final byte[] value) {
+        return admitted(() -> handler.transferEntity(key, value));
+    }
+
+    private ReplicaResponse admitted(final Supplier<ReplicaResponse> request) {
+        if (!admissionController.tryAcquire()) {
+            return ReplicaResponse.fail();
+        }
+        try {
+            return request.get();
+        } finally {
+            admissionController.release();
+        }
+    }
+}
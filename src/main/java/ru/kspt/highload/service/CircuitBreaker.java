@@ -0,0 +1,66 @@
+package ru.kspt.highload.service;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Stops sending requests to a replica after several consecutive failures. While open, lets
+ * a single probe request through once in a while and closes again if it succeeds.
+ */
+class CircuitBreaker {
+    enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final int failuresThreshold;
+
+    private final Duration probeInterval;
+
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+
+    private final AtomicReference<State> state = new AtomicReference<>(State.CLOSED);
+
+    private volatile long openedAtNanos;
+
+    CircuitBreaker(final int failuresThreshold, final Duration probeInterval) {
+        this.failuresThreshold = failuresThreshold;
+        this.probeInterval = probeInterval;
+    }
+
+    State state() {
+        return state.get();
+    }
+
+    boolean allowRequest() {
+        switch (state.get()) {
+            case CLOSED:
+                return true;
+            case OPEN:
+                return System.nanoTime() - openedAtNanos >= probeInterval.toNanos()
+                        && state.compareAndSet(State.OPEN, State.HALF_OPEN);
+            default:
+                return false; // the probe is still in flight
+        }
+    }
+
+    void onSuccess() {
+        consecutiveFailures.set(0);
+        state.set(State.CLOSED);
+    }
+
+    /**
+     * @return {@code true} if the breaker has just been opened
+     */
+    boolean onFailure() {
+        final int failures = consecutiveFailures.incrementAndGet();
+        final State current = state.get();
+        if (current == State.HALF_OPEN
+                || (current == State.CLOSED && failures >= failuresThreshold)) {
+            openedAtNanos = System.nanoTime();
+            return state.compareAndSet(current, State.OPEN) && current == State.CLOSED;
+        } else {
+            return false;
+        }
+    }
+}
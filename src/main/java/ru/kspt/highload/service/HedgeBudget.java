@@ -0,0 +1,32 @@
+package ru.kspt.highload.service;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Token bucket limiting the share of hedged (speculative) replica requests
+ */
+class HedgeBudget {
+    private static final long TOKEN = 1000;
+
+    private static final double MAX_HEDGED_SHARE = 0.05;
+
+    private static final long TOKENS_PER_REQUEST = (long) (MAX_HEDGED_SHARE * TOKEN);
+
+    private static final long MAX_TOKENS = 10 * TOKEN;
+
+    private final AtomicLong tokens = new AtomicLong();
+
+    void onRequestsSent(final int requestsCount) {
+        final long deposit = requestsCount * TOKENS_PER_REQUEST;
+        tokens.accumulateAndGet(deposit, (current, delta) -> Math.min(MAX_TOKENS, current + delta));
+    }
+
+    boolean tryAcquire() {
+        long current;
+        do {
+            current = tokens.get();
+            if (current < TOKEN) return false;
+        } while (!tokens.compareAndSet(current, current - TOKEN));
+        return true;
+    }
+}
@@ -1,97 +1,249 @@
 package ru.kspt.highload.service;
 
+import lombok.Value;
 import lombok.extern.slf4j.Slf4j;
 import org.jetbrains.annotations.Nullable;
 import ru.kspt.highload.DeletedEntityException;
 import ru.kspt.highload.NotEnoughReplicasException;
-import ru.kspt.highload.dto.PayloadStatus;
+import ru.kspt.highload.dto.Key;
 import ru.kspt.highload.dto.ReplicaResponse;
 import ru.kspt.highload.dto.ResponseStatus;
+import ru.kspt.highload.metrics.MetricsRegistry;
+import ru.kspt.highload.replication.BufferPool;
+import ru.kspt.highload.tracing.Trace;
 
-import java.util.Arrays;
-import java.util.List;
-import java.util.NoSuchElementException;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiFunction;
 import java.util.function.Function;
+import java.util.function.IntFunction;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 
 @Slf4j
 public class KeyValueStorageGateway {
     private final KeyValueStorageService localService;
 
-    private final List<Replica> replicas;
+    private volatile Topology topology;
 
-    private final ReplicaResolver resolver;
+    private final LocalReplicationHandler localHandler;
 
     private final TaskScheduler taskScheduler;
 
+    private final MetricsRegistry metrics;
+
+    private final SingleFlight<GetRequest, byte[]> getRequests = new SingleFlight<>();
+
+    private final LongAdder dualWriteAcks;
+
+    private final LongAdder dualWriteFailures;
+
     public KeyValueStorageGateway(final KeyValueStorageService localService,
-            final List<Replica> replicas) {
+            final List<Replica> replicas, final AdmissionController admissionController,
+            final MetricsRegistry metrics) {
         this.localService = localService;
-        this.replicas = replicas;
-        this.resolver = new ReplicaResolver(replicas);
-        this.taskScheduler = new TaskScheduler(replicas.size());
+        this.topology = Topology.of(replicas);
+        this.localHandler = new LocalReplicationHandler(localService);
+        this.taskScheduler = new TaskScheduler(admissionController);
+        this.metrics = metrics;
+        this.dualWriteAcks = metrics.counter("kvstorage_rebalance_dual_writes_total",
+                "result", "ack");
+        this.dualWriteFailures = metrics.counter("kvstorage_rebalance_dual_writes_total",
+                "result", "nack");
+        metrics.gauge("kvstorage_local_queue_size", taskScheduler::queuedTasksCount);
+        metrics.counter("kvstorage_coalesced_get_requests_total", getRequests::coalescedCallsCount);
+        final BufferPool bufferPool = localService.bufferPool();
+        metrics.counter("kvstorage_buffer_pool_acquired_total", bufferPool::acquiredCount);
+        metrics.counter("kvstorage_buffer_pool_misses_total", bufferPool::emptyClassMissesCount,
+                "reason", "empty");
+        metrics.counter("kvstorage_buffer_pool_misses_total", bufferPool::oversizedMissesCount,
+                "reason", "oversized");
+        metrics.gauge("kvstorage_buffer_pool_allocated_bytes", bufferPool::allocatedBytes);
+        metrics.gauge("kvstorage_buffer_pool_pooled_bytes", bufferPool::pooledBytes);
     }
 
     public void start() {
         taskScheduler.start();
-        replicas.forEach(Replica::start);
+        topology.replicas().forEach(replica -> replica.start(metrics, localService.bufferPool()));
     }
 
-    public void stop() {
-        replicas.forEach(Replica::stop);
+    public synchronized void stop() {
+        topology.allReplicas().forEach(Replica::stop);
         taskScheduler.stop();
     }
 
-    public byte[] getEntity(final String key, final ReplicationFactor rf)
-            throws NoSuchElementException, DeletedEntityException, NotEnoughReplicasException {
-        final ReplicaResponse localResponse = getEntityLocally(key);
-        if (rf.from == 1 && localResponse.responseStatus == ResponseStatus.ACK) {
-            if (localResponse.payloadStatus == PayloadStatus.FOUND) {
-                return localResponse.payload;
-            } else {
-                throw new NoSuchElementException();
-            }
-        } else {
-            return getEntityRemotely(key, rf, localResponse);
+    /**
+     * @return number of the current members of the cluster
+     */
+    public int replicasCount() {
+        return topology.size();
+    }
+
+    /**
+     * Renders the internals of the local storage, which scans the whole table, on the local
+     * executor, see {@link KeyValueStorageService#storageStats()}
+     */
+    public CompletableFuture<String> storageStats() {
+        return taskScheduler.supplyLocally(localService::storageStats);
+    }
+
+    Topology topology() {
+        return topology;
+    }
+
+    /**
+     * Starts sending the writes to the next members as well, the members not known yet are
+     * started. The current members are taken from the coordinator of the rebalancing, since
+     * a joining node may have been started with the next ones.
+     *
+     * @return the topology being rebalanced, or {@code null} if there is another rebalancing
+     */
+    @Nullable
+    synchronized Topology prepareRebalancing(final List<Replica> replicas,
+            final List<Replica> nextReplicas) {
+        if (topology.isRebalancing()) {
+            return topology.nextReplicas().equals(nextReplicas) ? topology : null;
         }
+        final Map<Replica, Replica> known = new HashMap<>();
+        topology.allReplicas().forEach(replica -> known.put(replica, replica));
+        final Function<Replica, Replica> startIfUnknown = replica ->
+                known.computeIfAbsent(replica, __ -> {
+                    replica.start(metrics, localService.bufferPool());
+                    return replica;
+                });
+        final List<Replica> current =
+                replicas.stream().map(startIfUnknown).collect(Collectors.toList());
+        final List<Replica> next =
+                nextReplicas.stream().map(startIfUnknown).collect(Collectors.toList());
+        final Topology previous = topology;
+        topology = Topology.of(current).rebalancingTo(next);
+        stopDropped(previous);
+        log.info("Rebalancing from {} to {}", current, next);
+        return topology;
     }
 
-    private ReplicaResponse getEntityLocally(final String key) {
-        try {
-            return ReplicaResponse.entityFound(localService.getEntity(key.getBytes()));
-        } catch (DeletedEntityException e) {
-            log.warn("Entity is deleted - rethrowing...");
-            throw e;
-        } catch (NoSuchElementException e) {
-            return ReplicaResponse.entityNotFound();
-        } catch (Exception e) {
-            log.error("Exception while trying to get entity locally", e);
-            return ReplicaResponse.fail();
+    /**
+     * Places the requests on the next members from now on, the other members are stopped
+     */
+    synchronized void completeRebalancing() {
+        final Topology previous = topology;
+        topology = previous.rebalanced();
+        stopDropped(previous);
+        log.info("Rebalanced to {}", topology.replicas());
+    }
+
+    /**
+     * Places the requests on the current members only, as they were before the rebalancing
+     */
+    synchronized void abortRebalancing() {
+        final Topology previous = topology;
+        topology = Topology.of(previous.replicas());
+        stopDropped(previous);
+        log.warn("Rebalancing to {} aborted", previous.nextReplicas());
+    }
+
+    private void stopDropped(final Topology previous) {
+        final Set<Replica> kept = topology.allReplicas();
+        previous.allReplicas().stream()
+                .filter(replica -> !kept.contains(replica))
+                .forEach(Replica::stop);
+    }
+
+    /**
+     * Concurrent requests for the same key and replication factor share a single replicas
+     * fan-out and its result, which is traced as a part of the first request only. A request
+     * shares only the fan-out started after it arrived, so it still reads the writes
+     * acknowledged before it.
+     *
+     * @return entity, or future failed with {@link NoSuchElementException},
+     * {@link DeletedEntityException} or {@link NotEnoughReplicasException}
+     */
+    public CompletableFuture<byte[]> getEntity(final Key key, final ReplicationFactor rf,
+            final Trace trace) {
+        if (rf.from == 1) {
+            return getEntityFromReplicas(key, rf, trace);
+        } else {
+            return getRequests.execute(new GetRequest(key, rf), trace.startNanos(),
+                    () -> getEntityFromReplicas(key, rf, trace));
         }
     }
 
-    private byte[] getEntityRemotely(final String key, final ReplicationFactor rf,
-            final ReplicaResponse localResponse) {
-        final List<ReplicaResponse> replicaResponses =
-                askReplicas(replica -> replica.requestGetEntity(key), key, rf);
-        if (localResponse.responseStatus == ResponseStatus.ACK) {
-            replicaResponses.add(localResponse);
+    private CompletableFuture<byte[]> getEntityFromReplicas(final Key key,
+            final ReplicationFactor rf, final Trace trace) {
+        return askReplicas(
+                () -> localHandler.getEntity(key),
+                replica -> replica.requestGetEntity(key, trace), key, rf, false, trace)
+                .thenApply(replicaResponses -> decideOnGetEntityResponses(rf.ack, replicaResponses));
+    }
+
+    /**
+     * Runs the request locally and on {@code rf.from - 1} remote replicas at the same time,
+     * so the local disk latency overlaps with the network one. Reads are hedged, writes are
+     * also sent to the next members of the key, if the cluster is being rebalanced,
+     * see {@link #dualWrite}.
+     *
+     * @return acknowledged responses
+     */
+    private CompletableFuture<List<ReplicaResponse>> askReplicas(
+            final Supplier<ReplicaResponse> localRequest,
+            final Function<Replica, CompletableFuture<ReplicaResponse>> request, final Key key,
+            final ReplicationFactor rf, final boolean isWrite, final Trace trace) {
+        final Topology topology = this.topology;
+        final List<Replica> remoteReplicas = rf.from == 1
+                ? Collections.emptyList()
+                : Arrays.stream(topology.chooseReplicasForKey(key, topology.size()))
+                        .filter(localService::isNotSelfReplica)
+                        .collect(Collectors.toList());
+        final int chosenCount = Math.min(rf.from - 1, remoteReplicas.size());
+        final List<Replica> chosenReplicas = remoteReplicas.subList(0, chosenCount);
+        if (isWrite && topology.isRebalancing()) {
+            // this node always gets the write, the chosen replicas get it as well
+            Arrays.stream(topology.chooseNextReplicasForKey(key, rf.from))
+                    .filter(localService::isNotSelfReplica)
+                    .filter(replica -> !chosenReplicas.contains(replica))
+                    .forEach(replica -> dualWrite(replica, request.apply(replica)
+                            .thenApply(Collections::singletonList)));
         }
-        return decideOnGetEntityResponses(rf.ack, replicaResponses);
+        if (rf.from == 1) {
+            return taskScheduler.supplyLocally(localRequest, trace).thenApply(localResponse ->
+                    localResponse.responseStatus == ResponseStatus.ACK
+                            ? Collections.singletonList(localResponse)
+                            : Collections.emptyList());
+        }
+        final List<Replica> spareReplicas = isWrite
+                ? Collections.emptyList()
+                : remoteReplicas.subList(chosenCount, remoteReplicas.size());
+        return taskScheduler.schedule(localRequest, request, chosenReplicas,
+                spareReplicas, rf.ack, trace);
     }
 
-    private List<ReplicaResponse> askReplicas(final Function<Replica, ReplicaResponse> request,
-            final String key, final ReplicationFactor rf) {
-        final List<Replica> chosenReplicas = Arrays
-                .stream(resolver.chooseReplicasForKey(key.getBytes(), rf.from))
-                .filter(localService::isNotSelfReplica)
-                .limit(rf.from - 1) // since one request was already served locally
-                .collect(Collectors.toList());
-        taskScheduler.schedule(request, chosenReplicas);
-        return taskScheduler.getEnoughResponses(new ReplicationFactor(rf.ack - 1, rf.from -1));
+    /**
+     * Tracks the write sent to a next member of the key, which the write is not placed on
+     * otherwise. Only the current placement counts towards the acknowledgements, the next
+     * members get the writes to keep up with the entries transferred to them, so nobody waits
+     * for their responses. A write reaches every next member of the key either way, whether
+     * it is sent for a single key or in a batch.
+     */
+    private void dualWrite(final Replica replica,
+            final CompletableFuture<List<ReplicaResponse>> responses) {
+        responses.whenComplete((keyResponses, e) -> {
+            if (e != null) {
+                dualWriteFailures.increment();
+                log.debug("Write to the next replica {} failed: {}", replica, e.getMessage());
+                return;
+            }
+            for (ReplicaResponse response : keyResponses) {
+                if (response.responseStatus == ResponseStatus.ACK) {
+                    dualWriteAcks.increment();
+                } else {
+                    dualWriteFailures.increment();
+                }
+            }
+        });
     }
 
-    private byte[] decideOnGetEntityResponses(final int requestedAcksCount,
+    private static byte[] decideOnGetEntityResponses(final int requestedAcksCount,
             final List<ReplicaResponse> replicaResponses) {
         if (replicaResponses.size() >= requestedAcksCount) {
             byte[] result = findEntity(replicaResponses);
@@ -106,7 +258,7 @@ public class KeyValueStorageGateway {
     }
 
     @Nullable
-    private byte[] findEntity(final List<ReplicaResponse> replicaResponses) {
+    static byte[] findEntity(final List<ReplicaResponse> replicaResponses) {
         byte[] result = null;
         for (ReplicaResponse response : replicaResponses) {
             switch (response.payloadStatus) {
@@ -120,61 +272,195 @@ public class KeyValueStorageGateway {
         return result;
     }
 
-    public void putEntity(final String key, final byte[] entity, final ReplicationFactor rf) {
-        final ReplicaResponse localResponse = putEntityLocally(key, entity);
-        if (rf.from != 1 || localResponse.responseStatus != ResponseStatus.ACK) {
-            putEntityRemotely(key, entity, rf, localResponse);
-        }
+    public long coalescedGetRequestsCount() {
+        return getRequests.coalescedCallsCount();
     }
 
-    private ReplicaResponse putEntityLocally(final String key, final byte[] entity) {
-        try {
-            localService.putEntity(key.getBytes(), entity);
-            return ReplicaResponse.success();
-        } catch (Exception e) {
-            log.warn("Exception while trying to put entity locally", e);
-            return ReplicaResponse.fail();
-        }
+    /**
+     * @return future failed with {@link NotEnoughReplicasException} if there are not enough
+     * replicas acknowledged
+     */
+    public CompletableFuture<Void> putEntity(final Key key, final byte[] entity,
+            final ReplicationFactor rf, final Trace trace) {
+        return askReplicas(
+                () -> localHandler.putEntity(key, entity),
+                replica -> replica.requestPutEntity(key, entity, trace), key, rf, true, trace)
+                .thenAccept(replicaResponses -> checkEnoughAcks(rf.ack, replicaResponses));
     }
 
-    private void putEntityRemotely(final String key, final byte[] value, final ReplicationFactor rf,
-            final ReplicaResponse localResponse) {
-        final List<ReplicaResponse> replicaResponses =
-                askReplicas(replica -> replica.requestPutEntity(key, value), key, rf);
-        if (localResponse.responseStatus == ResponseStatus.ACK) {
-            replicaResponses.add(localResponse);
-        }
-        if (replicaResponses.size() < rf.ack) {
+    /**
+     * @return future failed with {@link NotEnoughReplicasException} if there are not enough
+     * replicas acknowledged
+     */
+    public CompletableFuture<Void> deleteEntity(final Key key, final ReplicationFactor rf,
+            final Trace trace) {
+        return askReplicas(
+                () -> localHandler.deleteEntity(key),
+                replica -> replica.requestDeleteEntity(key, trace), key, rf, true, trace)
+                .thenAccept(replicaResponses -> checkEnoughAcks(rf.ack, replicaResponses));
+    }
+
+    private static void checkEnoughAcks(final int requestedAcksCount,
+            final List<ReplicaResponse> replicaResponses) {
+        if (replicaResponses.size() < requestedAcksCount) {
             throw new NotEnoughReplicasException();
         }
     }
 
-    public void deleteEntity(final String key, final ReplicationFactor rf) {
-        final ReplicaResponse localResponse = deleteEntityLocally(key);
-        if (rf.from != 1 || localResponse.responseStatus != ResponseStatus.ACK) {
-            deleteEntityRemotely(key, rf, localResponse);
-        }
+    /**
+     * @return for every key: found entity, not found (including deleted) one or failure,
+     * if there are not enough replicas acknowledged
+     */
+    public CompletableFuture<List<ReplicaResponse>> getEntities(final List<Key> keys,
+            final ReplicationFactor rf) {
+        return askReplicasInBatches(keys, rf, false,
+                (replica, indices) -> replica.requestGetEntities(subList(keys, indices)),
+                eachKey(i -> localHandler.getEntity(keys.get(i))))
+                .thenApply(responses -> responses.stream()
+                        .map(keyResponses -> decideOnBatchGetResponses(rf.ack, keyResponses))
+                        .collect(Collectors.toList()));
     }
 
-    private ReplicaResponse deleteEntityLocally(final String key) {
-        try {
-            localService.deleteEntity(key.getBytes());
-            return ReplicaResponse.success();
-        } catch (Exception e) {
-            log.warn("Exception while trying to delete entity locally", e);
+    private static ReplicaResponse decideOnBatchGetResponses(final int requestedAcksCount,
+            final List<ReplicaResponse> replicaResponses) {
+        if (replicaResponses.size() < requestedAcksCount) {
             return ReplicaResponse.fail();
         }
+        try {
+            final byte[] entity = findEntity(replicaResponses);
+            return entity != null ? ReplicaResponse.entityFound(entity) : ReplicaResponse.entityNotFound();
+        } catch (DeletedEntityException __) {
+            return ReplicaResponse.entityNotFound();
+        }
     }
 
-    private void deleteEntityRemotely(final String key, final ReplicationFactor rf,
-            final ReplicaResponse localResponse) {
-        final List<ReplicaResponse> replicaResponses =
-                askReplicas(replica -> replica.requestDeleteEntity(key), key, rf);
-        if (localResponse.responseStatus == ResponseStatus.ACK) {
-            replicaResponses.add(localResponse);
-        }
-        if (replicaResponses.size() < rf.ack) {
-            throw new NotEnoughReplicasException();
+    /**
+     * @return for every key: success or failure, if there are not enough replicas acknowledged
+     */
+    public CompletableFuture<List<ReplicaResponse>> putEntities(final List<Key> keys,
+            final List<byte[]> values, final ReplicationFactor rf) {
+        return askReplicasInBatches(keys, rf, true,
+                (replica, indices) -> replica.requestPutEntities(
+                        subList(keys, indices), subList(values, indices)),
+                eachKey(i -> localHandler.putEntity(keys.get(i), values.get(i))))
+                .thenApply(responses -> decideOnBatchWriteResponses(rf.ack, responses));
+    }
+
+    /**
+     * @return for every key: success or failure, if there are not enough replicas acknowledged
+     */
+    public CompletableFuture<List<ReplicaResponse>> deleteEntities(final List<Key> keys,
+            final ReplicationFactor rf) {
+        return askReplicasInBatches(keys, rf, true,
+                (replica, indices) -> replica.requestDeleteEntities(subList(keys, indices)),
+                eachKey(i -> localHandler.deleteEntity(keys.get(i))))
+                .thenApply(responses -> decideOnBatchWriteResponses(rf.ack, responses));
+    }
+
+    /**
+     * Stores the entities without per-key requests: every owner replica gets its share
+     * of them in bulk, which it stores in large transactions, this node stores its own
+     * share in a single one
+     *
+     * @return number of the entities not acknowledged by enough replicas
+     */
+    public CompletableFuture<Integer> bulkPutEntities(final List<Key> keys,
+            final List<byte[]> values, final ReplicationFactor rf) {
+        return askReplicasInBatches(keys, rf, true,
+                (replica, indices) -> replica.requestBulkPutEntities(
+                        subList(keys, indices), subList(values, indices)),
+                indices -> Collections.nCopies(indices.size(), localHandler.putEntities(
+                        subList(keys, indices), subList(values, indices))))
+                .thenApply(responses -> (int) responses.stream()
+                        .filter(keyResponses -> keyResponses.size() < rf.ack)
+                        .count());
+    }
+
+    private static List<ReplicaResponse> decideOnBatchWriteResponses(final int requestedAcksCount,
+            final List<List<ReplicaResponse>> responses) {
+        return responses.stream()
+                .map(keyResponses -> keyResponses.size() < requestedAcksCount
+                        ? ReplicaResponse.fail()
+                        : ReplicaResponse.success())
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Groups the keys by their owner replicas and sends a single sub-batch to each of them,
+     * the keys owned by this node are served locally meanwhile. Writes are also sent to the next
+     * owners of the keys which don't own them yet, if the cluster is being rebalanced,
+     * see {@link #dualWrite}.
+     *
+     * @return acknowledged responses for every key, in the order of keys
+     */
+    private CompletableFuture<List<List<ReplicaResponse>>> askReplicasInBatches(
+            final List<Key> keys, final ReplicationFactor rf, final boolean isWrite,
+            final BiFunction<Replica, List<Integer>, CompletableFuture<List<ReplicaResponse>>> remoteRequest,
+            final Function<List<Integer>, List<ReplicaResponse>> localRequest) {
+        final Topology topology = this.topology;
+        final boolean isDualWrite = isWrite && topology.isRebalancing();
+        final Map<Replica, List<Integer>> keysByReplica = new LinkedHashMap<>();
+        final Map<Replica, List<Integer>> dualWritesByReplica = new LinkedHashMap<>();
+        for (int i = 0; i < keys.size(); i++) {
+            final List<Replica> owners =
+                    Arrays.asList(topology.chooseReplicasForKey(keys.get(i), rf.from));
+            for (Replica replica : owners) {
+                keysByReplica.computeIfAbsent(replica, __ -> new ArrayList<>()).add(i);
+            }
+            if (isDualWrite) {
+                for (Replica replica : topology.chooseNextReplicasForKey(keys.get(i), rf.from)) {
+                    if (!owners.contains(replica)) {
+                        dualWritesByReplica.computeIfAbsent(replica, __ -> new ArrayList<>()).add(i);
+                    }
+                }
+            }
         }
+        final BiFunction<Replica, List<Integer>, CompletableFuture<List<ReplicaResponse>>> request =
+                (replica, indices) -> localService.isNotSelfReplica(replica)
+                        ? remoteRequest.apply(replica, indices)
+                        : taskScheduler.supplyLocally(() -> localRequest.apply(indices));
+        dualWritesByReplica.forEach((replica, indices) ->
+                dualWrite(replica, request.apply(replica, indices)));
+        final List<List<Integer>> subBatches = new ArrayList<>(keysByReplica.values());
+        // a failed sub-batch is just a missing ack for each of its keys
+        final List<CompletableFuture<List<ReplicaResponse>>> subBatchResponses =
+                keysByReplica.entrySet().stream()
+                        .map(subBatch -> request.apply(subBatch.getKey(), subBatch.getValue())
+                                .exceptionally(e -> Collections.nCopies(
+                                        subBatch.getValue().size(), ReplicaResponse.fail())))
+                        .collect(Collectors.toList());
+        return CompletableFuture.allOf(subBatchResponses.toArray(new CompletableFuture<?>[0]))
+                .thenApply(__ -> {
+                    final List<List<ReplicaResponse>> responses = new ArrayList<>(keys.size());
+                    for (int i = 0; i < keys.size(); i++) {
+                        responses.add(new ArrayList<>(rf.from));
+                    }
+                    for (int j = 0; j < subBatches.size(); j++) {
+                        final List<Integer> indices = subBatches.get(j);
+                        final List<ReplicaResponse> replicaResponses = subBatchResponses.get(j).join();
+                        for (int k = 0; k < indices.size(); k++) {
+                            if (replicaResponses.get(k).responseStatus == ResponseStatus.ACK) {
+                                responses.get(indices.get(k)).add(replicaResponses.get(k));
+                            }
+                        }
+                    }
+                    return responses;
+                });
+    }
+
+    private static Function<List<Integer>, List<ReplicaResponse>> eachKey(
+            final IntFunction<ReplicaResponse> request) {
+        return indices -> indices.stream().map(request::apply).collect(Collectors.toList());
+    }
+
+    private static <T> List<T> subList(final List<T> list, final List<Integer> indices) {
+        return indices.stream().map(list::get).collect(Collectors.toList());
+    }
+
+    @Value
+    private static class GetRequest {
+        Key key;
+
+        ReplicationFactor rf;
     }
 }
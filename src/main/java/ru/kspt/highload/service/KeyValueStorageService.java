@@ -5,32 +5,88 @@ import org.jetbrains.annotations.Nullable;
 import ru.kspt.highload.DeletedEntityException;
 import ru.kspt.highload.dao.H2Dao;
 import ru.kspt.highload.dao.Value;
+import ru.kspt.highload.dto.Key;
+import ru.kspt.highload.replication.BufferPool;
+import ru.kspt.highload.replication.ReplicationServer;
 import ru.kspt.highload.rest.KeyValueStorageController;
+import ru.kspt.highload.tracing.SlowTraces;
 import ru.mail.polis.KVDao;
 import ru.mail.polis.KVService;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.Duration;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Set;
 import java.util.stream.Collectors;
 
 @Slf4j
 public class KeyValueStorageService implements KVService {
+    private static final int SLOW_TRACES_CAPACITY =
+            Integer.getInteger("kvstorage.tracing.capacity", 256);
+
+    private static final Duration SLOW_TRACE_THRESHOLD =
+            Duration.ofMillis(Long.getLong("kvstorage.tracing.slowMs", 20));
+
+    private static final Duration ADMISSION_TARGET_DELAY =
+            Duration.ofMillis(Long.getLong("kvstorage.admission.targetDelayMs", 5));
+
+    private static final Duration ADMISSION_INTERVAL =
+            Duration.ofMillis(Long.getLong("kvstorage.admission.intervalMs", 100));
+
+    private static final int MAX_REQUESTS_IN_FLIGHT =
+            Integer.getInteger("kvstorage.admission.maxRequestsInFlight", 1024);
+
+    private static final int MIN_POOLED_BUFFER_SIZE = 512;
+
+    private static final int MAX_POOLED_BUFFER_SIZE = 1024 * 1024;
+
+    /**
+     * Heap size and so the default direct memory limit is 128 MB, there are up to 13 MB
+     * of pooled buffers per node by default
+     */
+    private static final int POOLED_BYTES_PER_CLASS =
+            Integer.getInteger("kvstorage.replication.pooledBytesPerClass", 1024 * 1024);
+
     private final KVDao storage;
 
+    private final SlowTraces slowTraces = new SlowTraces(SLOW_TRACES_CAPACITY, SLOW_TRACE_THRESHOLD);
+
+    private final BufferPool bufferPool =
+            new BufferPool(MIN_POOLED_BUFFER_SIZE, MAX_POOLED_BUFFER_SIZE, POOLED_BYTES_PER_CLASS);
+
+    /**
+     * Shared by the client requests and the replication requests from the other nodes,
+     * since both are served by the same local storage
+     */
+    private final AdmissionController admissionController = new AdmissionController(
+            ADMISSION_TARGET_DELAY, ADMISSION_INTERVAL, MAX_REQUESTS_IN_FLIGHT);
+
     private final KeyValueStorageController controller;
 
+    private final ReplicationServer replicationServer;
+
     private final int localPort;
 
     public KeyValueStorageService(final int port, final KVDao storage, final Set<String> topology)
     throws IOException {
         this.localPort = port;
         this.storage = storage;
+        this.replicationServer = new ReplicationServer(
+                new AdmittingReplicationHandler(new LocalReplicationHandler(this), admissionController),
+                slowTraces, bufferPool);
         this.controller = new KeyValueStorageController(this, port, parseTopology(topology));
     }
 
-    private List<Replica> parseTopology(final Set<String> topology) {
+    /**
+     * @param topology URLs of the nodes, the schema is optional
+     */
+    static List<Replica> parseTopology(final Collection<String> topology) {
         return topology.stream()
                 .map(KeyValueStorageService::urlWithoutSchema)
                 .map(Replica::create)
@@ -47,6 +103,11 @@ public class KeyValueStorageService implements KVService {
      */
     @Override
     public void start() {
+        try {
+            replicationServer.start();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Can't start replication server", e);
+        }
         controller.startHttpServer();
     }
 
@@ -56,27 +117,121 @@ public class KeyValueStorageService implements KVService {
     @Override
     public void stop() {
         controller.stopHttpServer();
+        replicationServer.stop();
+    }
+
+    public int replicationPort() {
+        return replicationServer.port();
+    }
+
+    public AdmissionController admissionController() {
+        return admissionController;
+    }
+
+    public SlowTraces slowTraces() {
+        return slowTraces;
+    }
+
+    /**
+     * @return pool of the buffers used by the replication connections of this node
+     */
+    public BufferPool bufferPool() {
+        return bufferPool;
+    }
+
+    /**
+     * @return storage internals in the Prometheus text format, empty if not H2Dao is used
+     */
+    public String storageStats() {
+        if (storage instanceof H2Dao) {
+            return ((H2Dao) storage).renderStats();
+        } else {
+            log.warn("Storage stats are not available since not H2Dao is used");
+            return "";
+        }
     }
 
     @Nullable
-    byte[] getEntity(final byte[] keyBytes) throws IOException, NoSuchElementException,
+    byte[] getEntity(final Key key) throws IOException, NoSuchElementException,
             DeletedEntityException {
         if (storage instanceof H2Dao) {
-            final Value value = ((H2Dao) storage).getValue(keyBytes);
+            final Value value = ((H2Dao) storage).getValue(key);
             if (value.isDeleted) throw new DeletedEntityException();
             return value.bytes;
         } else {
             log.warn("Deletion detection is not available since not H2Dao is used");
-            return storage.get(keyBytes);
+            return storage.get(key.getBytes());
+        }
+    }
+
+    void putEntity(final Key key, final byte[] entity) throws IOException {
+        if (storage instanceof H2Dao) {
+            ((H2Dao) storage).upsert(key, entity);
+        } else {
+            storage.upsert(key.getBytes(), entity);
+        }
+    }
+
+    /**
+     * Stores all the entities in a single transaction, unless not H2Dao is used
+     */
+    void putEntities(final List<Key> keys, final List<byte[]> entities) throws IOException {
+        if (storage instanceof H2Dao) {
+            ((H2Dao) storage).upsertAll(keys, entities);
+        } else {
+            for (int i = 0; i < keys.size(); i++) {
+                storage.upsert(keys.get(i).getBytes(), entities.get(i));
+            }
+        }
+    }
+
+    void deleteEntity(final Key key) throws IOException {
+        if (storage instanceof H2Dao) {
+            ((H2Dao) storage).remove(key);
+        } else {
+            storage.remove(key.getBytes());
         }
     }
 
-    void putEntity(final byte[] keyBytes, final byte[] entity) throws IOException {
-        storage.upsert(keyBytes, entity);
+    /**
+     * Stores the entry copied from another node unless there is one for the key already,
+     * with not H2Dao the entry is stored anyway and tombstones are not stored at all
+     *
+     * @param value value, {@code null} for a tombstone
+     */
+    void transferEntity(final Key key, @Nullable final byte[] value) throws IOException {
+        if (storage instanceof H2Dao) {
+            ((H2Dao) storage).insertIfAbsent(key, value);
+        } else if (value != null) {
+            storage.upsert(key.getBytes(), value);
+        }
     }
 
-    void deleteEntity(final byte[] keyBytes) throws IOException {
-        storage.remove(keyBytes);
+    /**
+     * @param after key to start after, {@code null} to start from the first one
+     * @return at most {@code limit} entries, including tombstones, in the order of key bytes,
+     * empty if not H2Dao is used
+     */
+    Map<Key, Value> scanEntities(@Nullable final Key after, final int limit) {
+        if (storage instanceof H2Dao) {
+            return ((H2Dao) storage).scan(after, limit);
+        } else {
+            log.warn("Scanning entries is not available since not H2Dao is used");
+            return Collections.emptyMap();
+        }
+    }
+
+    /**
+     * @return consistent snapshot of the local storage taken without stopping the writes,
+     * which is to be deleted by the caller
+     * @throws UnsupportedOperationException if not H2Dao is used
+     */
+    public File snapshot() throws IOException {
+        if (storage instanceof H2Dao) {
+            return ((H2Dao) storage).snapshot();
+        } else {
+            throw new UnsupportedOperationException("Snapshots are available with H2Dao only");
+        }
     }
 
     boolean isNotSelfReplica(final Replica replica) {
@@ -0,0 +1,111 @@
+package ru.kspt.highload.service;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Sliding window of the most recent request latencies of a single replica along with
+ * exponentially weighted moving average of them
+ */
+class LatencyTracker {
+    private static final int WINDOW_SIZE = 128;
+
+    private static final int MIN_SAMPLES_COUNT = 16;
+
+    private static final int RECALCULATION_PERIOD = 16;
+
+    private static final double HEDGING_PERCENTILE = 0.95;
+
+    private static final double TIMEOUT_PERCENTILE = 0.99;
+
+    private static final double EWMA_ALPHA = 0.125;
+
+    private static final double EWMA_DEVIATION_BETA = 0.25;
+
+    private static final int TIMEOUT_PERCENTILE_FACTOR = 2;
+
+    private static final int TIMEOUT_DEVIATIONS_COUNT = 4;
+
+    private final AtomicLongArray samples = new AtomicLongArray(WINDOW_SIZE);
+
+    private final AtomicLong samplesCount = new AtomicLong();
+
+    private final Duration minTimeout;
+
+    private final Duration maxTimeout;
+
+    private volatile long hedgingPercentileNanos = Long.MAX_VALUE;
+
+    private volatile long timeoutPercentileNanos = Long.MAX_VALUE;
+
+    private double ewmaNanos;
+
+    private double ewmaDeviationNanos;
+
+    LatencyTracker(final Duration minTimeout, final Duration maxTimeout) {
+        this.minTimeout = minTimeout;
+        this.maxTimeout = maxTimeout;
+    }
+
+    void record(final long latencyNanos) {
+        final long count = samplesCount.getAndIncrement();
+        samples.set((int) (count % WINDOW_SIZE), latencyNanos);
+        updateEwma(latencyNanos, count == 0);
+        if (count + 1 >= MIN_SAMPLES_COUNT && (count + 1) % RECALCULATION_PERIOD == 0) {
+            recalculate(Math.min(count + 1, WINDOW_SIZE));
+        }
+    }
+
+    private synchronized void updateEwma(final long latencyNanos, final boolean isFirst) {
+        if (isFirst) {
+            ewmaNanos = latencyNanos;
+            ewmaDeviationNanos = latencyNanos / 2.0;
+        } else {
+            // the same way TCP estimates its retransmission timeout (RFC 6298)
+            ewmaDeviationNanos += EWMA_DEVIATION_BETA
+                    * (Math.abs(latencyNanos - ewmaNanos) - ewmaDeviationNanos);
+            ewmaNanos += EWMA_ALPHA * (latencyNanos - ewmaNanos);
+        }
+    }
+
+    private void recalculate(final long windowLength) {
+        final long[] snapshot = new long[(int) windowLength];
+        for (int i = 0; i < snapshot.length; i++) {
+            snapshot[i] = samples.get(i);
+        }
+        Arrays.sort(snapshot);
+        hedgingPercentileNanos = percentile(snapshot, HEDGING_PERCENTILE);
+        timeoutPercentileNanos = percentile(snapshot, TIMEOUT_PERCENTILE);
+    }
+
+    private static long percentile(final long[] sorted, final double percentile) {
+        final int idx = (int) Math.ceil(percentile * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(idx, sorted.length - 1))];
+    }
+
+    /**
+     * @return recent p95 latency or {@link Long#MAX_VALUE} if not enough samples were recorded yet
+     */
+    long hedgingThresholdNanos() {
+        return hedgingPercentileNanos;
+    }
+
+    /**
+     * @return the largest of doubled recent p99 latency and EWMA latency plus four its deviations,
+     * but not less than the minimal timeout and not greater than the maximal one
+     */
+    long timeoutNanos() {
+        final long percentileNanos = timeoutPercentileNanos;
+        if (percentileNanos == Long.MAX_VALUE) {
+            return maxTimeout.toNanos();
+        }
+        final long ewmaBasedNanos;
+        synchronized (this) {
+            ewmaBasedNanos = (long) (ewmaNanos + TIMEOUT_DEVIATIONS_COUNT * ewmaDeviationNanos);
+        }
+        final long timeoutNanos = Math.max(TIMEOUT_PERCENTILE_FACTOR * percentileNanos, ewmaBasedNanos);
+        return Math.max(minTimeout.toNanos(), Math.min(maxTimeout.toNanos(), timeoutNanos));
+    }
+}
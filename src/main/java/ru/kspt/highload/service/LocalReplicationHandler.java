@@ -0,0 +1,76 @@
+package ru.kspt.highload.service;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.jetbrains.annotations.Nullable;
+import ru.kspt.highload.DeletedEntityException;
+import ru.kspt.highload.dto.Key;
+import ru.kspt.highload.dto.ReplicaResponse;
+import ru.kspt.highload.replication.ReplicationHandler;
+
+import java.util.List;
+import java.util.NoSuchElementException;
+
+@Slf4j
+@RequiredArgsConstructor
+class LocalReplicationHandler implements ReplicationHandler {
+    private final KeyValueStorageService localService;
+
+    @Override
+    public ReplicaResponse getEntity(final Key key) {
+        try {
+            return ReplicaResponse.entityFound(localService.getEntity(key));
+        } catch (DeletedEntityException e) {
+            return ReplicaResponse.entityDeleted();
+        } catch (NoSuchElementException e) {
+            return ReplicaResponse.entityNotFound();
+        } catch (Exception e) {
+            log.error("Exception while trying to get entity locally", e);
+            return ReplicaResponse.fail();
+        }
+    }
+
+    @Override
+    public ReplicaResponse putEntity(final Key key, final byte[] value) {
+        try {
+            localService.putEntity(key, value);
+            return ReplicaResponse.success();
+        } catch (Exception e) {
+            log.warn("Exception while trying to put entity locally", e);
+            return ReplicaResponse.fail();
+        }
+    }
+
+    @Override
+    public ReplicaResponse putEntities(final List<Key> keys, final List<byte[]> values) {
+        try {
+            localService.putEntities(keys, values);
+            return ReplicaResponse.success();
+        } catch (Exception e) {
+            log.warn("Exception while trying to put entities locally", e);
+            return ReplicaResponse.fail();
+        }
+    }
+
+    @Override
+    public ReplicaResponse deleteEntity(final Key key) {
+        try {
+            localService.deleteEntity(key);
+            return ReplicaResponse.success();
+        } catch (Exception e) {
+            log.warn("Exception while trying to delete entity locally", e);
+            return ReplicaResponse.fail();
+        }
+    }
+
+    @Override
+    public ReplicaResponse transferEntity(final Key key, @Nullable final byte[] value) {
+        try {
+            localService.transferEntity(key, value);
+            return ReplicaResponse.success();
+        } catch (Exception e) {
+            log.warn("Exception while trying to store transferred entity locally", e);
+            return ReplicaResponse.fail();
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package ru.kspt.highload.service;
+
+import java.time.Duration;
+
+/**
+ * Phi accrual failure detector of Hayashibara et al., as implemented in Akka. Instead of
+ * a yes-or-no timeout it gives a suspicion level phi, which grows with the time since the last
+ * heartbeat relative to the recent intervals between heartbeats: phi of 8 means the chance
+ * the node is alive but its heartbeat is that late is 10^-8, given the intervals are normally
+ * distributed. The node is suspected once phi reaches the threshold. Until the first heartbeat
+ * arrives nothing is known about the node, so it is not suspected.
+ */
+class PhiAccrualFailureDetector {
+    private final double threshold;
+
+    private final long minStdDeviationNanos;
+
+    private final long acceptablePauseNanos;
+
+    private final long firstIntervalEstimateNanos;
+
+    private final long[] intervals;
+
+    private int intervalsCount;
+
+    private int nextIntervalIndex;
+
+    private double intervalsSum;
+
+    private double intervalsSquaresSum;
+
+    private long lastHeartbeatNanos;
+
+    private boolean hasHeartbeat;
+
+    /**
+     * @param windowSize number of the recent intervals between heartbeats taken into account
+     * @param firstIntervalEstimate expected interval between heartbeats, which is used until
+     * the actual intervals are known
+     * @param acceptablePause pause the heartbeats may have in addition to the usual intervals,
+     * e.g. due to GC, without increasing suspicion much
+     */
+    PhiAccrualFailureDetector(final double threshold, final int windowSize,
+            final Duration minStdDeviation, final Duration acceptablePause,
+            final Duration firstIntervalEstimate) {
+        this.threshold = threshold;
+        this.minStdDeviationNanos = minStdDeviation.toNanos();
+        this.acceptablePauseNanos = acceptablePause.toNanos();
+        this.firstIntervalEstimateNanos = firstIntervalEstimate.toNanos();
+        this.intervals = new long[windowSize];
+    }
+
+    synchronized void heartbeat(final long nowNanos) {
+        if (hasHeartbeat) {
+            addInterval(nowNanos - lastHeartbeatNanos);
+        } else {
+            // like Akka, start with the intervals of the estimated mean and deviation
+            final long stdDeviation = firstIntervalEstimateNanos / 4;
+            addInterval(firstIntervalEstimateNanos - stdDeviation);
+            addInterval(firstIntervalEstimateNanos + stdDeviation);
+            hasHeartbeat = true;
+        }
+        lastHeartbeatNanos = nowNanos;
+    }
+
+    private void addInterval(final long interval) {
+        if (intervalsCount == intervals.length) {
+            final long evicted = intervals[nextIntervalIndex];
+            intervalsSum -= evicted;
+            intervalsSquaresSum -= (double) evicted * evicted;
+        } else {
+            intervalsCount++;
+        }
+        intervals[nextIntervalIndex] = interval;
+        nextIntervalIndex = (nextIntervalIndex + 1) % intervals.length;
+        intervalsSum += interval;
+        intervalsSquaresSum += (double) interval * interval;
+    }
+
+    /**
+     * @return suspicion level, zero if there has been no heartbeat yet
+     */
+    synchronized double phi(final long nowNanos) {
+        if (!hasHeartbeat) {
+            return 0;
+        }
+        final double mean = intervalsSum / intervalsCount;
+        final double variance = Math.max(0, intervalsSquaresSum / intervalsCount - mean * mean);
+        final double stdDeviation = Math.max(Math.sqrt(variance), minStdDeviationNanos);
+        return phi(nowNanos - lastHeartbeatNanos, mean + acceptablePauseNanos, stdDeviation);
+    }
+
+    /**
+     * Logistic approximation of the normal cumulative distribution, the one Akka uses
+     */
+    private static double phi(final long sinceLastHeartbeat, final double mean,
+            final double stdDeviation) {
+        final double y = (sinceLastHeartbeat - mean) / stdDeviation;
+        final double e = Math.exp(-y * (1.5976 + 0.070566 * y * y));
+        return sinceLastHeartbeat > mean
+                ? -Math.log10(e / (1 + e))
+                : -Math.log10(1 - 1 / (1 + e));
+    }
+
+    boolean isAvailable(final long nowNanos) {
+        return phi(nowNanos) < threshold;
+    }
+}
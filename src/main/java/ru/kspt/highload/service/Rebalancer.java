@@ -0,0 +1,385 @@
+package ru.kspt.highload.service;
+
+import com.google.common.util.concurrent.RateLimiter;
+import lombok.extern.slf4j.Slf4j;
+import org.jetbrains.annotations.Nullable;
+import ru.kspt.highload.ThreadPools;
+import ru.kspt.highload.dao.Value;
+import ru.kspt.highload.dto.Key;
+import ru.kspt.highload.dto.ResponseStatus;
+import ru.kspt.highload.metrics.MetricsRegistry;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+
+/**
+ * Rebalances the cluster to the new members while it keeps serving requests. The node
+ * the new members are given to coordinates the rebalancing, all the current and the next
+ * members go through its phases:
+ * <ol>
+ * <li>prepare: writes are sent to the next owners of the keys as well as to the current ones;</li>
+ * <li>transfer: once the writes started before are over, every current member streams
+ * the entries it is the first owner of to their next owners which don't own them yet, in chunks
+ * of sorted keys and at a limited rate. The entries are transferred with tombstones, but never
+ * override the entries already there, which are the newer, dual-written ones;</li>
+ * <li>complete: once all the transfers are done, requests are placed on the next members.</li>
+ * </ol>
+ * If a phase fails on any of the members, the rebalancing is aborted on all of them.
+ * <p>
+ * Owners of a key are the first members of its ring, as many as the entities are placed on,
+ * see {@link #rebalance}. With the default replication factor every member keeps every key,
+ * so a joining member gains all of them and nothing is to be moved when a member leaves.
+ */
+@Slf4j
+public class Rebalancer {
+    private static final int CHUNK_SIZE = Integer.getInteger("kvstorage.rebalance.chunkSize", 256);
+
+    private static final int BYTES_PER_SECOND =
+            Integer.getInteger("kvstorage.rebalance.bytesPerSecond", 4 * 1024 * 1024);
+
+    private static final Duration TIMEOUT =
+            Duration.ofMillis(Long.getLong("kvstorage.rebalance.timeoutMs", 10 * 60 * 1000));
+
+    /**
+     * The longest a replica request takes, the writes not sent to the next owners
+     * are over by then
+     */
+    private static final Duration WRITES_DRAIN_DELAY = Duration.ofSeconds(1);
+
+    private static final Duration POLL_INTERVAL = Duration.ofMillis(500);
+
+    private static final Duration RETRY_INTERVAL = Duration.ofSeconds(1);
+
+    private static final int MAX_CHUNK_ATTEMPTS = 10;
+
+    private static final String PREPARE_PHASE = "prepare";
+
+    private static final String TRANSFER_PHASE = "transfer";
+
+    private static final String COMPLETE_PHASE = "complete";
+
+    private static final String ABORT_PHASE = "abort";
+
+    private static final String MEMBERS_DELIMITER = "\n";
+
+    private static final String TOPOLOGIES_DELIMITER = "\n\n";
+
+    /**
+     * Every member keeps every key, as the entities written with the default replication factor
+     */
+    public static final int ALL_REPLICAS = Integer.MAX_VALUE;
+
+    public enum TransferState {
+        NONE, RUNNING, DONE, FAILED
+    }
+
+    private final KeyValueStorageService localService;
+
+    private final KeyValueStorageGateway gateway;
+
+    private final RateLimiter throttle = RateLimiter.create(BYTES_PER_SECOND);
+
+    private final ExecutorService executor = ThreadPools.newCachedPool("Rebalancer");
+
+    private final AtomicBoolean isCoordinating = new AtomicBoolean();
+
+    private final LongAdder transferredKeys;
+
+    private final LongAdder transferredBytes;
+
+    private volatile TransferState transferState = TransferState.NONE;
+
+    public Rebalancer(final KeyValueStorageService localService,
+            final KeyValueStorageGateway gateway, final MetricsRegistry metrics) {
+        this.localService = localService;
+        this.gateway = gateway;
+        this.transferredKeys = metrics.counter("kvstorage_rebalance_transferred_keys_total");
+        this.transferredBytes = metrics.counter("kvstorage_rebalance_transferred_bytes_total");
+    }
+
+    public void stop() {
+        executor.shutdownNow();
+    }
+
+    public TransferState transferState() {
+        return transferState;
+    }
+
+    /**
+     * Starts rebalancing the cluster to the given members in background
+     *
+     * @param members URLs of the next members
+     * @param replicasPerKey number of members every entity is placed on, i.e. the {@code from}
+     * of the replication factor the entities are written with, or {@link #ALL_REPLICAS}
+     * @return {@code false} if the cluster is being rebalanced already
+     */
+    public boolean rebalance(final Collection<String> members, final int replicasPerKey) {
+        final List<Replica> nextReplicas = KeyValueStorageService.parseTopology(members);
+        if (nextReplicas.isEmpty()) {
+            throw new IllegalArgumentException("No members given");
+        } else if (replicasPerKey < 1) {
+            throw new IllegalArgumentException("Entities are placed on " + replicasPerKey + " members");
+        }
+        final Topology topology = gateway.topology();
+        if (topology.isRebalancing() || !isCoordinating.compareAndSet(false, true)) {
+            return false;
+        }
+        executor.execute(() -> {
+            try {
+                coordinate(topology.replicas(), nextReplicas, replicasPerKey);
+            } finally {
+                isCoordinating.set(false);
+            }
+        });
+        return true;
+    }
+
+    private void coordinate(final List<Replica> replicas, final List<Replica> nextReplicas,
+            final int replicasPerKey) {
+        final Topology topology = gateway.prepareRebalancing(replicas, nextReplicas);
+        if (topology == null) {
+            log.warn("Can't rebalance to {}, there is another rebalancing", nextReplicas);
+            return;
+        }
+        final byte[] members = encodeMembers(replicas, nextReplicas, replicasPerKey);
+        final List<Replica> remoteReplicas = topology.allReplicas().stream()
+                .filter(localService::isNotSelfReplica)
+                .collect(Collectors.toList());
+        try {
+            requirePhase(remoteReplicas, PREPARE_PHASE, members);
+            Thread.sleep(WRITES_DRAIN_DELAY.toMillis());
+            startTransfer(topology, replicasPerKey);
+            requirePhase(remoteReplicas, TRANSFER_PHASE, members);
+            awaitTransfers(remoteReplicas, System.nanoTime() + TIMEOUT.toNanos());
+        } catch (IllegalStateException e) {
+            log.error("Rebalancing to {} failed: {}", nextReplicas, e.getMessage());
+            gateway.abortRebalancing();
+            remoteReplicas.forEach(replica -> replica.requestRebalancingPhase(ABORT_PHASE, members));
+            return;
+        } catch (InterruptedException __) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        gateway.completeRebalancing();
+        for (Replica replica : remoteReplicas) {
+            if (!replica.requestRebalancingPhase(COMPLETE_PHASE, members)) {
+                log.error("Replica {} hasn't completed rebalancing to {}", replica, nextReplicas);
+            }
+        }
+    }
+
+    private static void requirePhase(final List<Replica> replicas, final String phase,
+            final byte[] members) {
+        for (Replica replica : replicas) {
+            if (!replica.requestRebalancingPhase(phase, members)) {
+                throw new IllegalStateException(replica + " hasn't gone through " + phase);
+            }
+        }
+    }
+
+    private void awaitTransfers(final List<Replica> replicas, final long deadlineNanos)
+            throws InterruptedException {
+        final List<Replica> transferring = new ArrayList<>(replicas);
+        while (true) {
+            for (Iterator<Replica> iterator = transferring.iterator(); iterator.hasNext(); ) {
+                final Replica replica = iterator.next();
+                final TransferState state = replica.requestTransferState();
+                if (state == TransferState.DONE) {
+                    iterator.remove();
+                } else if (state == TransferState.FAILED) {
+                    throw new IllegalStateException("Transfer from " + replica + " failed");
+                }
+            }
+            if (transferState == TransferState.FAILED) {
+                throw new IllegalStateException("Transfer from this node failed");
+            } else if (transferring.isEmpty() && transferState == TransferState.DONE) {
+                return;
+            } else if (System.nanoTime() - deadlineNanos > 0) {
+                throw new IllegalStateException("Transfers are not done within " + TIMEOUT);
+            }
+            Thread.sleep(POLL_INTERVAL.toMillis());
+        }
+    }
+
+    /**
+     * Takes this node through the phase of the rebalancing coordinated by another one
+     *
+     * @param members current and next members and the number of members every entity
+     * is placed on, as they are encoded by the coordinator
+     * @return whether this node has gone through the phase
+     */
+    public boolean onPhase(final String phase, final String members) {
+        final String[] topologies = members.split(TOPOLOGIES_DELIMITER, -1);
+        if (topologies.length != 3) {
+            throw new IllegalArgumentException("Malformed members");
+        }
+        final List<Replica> replicas = decodeMembers(topologies[0]);
+        final List<Replica> nextReplicas = decodeMembers(topologies[1]);
+        final int replicasPerKey = Integer.parseInt(topologies[2]);
+        switch (phase) {
+            case PREPARE_PHASE:
+                return gateway.prepareRebalancing(replicas, nextReplicas) != null;
+            case TRANSFER_PHASE:
+                final Topology topology = rebalancingTo(nextReplicas);
+                if (topology != null) {
+                    startTransfer(topology, replicasPerKey);
+                }
+                return topology != null;
+            case COMPLETE_PHASE:
+                if (rebalancingTo(nextReplicas) != null) {
+                    gateway.completeRebalancing();
+                }
+                return true;
+            case ABORT_PHASE:
+                if (rebalancingTo(nextReplicas) != null) {
+                    gateway.abortRebalancing();
+                }
+                return true;
+            default:
+                throw new IllegalArgumentException("Unknown rebalancing phase " + phase);
+        }
+    }
+
+    @Nullable
+    private Topology rebalancingTo(final List<Replica> nextReplicas) {
+        final Topology topology = gateway.topology();
+        return topology.isRebalancing() && topology.nextReplicas().equals(nextReplicas)
+                ? topology
+                : null;
+    }
+
+    private synchronized void startTransfer(final Topology topology, final int replicasPerKey) {
+        if (transferState != TransferState.RUNNING) {
+            transferState = TransferState.RUNNING;
+            executor.execute(() -> transfer(topology, replicasPerKey));
+        }
+    }
+
+    /**
+     * Streams the entries this node is the first owner of to their next owners. The transfer
+     * stops once the topology is changed, i.e. the rebalancing is aborted.
+     */
+    private void transfer(final Topology topology, final int replicasPerKey) {
+        final boolean isCurrentMember = topology.replicas().stream()
+                .anyMatch(replica -> !localService.isNotSelfReplica(replica));
+        try {
+            if (isCurrentMember) {
+                transferOwnEntities(topology, replicasPerKey);
+            }
+            transferState = TransferState.DONE;
+            log.info("Transfer to {} is done", topology.nextReplicas());
+        } catch (InterruptedException __) {
+            transferState = TransferState.FAILED;
+            Thread.currentThread().interrupt();
+        } catch (RuntimeException e) {
+            transferState = TransferState.FAILED;
+            log.error("Transfer to " + topology.nextReplicas() + " failed", e);
+        }
+    }
+
+    /**
+     * Every entry is sent by its first current owner, leaving or not, so it is sent once,
+     * to the next owners which are not the current ones
+     */
+    private void transferOwnEntities(final Topology topology, final int replicasPerKey)
+            throws InterruptedException {
+        final int ownersCount = Math.min(replicasPerKey, topology.size());
+        Key after = null;
+        Map<Key, Value> chunk;
+        while (!(chunk = localService.scanEntities(after, CHUNK_SIZE)).isEmpty()) {
+            if (gateway.topology() != topology) {
+                throw new IllegalStateException("Topology changed during the transfer");
+            }
+            final Map<Replica, List<Key>> keysByReplica = new LinkedHashMap<>();
+            final Map<Replica, List<byte[]>> valuesByReplica = new LinkedHashMap<>();
+            long bytes = 0;
+            for (Map.Entry<Key, Value> entry : chunk.entrySet()) {
+                after = entry.getKey();
+                final List<Replica> owners =
+                        Arrays.asList(topology.chooseReplicasForKey(after, ownersCount));
+                if (localService.isNotSelfReplica(owners.get(0))) {
+                    continue;
+                }
+                final Value value = entry.getValue();
+                for (Replica replica : topology.chooseNextReplicasForKey(after, replicasPerKey)) {
+                    if (!owners.contains(replica)) {
+                        keysByReplica.computeIfAbsent(replica, __ -> new ArrayList<>()).add(after);
+                        valuesByReplica.computeIfAbsent(replica, __ -> new ArrayList<>())
+                                .add(value.isDeleted ? null : value.bytes);
+                        bytes += after.getBytes().length + value.bytes.length;
+                    }
+                }
+            }
+            if (keysByReplica.isEmpty()) {
+                continue;
+            }
+            throttle.acquire((int) Math.min(Integer.MAX_VALUE, bytes + 1));
+            for (Map.Entry<Replica, List<Key>> transfer : keysByReplica.entrySet()) {
+                transferChunk(transfer.getKey(), transfer.getValue(),
+                        valuesByReplica.get(transfer.getKey()));
+                transferredKeys.add(transfer.getValue().size());
+            }
+            transferredBytes.add(bytes);
+        }
+    }
+
+    private static void transferChunk(final Replica replica, final List<Key> keys,
+            final List<byte[]> values) throws InterruptedException {
+        for (int attempt = 1; ; attempt++) {
+            final boolean isAcknowledged = replica.requestTransferEntities(keys, values).join()
+                    .stream()
+                    .allMatch(response -> response.responseStatus == ResponseStatus.ACK);
+            if (isAcknowledged) {
+                return;
+            } else if (attempt == MAX_CHUNK_ATTEMPTS) {
+                throw new IllegalStateException(replica + " doesn't accept the transferred entries");
+            }
+            Thread.sleep(RETRY_INTERVAL.toMillis());
+        }
+    }
+
+    /**
+     * @return URLs of the current members, then an empty line and URLs of the next members,
+     * then another empty line and the number of members every entity is placed on
+     */
+    static byte[] encodeMembers(final List<Replica> replicas, final List<Replica> nextReplicas,
+            final int replicasPerKey) {
+        return (replicas.stream().map(Replica::url).collect(Collectors.joining(MEMBERS_DELIMITER))
+                + TOPOLOGIES_DELIMITER
+                + nextReplicas.stream().map(Replica::url).collect(Collectors.joining(MEMBERS_DELIMITER))
+                + TOPOLOGIES_DELIMITER
+                + replicasPerKey)
+                .getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static List<Replica> decodeMembers(final String members) {
+        return KeyValueStorageService.parseTopology(Arrays.stream(members.split(MEMBERS_DELIMITER))
+                .filter(member -> !member.isEmpty())
+                .collect(Collectors.toList()));
+    }
+
+    /**
+     * @return members of the cluster and the state of the rebalancing, if any, as text
+     */
+    public String render() {
+        final Topology topology = gateway.topology();
+        final StringBuilder text = new StringBuilder()
+                .append("members: ").append(urls(topology.replicas())).append('\n');
+        if (topology.isRebalancing()) {
+            text.append("next members: ").append(urls(topology.nextReplicas())).append('\n');
+        }
+        return text.append("transfer: ").append(transferState)
+                .append(", ").append(transferredKeys.sum()).append(" keys")
+                .append(", ").append(transferredBytes.sum()).append(" bytes\n")
+                .toString();
+    }
+
+    private static String urls(final List<Replica> replicas) {
+        return replicas.stream().map(Replica::url).collect(Collectors.joining(" "));
+    }
+}
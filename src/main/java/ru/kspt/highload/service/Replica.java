@@ -1,6 +1,5 @@
 package ru.kspt.highload.service;
 
-import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import lombok.EqualsAndHashCode;
 import lombok.RequiredArgsConstructor;
 import lombok.ToString;
@@ -11,12 +10,32 @@ import one.nio.http.HttpException;
 import one.nio.http.Response;
 import one.nio.net.ConnectionString;
 import one.nio.pool.PoolException;
+import org.jetbrains.annotations.Nullable;
+import ru.kspt.highload.ThreadPools;
+import ru.kspt.highload.dto.Key;
 import ru.kspt.highload.dto.ReplicaResponse;
+import ru.kspt.highload.dto.ResponseStatus;
+import ru.kspt.highload.metrics.LatencyHistogram;
+import ru.kspt.highload.metrics.MetricsRegistry;
+import ru.kspt.highload.replication.BufferPool;
+import ru.kspt.highload.replication.ReplicationClient;
+import ru.kspt.highload.tracing.ReplicaRequestEvent;
+import ru.kspt.highload.tracing.Trace;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.time.Duration;
+import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.IntFunction;
 import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 @Slf4j
 @ToString(of = {"host", "port"})
@@ -28,65 +47,334 @@ public class Replica {
 
     public static final String INTERNAL_REQUESTS_HTTP_HEADER_VALUE = "yes";
 
+    public static final String TRACE_ID_HTTP_HEADER = "X-Trace-Id";
+
+    public static final String REPLICATION_PORT_ENDPOINT = "/v0/replication";
+
+    public static final String TOPOLOGY_ENDPOINT = "/v0/topology";
+
     private static final String URL_SCHEMA = "http://";
 
-    private static final Duration TIMEOUT = Duration.ofSeconds(1);
+    private static final Duration MIN_TIMEOUT = Duration.ofMillis(50);
+
+    private static final Duration MAX_TIMEOUT = Duration.ofSeconds(1);
+
+    private static final Duration BULK_TIMEOUT =
+            Duration.ofMillis(Long.getLong("kvstorage.bulk.timeoutMs", 30_000));
+
+    private static final int CIRCUIT_BREAKER_FAILURES_THRESHOLD = 5;
+
+    private static final Duration CIRCUIT_BREAKER_PROBE_INTERVAL = Duration.ofMillis(500);
+
+    private static final Duration REPLICATION_CONNECT_INTERVAL = Duration.ofSeconds(1);
+
+    private static final Duration HEARTBEAT_INTERVAL =
+            Duration.ofMillis(Long.getLong("kvstorage.heartbeat.intervalMs", 100));
+
+    private static final double PHI_THRESHOLD =
+            Double.parseDouble(System.getProperty("kvstorage.heartbeat.phiThreshold", "8"));
+
+    private static final int HEARTBEAT_WINDOW_SIZE = 100;
+
+    private static final Duration HEARTBEAT_MIN_STD_DEVIATION = Duration.ofMillis(50);
+
+    private static final Duration HEARTBEAT_ACCEPTABLE_PAUSE = Duration.ofMillis(200);
 
     final String host;
 
     final int port;
 
+    final LatencyTracker latencyTracker = new LatencyTracker(MIN_TIMEOUT, MAX_TIMEOUT);
+
+    final CircuitBreaker circuitBreaker = new CircuitBreaker(
+            CIRCUIT_BREAKER_FAILURES_THRESHOLD, CIRCUIT_BREAKER_PROBE_INTERVAL);
+
+    final PhiAccrualFailureDetector failureDetector = new PhiAccrualFailureDetector(
+            PHI_THRESHOLD, HEARTBEAT_WINDOW_SIZE, HEARTBEAT_MIN_STD_DEVIATION,
+            HEARTBEAT_ACCEPTABLE_PAUSE, HEARTBEAT_INTERVAL);
+
+    private volatile boolean isSuspected;
+
+    private ScheduledFuture<?> heartbeats;
+
     private ExecutorService executor;
 
     private HttpClient httpClient;
 
+    private volatile ReplicationClient replicationClient;
+
+    private BufferPool bufferPool;
+
+    private final AtomicBoolean isConnecting = new AtomicBoolean();
+
+    private final AtomicBoolean isPinging = new AtomicBoolean();
+
+    private volatile long lastConnectionAttemptNanos;
+
+    private LatencyHistogram rttHistogram;
+
+    private LongAdder acksCount;
+
+    private LongAdder nacksCount;
+
+    private LongAdder timeoutsCount;
+
     private HttpClient createHttpClient() {
         return new HttpClient(new ConnectionString(URL_SCHEMA + host + ":" + port),
                 INTERNAL_REQUESTS_HTTP_HEADER + ": " + INTERNAL_REQUESTS_HTTP_HEADER_VALUE);
     }
 
-    void start() {
+    private String address() {
+        return host + ":" + port;
+    }
+
+    String url() {
+        return URL_SCHEMA + address();
+    }
+
+    void start(final MetricsRegistry metrics, final BufferPool bufferPool) {
+        final String name = address();
+        this.bufferPool = bufferPool;
+        rttHistogram = metrics.histogram("kvstorage_replica_rtt_seconds", "replica", name);
+        acksCount = metrics.counter("kvstorage_replica_responses_total",
+                "replica", name, "result", "ack");
+        nacksCount = metrics.counter("kvstorage_replica_responses_total",
+                "replica", name, "result", "nack");
+        timeoutsCount = metrics.counter("kvstorage_replica_timeouts_total", "replica", name);
+        metrics.gauge("kvstorage_replica_phi",
+                () -> failureDetector.phi(System.nanoTime()), "replica", name);
         httpClient = createHttpClient();
-        executor = Executors.newCachedThreadPool(new ThreadFactoryBuilder()
-                .setNameFormat(this.toString() + "-pool-%d").build());
+        executor = ThreadPools.newCachedPool(this.toString() + "-pool");
+        lastConnectionAttemptNanos = System.nanoTime() - REPLICATION_CONNECT_INTERVAL.toNanos();
+        heartbeats = Timeouts.scheduleAtFixedRate(this::heartbeat, HEARTBEAT_INTERVAL.toNanos());
     }
 
     void stop() {
+        if (heartbeats != null) {
+            heartbeats.cancel(false);
+        }
         if (executor != null) {
             executor.shutdownNow();
         }
+        if (replicationClient != null) {
+            replicationClient.close();
+        }
         if (httpClient != null) {
             httpClient.close();
         }
     }
 
-    ReplicaResponse requestGetEntity(final String key) {
-        return makeRequest(() -> getEntityFromReplica(key), "GET");
+    /**
+     * @return connection to the binary replication server of the replica or {@code null}
+     * if it isn't established yet, in which case plain HTTP is to be used
+     */
+    @Nullable
+    private ReplicationClient replicationClient() {
+        final ReplicationClient client = replicationClient;
+        if (client != null && client.isOpen()) {
+            return client;
+        } else {
+            connectInBackground();
+            return null;
+        }
     }
 
-    private ReplicaResponse makeRequest(final Supplier<ReplicaResponse> requestCall, final String name) {
-        assert executor != null;
-        final CompletableFuture<ReplicaResponse> response =
-                CompletableFuture.supplyAsync(requestCall, executor);
+    /**
+     * @return whether the replica missed its heartbeats, see {@link PhiAccrualFailureDetector}
+     */
+    boolean isSuspected() {
+        return isSuspected;
+    }
+
+    /**
+     * Pings the replica over the binary connection, which is being established meanwhile
+     * if there is none. Suspicion is updated on every heartbeat interval, whether the replica
+     * answers or not. Runs on the {@link Timeouts} thread, so the ping, which may block writing
+     * to the connection, is sent by the executor, and skipped while the previous one is still
+     * being sent.
+     */
+    private void heartbeat() {
         try {
-            return response.get(TIMEOUT.toMillis(), TimeUnit.MILLISECONDS);
-        } catch (TimeoutException __) {
-            log.warn("{} request to the replica {} timed out (timeout = {})!", name, this, TIMEOUT);
-            return ReplicaResponse.fail();
-        } catch (InterruptedException __) {
-            log.warn(Thread.currentThread().getName() + " was interrupted");
-            Thread.currentThread().interrupt();
-            return ReplicaResponse.fail();
-        } catch (ExecutionException e) {
-            log.error("Unexpected error executing " + name + " request to the replica " + this, e);
-            return ReplicaResponse.fail();
+            updateSuspicion(System.nanoTime());
+            final ReplicationClient client = replicationClient();
+            if (client == null || !isPinging.compareAndSet(false, true)) {
+                return;
+            }
+            executor.execute(() -> ping(client));
+        } catch (RejectedExecutionException __) {
+            isPinging.set(false);
+        } catch (RuntimeException e) {
+            log.error("Failed to send heartbeat to the replica " + this, e);
+        }
+    }
+
+    private void ping(final ReplicationClient client) {
+        final CompletableFuture<ReplicaResponse> response;
+        try {
+            response = client.ping();
+        } finally {
+            isPinging.set(false);
+        }
+        Timeouts.within(response, MAX_TIMEOUT.toNanos(), ReplicaResponse::fail, () -> {})
+                .thenAccept(r -> {
+                    if (r.responseStatus == ResponseStatus.ACK) {
+                        failureDetector.heartbeat(System.nanoTime());
+                    }
+                });
+    }
+
+    void updateSuspicion(final long nowNanos) {
+        final boolean suspected = !failureDetector.isAvailable(nowNanos);
+        if (suspected != isSuspected) {
+            isSuspected = suspected;
+            if (suspected) {
+                log.warn("Replica {} is suspected to be down, phi = {}",
+                        this, failureDetector.phi(nowNanos));
+            } else {
+                log.info("Replica {} is available again", this);
+            }
+        }
+    }
+
+    private void connectInBackground() {
+        if (System.nanoTime() - lastConnectionAttemptNanos < REPLICATION_CONNECT_INTERVAL.toNanos()
+                || !isConnecting.compareAndSet(false, true)) {
+            return;
+        }
+        lastConnectionAttemptNanos = System.nanoTime();
+        try {
+            executor.execute(() -> {
+                try {
+                    final ReplicationClient client = connectReplicationClient();
+                    if (executor.isShutdown()) {
+                        client.close();
+                    } else {
+                        replicationClient = client;
+                    }
+                } catch (InterruptedException __) {
+                    Thread.currentThread().interrupt();
+                } catch (HttpException | IOException | PoolException | NumberFormatException e) {
+                    log.debug("Can't connect to the replication server of {}: {}", this, e.getMessage());
+                } finally {
+                    isConnecting.set(false);
+                }
+            });
+        } catch (RejectedExecutionException __) {
+            isConnecting.set(false);
+        }
+    }
+
+    private ReplicationClient connectReplicationClient()
+            throws InterruptedException, HttpException, IOException, PoolException {
+        final Response response = httpClient.get(REPLICATION_PORT_ENDPOINT);
+        if (response.getStatus() != 200) {
+            throw new IOException("Unexpected response status " + response.getStatus());
         }
+        final int replicationPort =
+                Integer.parseInt(new String(response.getBody(), StandardCharsets.UTF_8));
+        return ReplicationClient.connect(host, replicationPort, MIN_TIMEOUT, bufferPool);
     }
 
-    private ReplicaResponse getEntityFromReplica(final String key) {
+    private CompletableFuture<ReplicaResponse> send(
+            final Function<ReplicationClient, CompletableFuture<ReplicaResponse>> binaryCall,
+            final Supplier<ReplicaResponse> httpCall) {
+        final ReplicationClient client = replicationClient();
+        return client != null
+                ? binaryCall.apply(client)
+                : CompletableFuture.supplyAsync(httpCall, executor);
+    }
+
+    private static String traceIdHeader(final Trace trace) {
+        return TRACE_ID_HTTP_HEADER + ": " + Trace.formatId(trace.id());
+    }
+
+    CompletableFuture<ReplicaResponse> requestGetEntity(final Key key, final Trace trace) {
+        final byte[] keyBytes = key.getBytes();
+        return makeRequest(() -> send(
+                client -> client.getEntity(keyBytes, trace.id()),
+                () -> getEntityFromReplica(key, traceIdHeader(trace))),
+                "GET", keyBytes.length, 0, trace);
+    }
+
+    /**
+     * The round trip, whatever its outcome, is recorded to the trace and as
+     * a {@link ReplicaRequestEvent}
+     *
+     * @param valueSize size of the value sent, the size of the value got is taken from the response
+     */
+    private CompletableFuture<ReplicaResponse> makeRequest(
+            final Supplier<CompletableFuture<ReplicaResponse>> requestCall, final String name,
+            final int keySize, final int valueSize, final Trace trace) {
+        assert executor != null;
+        final ReplicaRequestEvent event = ReplicaRequestEvent.start();
+        final long startTime = System.nanoTime();
+        if (!circuitBreaker.allowRequest()) {
+            trace.record("replica", address() + " circuit open", startTime);
+            event.complete(address(), name, keySize, valueSize, "circuit open");
+            return CompletableFuture.completedFuture(ReplicaResponse.fail());
+        }
+        return awaitResponse(requestCall, name).thenApply(result -> {
+            countResponse(result);
+            onRequestCompleted(result.responseStatus == ResponseStatus.ACK);
+            trace.record("replica", address() + " " + result.responseStatus, startTime);
+            event.complete(address(), name, keySize,
+                    result.payload == null ? valueSize : result.payload.length,
+                    result.responseStatus.toString());
+            return result;
+        });
+    }
+
+    private void countResponse(final ReplicaResponse response) {
+        if (response.responseStatus == ResponseStatus.ACK) {
+            acksCount.increment();
+        } else {
+            nacksCount.increment();
+        }
+    }
+
+    private void onRequestCompleted(final boolean isSuccessful) {
+        if (isSuccessful) {
+            circuitBreaker.onSuccess();
+        } else if (circuitBreaker.onFailure()) {
+            log.warn("Circuit breaker for the replica {} is open after {} consecutive failures",
+                    this, CIRCUIT_BREAKER_FAILURES_THRESHOLD);
+        }
+    }
+
+    private CompletableFuture<ReplicaResponse> awaitResponse(
+            final Supplier<CompletableFuture<ReplicaResponse>> requestCall, final String name) {
+        final long timeoutNanos = latencyTracker.timeoutNanos();
+        final long startTime = System.nanoTime();
+        final CompletableFuture<ReplicaResponse> request = requestCall.get();
+        request.whenComplete((r, e) -> {
+            final long rtt = System.nanoTime() - startTime;
+            latencyTracker.record(rtt);
+            rttHistogram.record(rtt);
+        });
+        return Timeouts.within(request, timeoutNanos, ReplicaResponse::fail, () -> {
+            timeoutsCount.increment();
+            log.warn("{} request to the replica {} timed out (timeout = {})!",
+                    name, this, Duration.ofNanos(timeoutNanos));
+        })
+                .exceptionally(e -> onRequestFailed(e, name));
+    }
+
+    private ReplicaResponse onRequestFailed(final Throwable error, final String name) {
+        final Throwable cause = error instanceof CompletionException && error.getCause() != null
+                ? error.getCause()
+                : error;
+        if (cause instanceof IOException) {
+            log.warn("{} request to the replica {} failed: {}", name, this, cause.toString());
+        } else {
+            log.error("Unexpected error executing " + name + " request to the replica " + this, cause);
+        }
+        return ReplicaResponse.fail();
+    }
+
+    private ReplicaResponse getEntityFromReplica(final Key key, final String... headers) {
         assert httpClient != null;
         try {
-            final Response response = httpClient.get(makeEntityEndpoint(key));
+            final Response response = httpClient.get(makeEntityEndpoint(key), headers);
             return parseResponseWithEntity(response);
         } catch (InterruptedException __) {
             log.warn("{} interrupted", Thread.currentThread().getName());
@@ -98,8 +386,8 @@ public class Replica {
         }
     }
 
-    private String makeEntityEndpoint(String key) {
-        return "/v0/entity?id=" + key;
+    private String makeEntityEndpoint(final Key key) {
+        return "/v0/entity?id=" + key.getString();
     }
 
     private ReplicaResponse parseResponseWithEntity(final Response response) {
@@ -111,14 +399,20 @@ public class Replica {
         }
     }
 
-    ReplicaResponse requestPutEntity(final String key, final byte[] value) {
-        return makeRequest(() -> putEntityToReplica(key, value), "PUT");
+    CompletableFuture<ReplicaResponse> requestPutEntity(final Key key, final byte[] value,
+            final Trace trace) {
+        final byte[] keyBytes = key.getBytes();
+        return makeRequest(() -> send(
+                client -> client.putEntity(keyBytes, value, trace.id()),
+                () -> putEntityToReplica(key, value, traceIdHeader(trace))),
+                "PUT", keyBytes.length, value.length, trace);
     }
 
-    private ReplicaResponse putEntityToReplica(final String key, final byte[] value) {
+    private ReplicaResponse putEntityToReplica(final Key key, final byte[] value,
+            final String... headers) {
         assert httpClient != null;
         try {
-            final Response response = httpClient.put(makeEntityEndpoint(key), value);
+            final Response response = httpClient.put(makeEntityEndpoint(key), value, headers);
             return response.getStatus() == 201 ? ReplicaResponse.success() : ReplicaResponse.fail();
         } catch (InterruptedException __) {
             log.warn("{} interrupted", Thread.currentThread().getName());
@@ -130,14 +424,18 @@ public class Replica {
         }
     }
 
-    ReplicaResponse requestDeleteEntity(final String key) {
-        return makeRequest(() -> deleteEntityFromReplica(key), "DELETE");
+    CompletableFuture<ReplicaResponse> requestDeleteEntity(final Key key, final Trace trace) {
+        final byte[] keyBytes = key.getBytes();
+        return makeRequest(() -> send(
+                client -> client.deleteEntity(keyBytes, trace.id()),
+                () -> deleteEntityFromReplica(key, traceIdHeader(trace))),
+                "DELETE", keyBytes.length, 0, trace);
     }
 
-    private ReplicaResponse deleteEntityFromReplica(final String key) {
+    private ReplicaResponse deleteEntityFromReplica(final Key key, final String... headers) {
         assert httpClient != null;
         try {
-            final Response response = httpClient.delete(makeEntityEndpoint(key));
+            final Response response = httpClient.delete(makeEntityEndpoint(key), headers);
             return response.getStatus() == 202 ? ReplicaResponse.success() : ReplicaResponse.fail();
         } catch (InterruptedException __) {
             log.warn("{} interrupted", Thread.currentThread().getName());
@@ -149,6 +447,145 @@ public class Replica {
         }
     }
 
+    CompletableFuture<List<ReplicaResponse>> requestGetEntities(final List<Key> keys) {
+        return makeBatchRequest(keys.size(),
+                client -> client.getEntities(toBytes(keys)),
+                i -> getEntityFromReplica(keys.get(i)), "Batch GET");
+    }
+
+    CompletableFuture<List<ReplicaResponse>> requestPutEntities(final List<Key> keys,
+            final List<byte[]> values) {
+        return makeBatchRequest(keys.size(),
+                client -> client.putEntities(toBytes(keys), values),
+                i -> putEntityToReplica(keys.get(i), values.get(i)), "Batch PUT");
+    }
+
+    /**
+     * The entities are stored by the replica in large transactions, which take longer than
+     * usual requests, so they are given a longer timeout
+     */
+    CompletableFuture<List<ReplicaResponse>> requestBulkPutEntities(final List<Key> keys,
+            final List<byte[]> values) {
+        return makeBatchRequest(keys.size(),
+                client -> client.bulkPutEntities(toBytes(keys), values),
+                i -> putEntityToReplica(keys.get(i), values.get(i)), "Bulk PUT", BULK_TIMEOUT);
+    }
+
+    CompletableFuture<List<ReplicaResponse>> requestDeleteEntities(final List<Key> keys) {
+        return makeBatchRequest(keys.size(),
+                client -> client.deleteEntities(toBytes(keys)),
+                i -> deleteEntityFromReplica(keys.get(i)), "Batch DELETE");
+    }
+
+    /**
+     * Entries are transferred over the binary connection only, the requests fail if there is
+     * none yet, so they are to be retried
+     *
+     * @param values values of the entries, {@code null} for tombstones
+     */
+    CompletableFuture<List<ReplicaResponse>> requestTransferEntities(final List<Key> keys,
+            final List<byte[]> values) {
+        return makeBatchRequest(keys.size(),
+                client -> client.transferEntities(toBytes(keys), values),
+                i -> ReplicaResponse.fail(), "Batch TRANSFER");
+    }
+
+    /**
+     * Takes the replica through the phase of the rebalancing the given one coordinates
+     *
+     * @param members current and next members, see {@link Rebalancer#encodeMembers}
+     * @return whether the replica has gone through the phase
+     */
+    boolean requestRebalancingPhase(final String phase, final byte[] members) {
+        assert httpClient != null;
+        try {
+            final Response response = httpClient.put(TOPOLOGY_ENDPOINT + "?phase=" + phase, members);
+            return response.getStatus() == 200;
+        } catch (InterruptedException __) {
+            log.warn("{} interrupted", Thread.currentThread().getName());
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (HttpException | IOException | PoolException e) {
+            log.warn("Rebalancing {} request to the replica {} failed: {}", phase, this, e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * @return state of the transfer from the replica to the next members, or {@code null}
+     * if the replica doesn't answer
+     */
+    @Nullable
+    Rebalancer.TransferState requestTransferState() {
+        assert httpClient != null;
+        try {
+            final Response response = httpClient.get(TOPOLOGY_ENDPOINT);
+            switch (response.getStatus()) {
+                case 200: return Rebalancer.TransferState.DONE;
+                case 202: return Rebalancer.TransferState.RUNNING;
+                default: return Rebalancer.TransferState.FAILED;
+            }
+        } catch (InterruptedException __) {
+            log.warn("{} interrupted", Thread.currentThread().getName());
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (HttpException | IOException | PoolException e) {
+            log.warn("Transfer state request to the replica {} failed: {}", this, e.getMessage());
+            return null;
+        }
+    }
+
+    private static List<byte[]> toBytes(final List<Key> keys) {
+        return keys.stream().map(Key::getBytes).collect(Collectors.toList());
+    }
+
+    /**
+     * Sends the requests for all the keys as a single batch, or falls back to concurrent
+     * per-key HTTP requests if there is no binary connection to the replica yet.
+     * Latency statistics are gathered for single requests, so batches are given
+     * the maximal timeout.
+     */
+    private CompletableFuture<List<ReplicaResponse>> makeBatchRequest(final int size,
+            final Function<ReplicationClient, List<CompletableFuture<ReplicaResponse>>> binaryCall,
+            final IntFunction<ReplicaResponse> httpCall, final String name) {
+        return makeBatchRequest(size, binaryCall, httpCall, name, MAX_TIMEOUT);
+    }
+
+    private CompletableFuture<List<ReplicaResponse>> makeBatchRequest(final int size,
+            final Function<ReplicationClient, List<CompletableFuture<ReplicaResponse>>> binaryCall,
+            final IntFunction<ReplicaResponse> httpCall, final String name, final Duration timeout) {
+        assert executor != null;
+        if (!circuitBreaker.allowRequest()) {
+            return CompletableFuture.completedFuture(Collections.nCopies(size, ReplicaResponse.fail()));
+        }
+        final ReplicationClient client = replicationClient();
+        final List<CompletableFuture<ReplicaResponse>> requests = client != null
+                ? binaryCall.apply(client)
+                : IntStream.range(0, size)
+                        .mapToObj(i -> CompletableFuture.supplyAsync(() -> httpCall.apply(i), executor))
+                        .collect(Collectors.toList());
+        final AtomicInteger timedOutCount = new AtomicInteger();
+        final List<CompletableFuture<ReplicaResponse>> responses = requests.stream()
+                .map(request -> Timeouts.within(request, timeout.toNanos(),
+                        ReplicaResponse::fail, timedOutCount::incrementAndGet)
+                        .exceptionally(e -> ReplicaResponse.fail()))
+                .collect(Collectors.toList());
+        return CompletableFuture.allOf(responses.toArray(new CompletableFuture<?>[0])).thenApply(__ -> {
+            if (timedOutCount.get() > 0) {
+                timeoutsCount.add(timedOutCount.get());
+                log.warn("{} of {} {} requests to the replica {} timed out (timeout = {})!",
+                        timedOutCount.get(), size, name, this, timeout);
+            }
+            final List<ReplicaResponse> results = responses.stream()
+                    .map(CompletableFuture::join)
+                    .collect(Collectors.toList());
+            results.forEach(this::countResponse);
+            onRequestCompleted(results.stream()
+                    .anyMatch(result -> result.responseStatus == ResponseStatus.ACK));
+            return results;
+        });
+    }
+
     static Replica create(final String hostport) {
         final String[] parts = hostport.split(":");
         return new Replica(parts[0], Integer.valueOf(parts[1]));
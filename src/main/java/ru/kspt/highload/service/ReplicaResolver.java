@@ -1,20 +1,43 @@
 package ru.kspt.highload.service;
 
 import lombok.AllArgsConstructor;
+import ru.kspt.highload.dto.Key;
 
 import java.util.Arrays;
 import java.util.List;
 
+/**
+ * Places keys on the ring of replicas. Replicas of a key are the ring members following
+ * the position of the key, those suspected to be down are moved after the healthy ones,
+ * so the requests go to the next healthy members instead.
+ */
 @AllArgsConstructor
 class ReplicaResolver {
     private final List<Replica> allReplicas;
 
-    Replica[] chooseReplicasForKey(final byte[] keyBytes, final int replicasCount) {
-        final Replica[] replicas = new Replica[replicasCount];
-        final int startIdx = Math.abs(Arrays.hashCode(keyBytes)) % allReplicas.size();
-        for (int j = replicasCount - 1; j >= 0; j--) {
-            replicas[j] = allReplicas.get((startIdx + j) % allReplicas.size());
+    Replica[] chooseReplicasForKey(final Key key, final int replicasCount) {
+        final int size = allReplicas.size();
+        final Replica[] ordered = new Replica[size];
+        final int startIdx = Math.abs(key.getHash()) % size;
+        int healthyCount = 0;
+        int suspectedIdx = size;
+        for (int j = 0; j < size; j++) {
+            final Replica replica = allReplicas.get((startIdx + j) % size);
+            if (replica.isSuspected()) {
+                ordered[--suspectedIdx] = replica;
+            } else {
+                ordered[healthyCount++] = replica;
+            }
+        }
+        reverse(ordered, healthyCount, size);
+        return replicasCount == size ? ordered : Arrays.copyOf(ordered, replicasCount);
+    }
+
+    private static void reverse(final Replica[] replicas, final int from, final int to) {
+        for (int i = from, j = to - 1; i < j; i++, j--) {
+            final Replica replica = replicas[i];
+            replicas[i] = replicas[j];
+            replicas[j] = replica;
         }
-        return replicas;
     }
 }
@@ -0,0 +1,65 @@
+package ru.kspt.highload.service;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Collapses concurrent calls with the same key into one: the first caller starts the call
+ * and the others share its result, either value or exception. A caller joins only the call
+ * started after it arrived, so it never gets a result older than its arrival, such as a value
+ * read before the write the caller had acknowledged; otherwise it starts a new call, which
+ * the later callers join instead.
+ */
+class SingleFlight<K, V> {
+    private final ConcurrentMap<K, Flight<V>> inFlight = new ConcurrentHashMap<>();
+
+    private final LongAdder coalescedCallsCount = new LongAdder();
+
+    /**
+     * @param arrivedAtNanos {@link System#nanoTime()} when the caller's request arrived
+     */
+    CompletableFuture<V> execute(final K key, final long arrivedAtNanos,
+            final Supplier<CompletableFuture<V>> call) {
+        final Flight<V> ownFlight = new Flight<>(System.nanoTime());
+        while (true) {
+            final Flight<V> existingFlight = inFlight.putIfAbsent(key, ownFlight);
+            if (existingFlight == null) break;
+            if (existingFlight.startedAtNanos - arrivedAtNanos >= 0) {
+                coalescedCallsCount.increment();
+                return existingFlight.future;
+            }
+            if (inFlight.replace(key, existingFlight, ownFlight)) break;
+        }
+        final CompletableFuture<V> ownFuture = ownFlight.future;
+        ownFuture.whenComplete((value, error) -> inFlight.remove(key, ownFlight));
+        try {
+            call.get().whenComplete((value, error) -> {
+                if (error == null) {
+                    ownFuture.complete(value);
+                } else {
+                    ownFuture.completeExceptionally(error);
+                }
+            });
+        } catch (RuntimeException | Error e) {
+            ownFuture.completeExceptionally(e);
+        }
+        return ownFuture;
+    }
+
+    long coalescedCallsCount() {
+        return coalescedCallsCount.sum();
+    }
+
+    private static class Flight<V> {
+        final CompletableFuture<V> future = new CompletableFuture<>();
+
+        final long startedAtNanos;
+
+        Flight(final long startedAtNanos) {
+            this.startedAtNanos = startedAtNanos;
+        }
+    }
+}
@@ -1,117 +1,197 @@
 package ru.kspt.highload.service;
 
-import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import lombok.RequiredArgsConstructor;
-import lombok.extern.slf4j.Slf4j;
+import org.jetbrains.annotations.Nullable;
+import ru.kspt.highload.OverloadedException;
+import ru.kspt.highload.ThreadPools;
 import ru.kspt.highload.dto.ReplicaResponse;
 import ru.kspt.highload.dto.ResponseStatus;
-
-import java.util.*;
-import java.util.concurrent.*;
+import ru.kspt.highload.tracing.QuorumEvent;
+import ru.kspt.highload.tracing.Trace;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.function.Function;
+import java.util.function.Supplier;
 
-@Slf4j
+/**
+ * Fans requests out to the local storage and the replicas and collects the responses
+ * asynchronously, so that no thread waits for the replicas to answer
+ */
 @RequiredArgsConstructor
 public class TaskScheduler {
-    private final Map<Long, Task> tasks = new ConcurrentHashMap<>();
+    /**
+     * More threads than connections in the default H2 pool would only wait for a connection
+     */
+    private static final int LOCAL_THREADS_COUNT = 10;
 
-    private final Queue<Future<?>> abandoned = new ConcurrentLinkedQueue<>();
+    private final HedgeBudget hedgeBudget = new HedgeBudget();
 
-    private final int maxReplicasCount;
+    private final AdmissionController admissionController;
 
     private ExecutorService executor;
 
-    private ScheduledExecutorService abandonedTasksCleaner;
+    /**
+     * Sends the hedged requests, which may block on the connection to the spare replica,
+     * so that they never hold up the {@link Timeouts} thread
+     */
+    private ExecutorService hedgingExecutor;
 
     public void start() {
-        executor = Executors.newCachedThreadPool(new ThreadFactoryBuilder()
-                .setNameFormat(this.getClass().getSimpleName() + "-pool-%d").build());
-        abandonedTasksCleaner = Executors.newSingleThreadScheduledExecutor(
-                new ThreadFactoryBuilder().setNameFormat("TasksCleaner").build());
-        abandonedTasksCleaner.scheduleAtFixedRate(
-                this::clearAbandonedTasks, 5, 5, TimeUnit.SECONDS);
+        executor = ThreadPools.newFixedPool(
+                this.getClass().getSimpleName() + "-pool", LOCAL_THREADS_COUNT);
+        hedgingExecutor = ThreadPools.newCachedPool(this.getClass().getSimpleName() + "-hedging");
     }
 
-    private void clearAbandonedTasks() {
-        abandoned.forEach(f -> f.cancel(true));
-        abandoned.clear();
+    /**
+     * @return number of local tasks waiting for a thread
+     */
+    public int queuedTasksCount() {
+        return executor instanceof ThreadPoolExecutor
+                ? ((ThreadPoolExecutor) executor).getQueue().size()
+                : 0;
     }
 
     public void stop() {
-        tasks.values().forEach(f -> f.drainFuturesAndClear(abandoned));
-        tasks.clear();
-        clearAbandonedTasks();
         if (executor != null) {
             executor.shutdownNow();
         }
-        if (abandonedTasksCleaner != null) {
-            abandonedTasksCleaner.shutdownNow();
+        if (hedgingExecutor != null) {
+            hedgingExecutor.shutdownNow();
         }
     }
 
-    void schedule(final Function<Replica, ReplicaResponse> request, final List<Replica> replicas) {
-        final long currentThreadId = Thread.currentThread().getId();
-        final Task task = renewTaskForThread(currentThreadId);
-        for (Replica replica : replicas) {
-            task.futureResponses.add(executor.submit(() -> {
-                final ReplicaResponse response = request.apply(replica);
-                task.responses.add(response);
-            }));
-        }
+    /**
+     * Runs the local (blocking) operation off the calling thread. The time it waits in the queue
+     * is reported to the {@link AdmissionController}, which may decide to drop it.
+     */
+    <T> CompletableFuture<T> supplyLocally(final Supplier<T> localRequest) {
+        return supplyLocally(localRequest, null);
     }
 
-    private Task renewTaskForThread(final long threadId) {
-        if (tasks.containsKey(threadId)) {
-            final Task task = tasks.get(threadId);
-            task.drainFuturesAndClear(abandoned);
-            return task;
-        } else {
-            final Task task = new Task(maxReplicasCount);
-            tasks.put(threadId, task);
-            return task;
-        }
+    /**
+     * @param trace trace to record the time spent in the queue and in the local operation to
+     */
+    <T> CompletableFuture<T> supplyLocally(final Supplier<T> localRequest,
+            @Nullable final Trace trace) {
+        final long submittedAt = System.nanoTime();
+        return CompletableFuture.supplyAsync(() -> {
+            final long startedAt = System.nanoTime();
+            if (trace != null) {
+                trace.record("queue", null, submittedAt);
+            }
+            if (admissionController.onQueueDelay(startedAt - submittedAt)) {
+                throw new OverloadedException();
+            }
+            final T result = localRequest.get();
+            if (trace != null) {
+                trace.record("local", null, startedAt);
+            }
+            return result;
+        }, executor);
     }
 
-    List<ReplicaResponse> getEnoughResponses(final ReplicationFactor replicationFactor) {
-        final long currentThreadId = Thread.currentThread().getId();
-        try {
-            return awaitCompletion(currentThreadId, replicationFactor);
-        } catch (InterruptedException e) {
-            log.warn(Thread.currentThread().getName() + " was interrupted");
-            return new ArrayList<>();
+    /**
+     * Runs the request against the local storage and the given replicas concurrently. If some of
+     * the replicas doesn't answer within its recent p95 latency, the request is additionally sent
+     * to the first of the spare replicas. The wait for the quorum is recorded to the trace and
+     * as a {@link QuorumEvent}.
+     *
+     * @return acknowledged responses, as soon as there are enough of them
+     * or all the requests are completed
+     */
+    CompletableFuture<List<ReplicaResponse>> schedule(final Supplier<ReplicaResponse> localRequest,
+            final Function<Replica, CompletableFuture<ReplicaResponse>> request,
+            final List<Replica> replicas, final List<Replica> spareReplicas,
+            final int requiredAcksCount, final Trace trace) {
+        final QuorumEvent event = QuorumEvent.start();
+        final long startTime = System.nanoTime();
+        final Quorum quorum = new Quorum(requiredAcksCount, replicas.size() + 1);
+        final long hedgingDelayNanos = spareReplicas.isEmpty() ? Long.MAX_VALUE : replicas.stream()
+                .mapToLong(replica -> replica.latencyTracker.hedgingThresholdNanos())
+                .max().orElse(Long.MAX_VALUE);
+        quorum.await(supplyLocally(localRequest, trace));
+        for (Replica replica : replicas) {
+            quorum.await(request.apply(replica));
+        }
+        if (hedgingDelayNanos != Long.MAX_VALUE) {
+            hedgeBudget.onRequestsSent(replicas.size());
+            final ScheduledFuture<?> hedging = Timeouts.schedule(() -> hedgingExecutor.execute(
+                    () -> hedge(quorum, request, spareReplicas.get(0))), hedgingDelayNanos);
+            quorum.result.whenComplete((r, e) -> hedging.cancel(false));
         }
+        return quorum.result.whenComplete((acked, e) -> {
+            final int ackedCount = acked == null ? 0 : acked.size();
+            trace.record("quorum", ackedCount + "/" + requiredAcksCount + " acks", startTime);
+            event.complete(requiredAcksCount, replicas.size() + 1, ackedCount, quorum.isHedged());
+        });
     }
 
-    private List<ReplicaResponse> awaitCompletion(final long currentThreadId,
-            final ReplicationFactor rf) throws InterruptedException {
-        final List<ReplicaResponse> ackedResponses = new ArrayList<>();
-        int totalGathered = 0;
-        while (!Thread.currentThread().isInterrupted()) {
-            final ReplicaResponse response = tasks.get(currentThreadId).responses.take();
-            totalGathered++;
-            if (response.responseStatus == ResponseStatus.ACK) {
-                ackedResponses.add(response);
-                if (ackedResponses.size() == rf.ack) return ackedResponses;
-            }
-            if (totalGathered == rf.from) return ackedResponses;
+    private void hedge(final Quorum quorum,
+            final Function<Replica, CompletableFuture<ReplicaResponse>> request,
+            final Replica spareReplica) {
+        if (!quorum.result.isDone() && hedgeBudget.tryAcquire() && quorum.expectOneMore()) {
+            quorum.await(request.apply(spareReplica));
         }
-        log.warn(Thread.currentThread().getName() + " was interrupted on awaiting completion");
-        return new ArrayList<>();
     }
 
-    private static class Task {
-        private final List<Future<?>> futureResponses = new ArrayList<>();
+    private static class Quorum {
+        private final CompletableFuture<List<ReplicaResponse>> result = new CompletableFuture<>();
+
+        private final List<ReplicaResponse> ackedResponses = new ArrayList<>();
 
-        private final BlockingQueue<ReplicaResponse> responses;
+        private final int requiredAcksCount;
 
-        Task(final int from) {
-            responses = new ArrayBlockingQueue<>(from);
+        private int expectedCount;
+
+        private int gatheredCount;
+
+        private boolean isDecided;
+
+        private boolean isHedged;
+
+        Quorum(final int requiredAcksCount, final int expectedCount) {
+            this.requiredAcksCount = requiredAcksCount;
+            this.expectedCount = expectedCount;
         }
 
-        void drainFuturesAndClear(final Collection<Future<?>> sink) {
-            sink.addAll(futureResponses);
-            futureResponses.clear();
-            responses.clear();
+        void await(final CompletableFuture<ReplicaResponse> response) {
+            response.whenComplete((r, e) -> {
+                final List<ReplicaResponse> completed = onResponse(e == null ? r : ReplicaResponse.fail());
+                if (completed != null) {
+                    // completed outside of the lock, since dependent actions run right here
+                    result.complete(completed);
+                }
+            });
+        }
+
+        synchronized boolean expectOneMore() {
+            if (isDecided) return false;
+            expectedCount++;
+            isHedged = true;
+            return true;
+        }
+
+        synchronized boolean isHedged() {
+            return isHedged;
+        }
+
+        /**
+         * @return acknowledged responses if the quorum is decided by this response
+         */
+        @Nullable
+        private synchronized List<ReplicaResponse> onResponse(final ReplicaResponse response) {
+            if (isDecided) return null;
+            gatheredCount++;
+            if (response.responseStatus == ResponseStatus.ACK) {
+                ackedResponses.add(response);
+            }
+            isDecided = ackedResponses.size() == requiredAcksCount || gatheredCount == expectedCount;
+            return isDecided ? new ArrayList<>(ackedResponses) : null;
         }
     }
 }
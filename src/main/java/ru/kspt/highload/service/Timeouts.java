@@ -0,0 +1,62 @@
+package ru.kspt.highload.service;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import lombok.experimental.UtilityClass;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Single daemon timer for the delayed actions of asynchronous requests: timeouts and hedging,
+ * as well as for the heartbeats
+ */
+@UtilityClass
+class Timeouts {
+    private final ScheduledThreadPoolExecutor TIMER = createTimer();
+
+    private ScheduledThreadPoolExecutor createTimer() {
+        final ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1,
+                new ThreadFactoryBuilder().setNameFormat("Timeouts").setDaemon(true).build());
+        timer.setRemoveOnCancelPolicy(true);
+        return timer;
+    }
+
+    ScheduledFuture<?> schedule(final Runnable action, final long delayNanos) {
+        return TIMER.schedule(action, delayNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @param action action, which must neither block nor throw
+     */
+    ScheduledFuture<?> scheduleAtFixedRate(final Runnable action, final long periodNanos) {
+        return TIMER.scheduleAtFixedRate(action, periodNanos, periodNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @return future completed as the given one, or with the fallback value if the given one
+     * isn't completed within the timeout, in which case it is cancelled and
+     * {@code onTimeout} is run
+     */
+    <T> CompletableFuture<T> within(final CompletableFuture<T> future, final long timeoutNanos,
+            final Supplier<T> fallback, final Runnable onTimeout) {
+        final CompletableFuture<T> result = new CompletableFuture<>();
+        final ScheduledFuture<?> timeout = schedule(() -> {
+            if (result.complete(fallback.get())) {
+                future.cancel(false);
+                onTimeout.run();
+            }
+        }, timeoutNanos);
+        future.whenComplete((value, error) -> {
+            timeout.cancel(false);
+            if (error == null) {
+                result.complete(value);
+            } else {
+                result.completeExceptionally(error);
+            }
+        });
+        return result;
+    }
+}
@@ -0,0 +1,78 @@
+package ru.kspt.highload.service;
+
+import lombok.Getter;
+import lombok.experimental.Accessors;
+import ru.kspt.highload.dto.Key;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Members of the cluster the requests are placed on. While the cluster is being rebalanced
+ * to the next members, the requests are still placed on the current ones, but the writes
+ * are also sent to the next members the keys are placed on, so that they miss nothing written
+ * since the entries started to be transferred to them.
+ */
+@Accessors(fluent = true)
+class Topology {
+    @Getter
+    private final List<Replica> replicas;
+
+    @Getter
+    private final List<Replica> nextReplicas;
+
+    private final ReplicaResolver resolver;
+
+    private final ReplicaResolver nextResolver;
+
+    private Topology(final List<Replica> replicas, final List<Replica> nextReplicas) {
+        this.replicas = Collections.unmodifiableList(replicas);
+        this.nextReplicas = Collections.unmodifiableList(nextReplicas);
+        this.resolver = new ReplicaResolver(replicas);
+        this.nextResolver = nextReplicas.equals(replicas) ? resolver : new ReplicaResolver(nextReplicas);
+    }
+
+    static Topology of(final List<Replica> replicas) {
+        return new Topology(replicas, replicas);
+    }
+
+    Topology rebalancingTo(final List<Replica> nextReplicas) {
+        return new Topology(replicas, nextReplicas);
+    }
+
+    Topology rebalanced() {
+        return of(nextReplicas);
+    }
+
+    boolean isRebalancing() {
+        return !new HashSet<>(replicas).equals(new HashSet<>(nextReplicas));
+    }
+
+    int size() {
+        return replicas.size();
+    }
+
+    Replica[] chooseReplicasForKey(final Key key, final int replicasCount) {
+        return resolver.chooseReplicasForKey(key, replicasCount);
+    }
+
+    /**
+     * @return next members the key is placed on, the same as {@link #chooseReplicasForKey}
+     * chooses once the cluster is rebalanced, but no more than there are next members
+     */
+    Replica[] chooseNextReplicasForKey(final Key key, final int replicasCount) {
+        return nextResolver.chooseReplicasForKey(key, Math.min(replicasCount, nextReplicas.size()));
+    }
+
+    /**
+     * @return current and next members
+     */
+    Set<Replica> allReplicas() {
+        final Set<Replica> all = new LinkedHashSet<>(replicas);
+        all.addAll(nextReplicas);
+        return all;
+    }
+}
@@ -0,0 +1,64 @@
+package ru.kspt.highload.tracing;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Request to {@code /v0/entity} from its arrival until the response is ready
+ */
+@Name("ru.kspt.highload.EntityRequest")
+@Label("Entity Request")
+@Category({"KV Storage", "HTTP"})
+@StackTrace(false)
+public class EntityRequestEvent extends Event {
+    @Label("Method")
+    String method;
+
+    @Label("Key Size")
+    @DataAmount
+    int keySize;
+
+    @Label("Value Size")
+    @DataAmount
+    int valueSize;
+
+    @Label("Acks")
+    int ack;
+
+    @Label("Replicas")
+    int from;
+
+    @Label("Internal")
+    boolean internal;
+
+    @Label("Status")
+    int status;
+
+    public static EntityRequestEvent start() {
+        final EntityRequestEvent event = new EntityRequestEvent();
+        event.begin();
+        return event;
+    }
+
+    /**
+     * Ends the event and commits it if it is enabled and long enough
+     */
+    public void complete(final String method, final int keySize, final int valueSize,
+            final int ack, final int from, final boolean internal, final int status) {
+        end();
+        if (shouldCommit()) {
+            this.method = method;
+            this.keySize = keySize;
+            this.valueSize = valueSize;
+            this.ack = ack;
+            this.from = from;
+            this.internal = internal;
+            this.status = status;
+            commit();
+        }
+    }
+}
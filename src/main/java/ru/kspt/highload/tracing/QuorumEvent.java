@@ -0,0 +1,53 @@
+package ru.kspt.highload.tracing;
+
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Wait for the local storage and the replicas until the quorum is decided
+ */
+@Name("ru.kspt.highload.Quorum")
+@Label("Quorum")
+@Category({"KV Storage", "Replication"})
+@StackTrace(false)
+public class QuorumEvent extends Event {
+    @Label("Acks")
+    int ack;
+
+    @Label("Replicas")
+    int from;
+
+    @Label("Acknowledged")
+    int acknowledged;
+
+    @Label("Hedged")
+    boolean hedged;
+
+    @Label("Outcome")
+    String outcome;
+
+    public static QuorumEvent start() {
+        final QuorumEvent event = new QuorumEvent();
+        event.begin();
+        return event;
+    }
+
+    /**
+     * Ends the event and commits it if it is enabled and long enough
+     */
+    public void complete(final int ack, final int from, final int acknowledged,
+            final boolean hedged) {
+        end();
+        if (shouldCommit()) {
+            this.ack = ack;
+            this.from = from;
+            this.acknowledged = acknowledged;
+            this.hedged = hedged;
+            this.outcome = acknowledged >= ack ? "quorum" : "not enough replicas";
+            commit();
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package ru.kspt.highload.tracing;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Round trip of a single request to a remote replica, including the time out
+ */
+@Name("ru.kspt.highload.ReplicaRequest")
+@Label("Replica Request")
+@Category({"KV Storage", "Replication"})
+@StackTrace(false)
+public class ReplicaRequestEvent extends Event {
+    @Label("Replica")
+    String replica;
+
+    @Label("Method")
+    String method;
+
+    @Label("Key Size")
+    @DataAmount
+    int keySize;
+
+    @Label("Value Size")
+    @DataAmount
+    int valueSize;
+
+    @Label("Outcome")
+    String outcome;
+
+    public static ReplicaRequestEvent start() {
+        final ReplicaRequestEvent event = new ReplicaRequestEvent();
+        event.begin();
+        return event;
+    }
+
+    /**
+     * Ends the event and commits it if it is enabled and long enough
+     */
+    public void complete(final String replica, final String method, final int keySize,
+            final int valueSize, final String outcome) {
+        end();
+        if (shouldCommit()) {
+            this.replica = replica;
+            this.method = method;
+            this.keySize = keySize;
+            this.valueSize = valueSize;
+            this.outcome = outcome;
+            commit();
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package ru.kspt.highload.tracing;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Ring buffer of the latest traces of the requests which took longer than the threshold.
+ * Faster requests are dropped, so keeping the buffer costs nothing until the latency grows.
+ */
+public class SlowTraces {
+    private final long thresholdNanos;
+
+    private final AtomicReferenceArray<Trace> traces;
+
+    private final AtomicLong keptCount = new AtomicLong();
+
+    public SlowTraces(final int capacity, final Duration threshold) {
+        this.thresholdNanos = threshold.toNanos();
+        this.traces = new AtomicReferenceArray<>(capacity);
+    }
+
+    /**
+     * Completes the trace and keeps it if it is slow
+     *
+     * @return whether the trace is kept
+     */
+    public boolean offer(final Trace trace) {
+        trace.finish();
+        if (trace.durationNanos() < thresholdNanos) {
+            return false;
+        }
+        traces.set((int) (keptCount.getAndIncrement() % traces.length()), trace);
+        return true;
+    }
+
+    /**
+     * @return kept traces, the latest first
+     */
+    List<Trace> snapshot() {
+        final long count = keptCount.get();
+        final int size = (int) Math.min(count, traces.length());
+        final List<Trace> result = new ArrayList<>(size);
+        for (long i = count - 1; i >= count - size; i--) {
+            final Trace trace = traces.get((int) (i % traces.length()));
+            if (trace != null) {
+                result.add(trace);
+            }
+        }
+        return result;
+    }
+
+    public String render() {
+        final StringBuilder out = new StringBuilder();
+        for (Trace trace : snapshot()) {
+            trace.render(out);
+        }
+        return out.toString();
+    }
+}
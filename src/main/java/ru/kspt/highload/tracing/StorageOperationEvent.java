@@ -0,0 +1,52 @@
+package ru.kspt.highload.tracing;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Query to the local H2 storage
+ */
+@Name("ru.kspt.highload.StorageOperation")
+@Label("Storage Operation")
+@Category({"KV Storage", "Storage"})
+@StackTrace(false)
+public class StorageOperationEvent extends Event {
+    @Label("Operation")
+    String operation;
+
+    @Label("Key Size")
+    @DataAmount
+    int keySize;
+
+    @Label("Value Size")
+    @DataAmount
+    int valueSize;
+
+    @Label("Outcome")
+    String outcome;
+
+    public static StorageOperationEvent start() {
+        final StorageOperationEvent event = new StorageOperationEvent();
+        event.begin();
+        return event;
+    }
+
+    /**
+     * Ends the event and commits it if it is enabled and long enough
+     */
+    public void complete(final String operation, final int keySize, final int valueSize,
+            final String outcome) {
+        end();
+        if (shouldCommit()) {
+            this.operation = operation;
+            this.keySize = keySize;
+            this.valueSize = valueSize;
+            this.outcome = outcome;
+            commit();
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package ru.kspt.highload.tracing;
+
+import lombok.AllArgsConstructor;
+import org.jetbrains.annotations.Nullable;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Timings of the phases of a single request on a single node. The trace ID is passed along
+ * with the requests to the replicas, so the traces of the same request on different nodes
+ * may be matched. Spans may be recorded from any thread.
+ */
+public class Trace {
+    private static final double NANOS_PER_MILLI = 1e6;
+
+    private final long id;
+
+    private final String name;
+
+    private final long startNanos;
+
+    private final long startMillis = System.currentTimeMillis();
+
+    private final List<Span> spans = new ArrayList<>();
+
+    private volatile long durationNanos = -1;
+
+    public Trace(final long id, final String name, final long startNanos) {
+        this.id = id;
+        this.name = name;
+        this.startNanos = startNanos;
+    }
+
+    /**
+     * @param traceIdHeader ID received from the coordinator, if any
+     */
+    public static Trace start(@Nullable final String traceIdHeader, final String name) {
+        return new Trace(parseId(traceIdHeader), name, System.nanoTime());
+    }
+
+    private static long parseId(@Nullable final String traceIdHeader) {
+        if (traceIdHeader != null) {
+            try {
+                final long id = Long.parseUnsignedLong(traceIdHeader.trim(), 16);
+                if (id != 0) return id;
+            } catch (NumberFormatException __) {
+                // a new trace is started
+            }
+        }
+        long id;
+        do {
+            id = ThreadLocalRandom.current().nextLong();
+        } while (id == 0);
+        return id;
+    }
+
+    public long id() {
+        return id;
+    }
+
+    public static String formatId(final long id) {
+        return Long.toHexString(id);
+    }
+
+    public long startNanos() {
+        return startNanos;
+    }
+
+    /**
+     * Records a phase which started at the given time and ends now
+     *
+     * @param detail e.g. the replica the phase is about
+     */
+    public void record(final String phase, @Nullable final String detail, final long phaseStartNanos) {
+        final long now = System.nanoTime();
+        final Span span = new Span(phase, detail, phaseStartNanos - startNanos, now - phaseStartNanos);
+        synchronized (spans) {
+            spans.add(span);
+        }
+    }
+
+    void finish() {
+        durationNanos = System.nanoTime() - startNanos;
+    }
+
+    long durationNanos() {
+        return durationNanos;
+    }
+
+    void render(final StringBuilder out) {
+        out.append("trace ").append(formatId(id)).append(' ').append(name)
+                .append(" at ").append(Instant.ofEpochMilli(startMillis))
+                .append(" took ").append(millis(durationNanos)).append('\n');
+        synchronized (spans) {
+            for (Span span : spans) {
+                out.append("  +").append(millis(span.offsetNanos)).append(' ').append(span.phase);
+                if (span.detail != null) {
+                    out.append(' ').append(span.detail);
+                }
+                out.append(' ').append(millis(span.durationNanos)).append('\n');
+            }
+        }
+    }
+
+    private static String millis(final long nanos) {
+        return String.format(Locale.ROOT, "%.3f ms", nanos / NANOS_PER_MILLI);
+    }
+
+    @AllArgsConstructor
+    private static class Span {
+        final String phase;
+
+        @Nullable
+        final String detail;
+
+        final long offsetNanos;
+
+        final long durationNanos;
+    }
+}
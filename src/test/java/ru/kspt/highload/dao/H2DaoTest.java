@@ -0,0 +1,157 @@
+package ru.kspt.highload.dao;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import ru.kspt.highload.dto.Key;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Comparator;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+class H2DaoTest {
+    private final Key key = Key.of(new byte[] {1, 2, 3});
+
+    private final byte[] value = new byte[] {4, 5, 6, 7};
+
+    private File data;
+
+    private H2Dao dao;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        data = Files.createTempDirectory("h2-dao-test").toFile();
+        dao = new H2Dao(data);
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        dao.close();
+        deleteRecursively(data);
+    }
+
+    @Test
+    void testRenderStats_QueriesAreTimedByTypeAndPhase() {
+        // given
+        dao.upsert(key, value);
+        dao.getValue(key);
+        // when
+        final String stats = dao.renderStats();
+        // then
+        Assertions.assertTrue(queryCount(stats, "read", "total") > 0);
+        Assertions.assertTrue(queryCount(stats, "read", "execute") > 0);
+        Assertions.assertTrue(queryCount(stats, "write", "render") > 0);
+        Assertions.assertEquals(0, queryCount(stats, "routine", "total"));
+    }
+
+    @Test
+    void testGet_IsRecordedAsStorageOperation() throws IOException {
+        // given
+        dao.upsert(key, value);
+        // when
+        final List<RecordedEvent> events = recordStorageOperations(() -> dao.get(key.getBytes()));
+        // then
+        final List<RecordedEvent> gets = events.stream()
+                .filter(event -> "get".equals(event.getString("operation")))
+                .collect(Collectors.toList());
+        Assertions.assertEquals(1, gets.size());
+        Assertions.assertEquals(key.getBytes().length, gets.get(0).getInt("keySize"));
+        Assertions.assertEquals(value.length, gets.get(0).getInt("valueSize"));
+        Assertions.assertEquals("found", gets.get(0).getString("outcome"));
+    }
+
+    @Test
+    void testInsertIfAbsent_AbsentIsInserted() {
+        // given
+        final Key deletedKey = Key.of(new byte[] {8, 9});
+        // when
+        final boolean isInserted = dao.insertIfAbsent(key, value);
+        final boolean isDeletedInserted = dao.insertIfAbsent(deletedKey, null);
+        // then
+        Assertions.assertTrue(isInserted);
+        Assertions.assertTrue(isDeletedInserted);
+        Assertions.assertArrayEquals(value, dao.get(key.getBytes()));
+        Assertions.assertTrue(dao.getValue(deletedKey).isDeleted);
+    }
+
+    @Test
+    void testInsertIfAbsent_ExistingIsKept() {
+        // given
+        final Key deletedKey = Key.of(new byte[] {8, 9});
+        dao.upsert(key, value);
+        dao.upsert(deletedKey, value);
+        dao.remove(deletedKey);
+        // when
+        final boolean isInserted = dao.insertIfAbsent(key, new byte[] {0});
+        final boolean isDeletedInserted = dao.insertIfAbsent(deletedKey, new byte[] {0});
+        // then
+        Assertions.assertFalse(isInserted);
+        Assertions.assertFalse(isDeletedInserted);
+        Assertions.assertArrayEquals(value, dao.get(key.getBytes()));
+        Assertions.assertTrue(dao.getValue(deletedKey).isDeleted);
+    }
+
+    @Test
+    void testSnapshot_IsRestoredAtStartup() throws IOException {
+        // given
+        final Key deletedKey = Key.of(new byte[] {8, 9});
+        dao.upsert(key, value);
+        dao.upsert(deletedKey, value);
+        dao.remove(deletedKey);
+        final File restoreData = Files.createTempDirectory("h2-dao-restore-test").toFile();
+        // when
+        final File snapshot = dao.snapshot();
+        Files.move(snapshot.toPath(), new File(restoreData, H2Dao.RESTORE_FILE_NAME).toPath());
+        final H2Dao restored = new H2Dao(restoreData);
+        // then
+        try {
+            Assertions.assertArrayEquals(value, restored.get(key.getBytes()));
+            Assertions.assertTrue(restored.getValue(deletedKey).isDeleted);
+            Assertions.assertEquals(dao.scan(null, 10).keySet(), restored.scan(null, 10).keySet());
+            Assertions.assertFalse(new File(restoreData, H2Dao.RESTORE_FILE_NAME).exists());
+        } finally {
+            restored.close();
+            deleteRecursively(restoreData);
+        }
+    }
+
+    private static long queryCount(final String stats, final String type, final String phase) {
+        final Matcher matcher = Pattern.compile("kvstorage_dao_query_seconds_count\\{type=\""
+                + type + "\",phase=\"" + phase + "\"} (\\d+)").matcher(stats);
+        Assertions.assertTrue(matcher.find(), "no histogram of " + type + " " + phase);
+        return Long.parseLong(matcher.group(1));
+    }
+
+    private static List<RecordedEvent> recordStorageOperations(final Runnable operations)
+            throws IOException {
+        final Path file = Files.createTempFile("h2-dao-test", ".jfr");
+        try (Recording recording = new Recording()) {
+            recording.enable("ru.kspt.highload.StorageOperation").withThreshold(Duration.ZERO);
+            recording.start();
+            operations.run();
+            recording.stop();
+            recording.dump(file);
+            return RecordingFile.readAllEvents(file);
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    private static void deleteRecursively(final File directory) throws IOException {
+        try (Stream<Path> paths = Files.walk(directory.toPath())) {
+            paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package ru.kspt.highload.dto;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+class KeyTest {
+    @Test
+    void testOf_StringAndBytesAreEqual() {
+        // given
+        final String string = "ключ";
+        // when
+        final Key fromString = Key.of(string);
+        final Key fromBytes = Key.of(string.getBytes(StandardCharsets.UTF_8));
+        // then
+        Assertions.assertEquals(fromString, fromBytes);
+        Assertions.assertEquals(fromString.hashCode(), fromBytes.hashCode());
+        Assertions.assertEquals(string, fromBytes.getString());
+    }
+
+    @Test
+    void testGetHash_SameAsArraysHashCode() {
+        // given
+        final byte[] bytes = {1, 2, 3};
+        // when
+        final Key key = Key.of(bytes);
+        // then
+        Assertions.assertEquals(Arrays.hashCode(bytes), key.getHash());
+        Assertions.assertSame(bytes, key.getBytes());
+    }
+}
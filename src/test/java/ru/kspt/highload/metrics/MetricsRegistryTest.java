@@ -0,0 +1,65 @@
+package ru.kspt.highload.metrics;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+class MetricsRegistryTest {
+    private final MetricsRegistry metrics = new MetricsRegistry();
+
+    @Test
+    void testRenderPrometheus_Counter() {
+        // given
+        metrics.counter("requests_total", "status", "200").add(3);
+        // when
+        final String rendered = metrics.renderPrometheus();
+        // then
+        Assertions.assertTrue(rendered.contains("# TYPE requests_total counter\n"));
+        Assertions.assertTrue(rendered.contains("requests_total{status=\"200\"} 3\n"));
+    }
+
+    @Test
+    void testRenderPrometheus_GaugeWithoutLabels() {
+        // given
+        metrics.gauge("queue_size", () -> 7);
+        // when
+        final String rendered = metrics.renderPrometheus();
+        // then
+        Assertions.assertTrue(rendered.contains("# TYPE queue_size gauge\n"));
+        Assertions.assertTrue(rendered.contains("queue_size 7\n"));
+    }
+
+    @Test
+    void testRenderPrometheus_LabelValuesAreEscaped() {
+        // given
+        metrics.counter("errors_total", "message", "a \"quoted\" one").increment();
+        // when
+        final String rendered = metrics.renderPrometheus();
+        // then
+        Assertions.assertTrue(rendered.contains("errors_total{message=\"a \\\"quoted\\\" one\"} 1\n"));
+    }
+
+    @Test
+    void testRenderPrometheus_Summary() {
+        // given
+        metrics.histogram("latency_seconds", "method", "GET")
+                .record(TimeUnit.MILLISECONDS.toNanos(2));
+        // when
+        final String rendered = metrics.renderPrometheus();
+        // then
+        Assertions.assertTrue(rendered.contains("# TYPE latency_seconds summary\n"));
+        Assertions.assertTrue(rendered.contains("latency_seconds{method=\"GET\",quantile=\"0.5\"} "));
+        Assertions.assertTrue(rendered.contains("latency_seconds_sum{method=\"GET\"} 0.002\n"));
+        Assertions.assertTrue(rendered.contains("latency_seconds_count{method=\"GET\"} 1\n"));
+    }
+
+    @Test
+    void testCounter_SameLabelsSameCounter() {
+        // when
+        metrics.counter("requests_total", "status", "200").increment();
+        metrics.counter("requests_total", "status", "200").increment();
+        // then
+        Assertions.assertEquals(2, metrics.counter("requests_total", "status", "200").sum());
+    }
+}
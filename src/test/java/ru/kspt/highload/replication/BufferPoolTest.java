@@ -0,0 +1,54 @@
+package ru.kspt.highload.replication;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+
+class BufferPoolTest {
+    private final BufferPool pool = new BufferPool(16, 64, 128);
+
+    @Test
+    void testAcquire_ReleasedBufferIsReused() {
+        // given
+        final ByteBuffer released = pool.acquire(20);
+        pool.release(released);
+        // when
+        final ByteBuffer acquired = pool.acquire(30);
+        // then
+        Assertions.assertSame(released, acquired);
+        Assertions.assertEquals(0, acquired.position());
+        Assertions.assertEquals(30, acquired.limit());
+        Assertions.assertEquals(32, acquired.capacity());
+        Assertions.assertEquals(1, pool.emptyClassMissesCount());
+        Assertions.assertEquals(0, pool.pooledBytes());
+    }
+
+    @Test
+    void testAcquire_OversizedBufferIsNotPooled() {
+        // given
+        final ByteBuffer oversized = pool.acquire(65);
+        // when
+        pool.release(oversized);
+        // then
+        Assertions.assertFalse(oversized.isDirect());
+        Assertions.assertEquals(1, pool.oversizedMissesCount());
+        Assertions.assertEquals(0, pool.pooledBytes());
+    }
+
+    @Test
+    void testRelease_FullClassDropsBuffer() {
+        // given
+        final ByteBuffer[] buffers = new ByteBuffer[3];
+        for (int i = 0; i < buffers.length; i++) {
+            buffers[i] = pool.acquire(64);
+        }
+        // when
+        for (ByteBuffer buffer : buffers) {
+            pool.release(buffer);
+        }
+        // then
+        Assertions.assertEquals(128, pool.pooledBytes());
+        Assertions.assertEquals(128, pool.allocatedBytes());
+    }
+}
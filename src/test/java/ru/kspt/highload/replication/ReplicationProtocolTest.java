@@ -0,0 +1,189 @@
+package ru.kspt.highload.replication;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import ru.kspt.highload.dto.PayloadStatus;
+import ru.kspt.highload.dto.ReplicaResponse;
+import ru.kspt.highload.dto.ResponseStatus;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+class ReplicationProtocolTest {
+    private final byte[] key = new byte[] {1, 2, 3};
+
+    private final byte[] value = new byte[] {4, 5, 6, 7};
+
+    private final BufferPool pool = new BufferPool(16, 1024, 4096);
+
+    @Test
+    void testEncodeRequest_PutIsDecoded() throws IOException {
+        // given
+        final ByteBuffer[] encoded = ReplicationProtocol.encodeRequest(pool, 42, 9, Opcode.PUT, key, value);
+        // when
+        final Frame frame = ReplicationProtocol.readFrame(channelOf(encoded), pool);
+        // then
+        Assertions.assertNotNull(frame);
+        Assertions.assertEquals(42, frame.requestId);
+        Assertions.assertEquals(9, frame.traceId);
+        Assertions.assertEquals(Opcode.PUT, frame.opcode);
+        Assertions.assertArrayEquals(key, ReplicationProtocol.decodeKey(frame.body));
+        Assertions.assertArrayEquals(value, ReplicationProtocol.decodeValue(frame.body));
+    }
+
+    @Test
+    void testEncodeRequest_GetHasNoValue() throws IOException {
+        // given
+        final ByteBuffer[] encoded = ReplicationProtocol.encodeRequest(pool, 1, 0, Opcode.GET, key, null);
+        // when
+        final Frame frame = ReplicationProtocol.readFrame(channelOf(encoded), pool);
+        // then
+        Assertions.assertNotNull(frame);
+        Assertions.assertEquals(Opcode.GET, frame.opcode);
+        Assertions.assertArrayEquals(key, ReplicationProtocol.decodeKey(frame.body));
+        Assertions.assertFalse(frame.body.hasRemaining());
+    }
+
+    @Test
+    void testEncodeTransferRequest_TombstoneHasNoValue() throws IOException {
+        // given
+        final ByteBuffer[] encoded = ReplicationProtocol.encodeTransferRequest(pool, 3, key, null);
+        // when
+        final Frame frame = ReplicationProtocol.readFrame(channelOf(encoded), pool);
+        // then
+        Assertions.assertNotNull(frame);
+        Assertions.assertEquals(Opcode.TRANSFER, frame.opcode);
+        Assertions.assertArrayEquals(key, ReplicationProtocol.decodeKey(frame.body));
+        Assertions.assertNull(ReplicationProtocol.decodeTransferredValue(frame.body));
+    }
+
+    @Test
+    void testKeyHash_SameForFramesOfSameKey() throws IOException {
+        // given
+        final ByteBuffer[] put = ReplicationProtocol.encodeRequest(pool, 1, 0, Opcode.PUT, key, value);
+        final ByteBuffer[] delete = ReplicationProtocol.encodeRequest(pool, 2, 0, Opcode.DELETE, key, null);
+        final Frame putFrame = ReplicationProtocol.readFrame(channelOf(put), pool);
+        final Frame deleteFrame = ReplicationProtocol.readFrame(channelOf(delete), pool);
+        // when
+        final int putHash = ReplicationProtocol.keyHash(putFrame.body);
+        final int deleteHash = ReplicationProtocol.keyHash(deleteFrame.body);
+        // then
+        Assertions.assertEquals(putHash, deleteHash);
+        Assertions.assertArrayEquals(key, ReplicationProtocol.decodeKey(putFrame.body));
+    }
+
+    @Test
+    void testEncodeResponse_EntityFoundIsDecoded() throws IOException {
+        // given
+        final ByteBuffer encoded =
+                ReplicationProtocol.encodeResponse(pool, 7, ReplicaResponse.entityFound(value));
+        // when
+        final Frame frame = ReplicationProtocol.readFrame(channelOf(encoded), pool);
+        // then
+        Assertions.assertNotNull(frame);
+        Assertions.assertEquals(7, frame.requestId);
+        Assertions.assertEquals(Opcode.RESPONSE, frame.opcode);
+        final ReplicaResponse response = ReplicationProtocol.decodeResponse(frame.body);
+        Assertions.assertEquals(ResponseStatus.ACK, response.responseStatus);
+        Assertions.assertEquals(PayloadStatus.FOUND, response.payloadStatus);
+        Assertions.assertArrayEquals(value, response.payload);
+    }
+
+    @Test
+    void testEncodeResponse_FailIsDecoded() throws IOException {
+        // given
+        final ByteBuffer encoded = ReplicationProtocol.encodeResponse(pool, 7, ReplicaResponse.fail());
+        // when
+        final Frame frame = ReplicationProtocol.readFrame(channelOf(encoded), pool);
+        // then
+        Assertions.assertNotNull(frame);
+        final ReplicaResponse response = ReplicationProtocol.decodeResponse(frame.body);
+        Assertions.assertEquals(ResponseStatus.NACK, response.responseStatus);
+        Assertions.assertNull(response.payload);
+    }
+
+    @Test
+    void testDecodeResponse_Truncated() {
+        // given
+        final ByteBuffer body = ByteBuffer.allocate(1);
+        // then
+        Assertions.assertThrows(ProtocolException.class,
+                () -> ReplicationProtocol.decodeResponse(body));
+    }
+
+    @Test
+    void testDecodeKey_Truncated() {
+        // given
+        final ByteBuffer body = ByteBuffer.allocate(2);
+        // then
+        Assertions.assertThrows(ProtocolException.class,
+                () -> ReplicationProtocol.decodeKey(body));
+    }
+
+    @Test
+    void testEncodeEnclosingHeader_BatchIsDecoded() throws IOException {
+        // given
+        final List<ByteBuffer> requests = new ArrayList<>();
+        requests.addAll(Arrays.asList(ReplicationProtocol.encodeRequest(pool, 1, 0, Opcode.PUT, key, value)));
+        requests.addAll(Arrays.asList(ReplicationProtocol.encodeRequest(pool, 2, 0, Opcode.DELETE, key, null)));
+        final ByteBuffer header = ReplicationProtocol.encodeEnclosingHeader(Opcode.BATCH, requests);
+        // when
+        final Frame batch = ReplicationProtocol.readFrame(channelOf(concat(header, requests)), pool);
+        // then
+        Assertions.assertNotNull(batch);
+        Assertions.assertEquals(Opcode.BATCH, batch.opcode);
+        final List<Frame> enclosed = ReplicationProtocol.decodeEnclosedFrames(batch.body);
+        Assertions.assertEquals(2, enclosed.size());
+        Assertions.assertEquals(1, enclosed.get(0).requestId);
+        Assertions.assertEquals(Opcode.PUT, enclosed.get(0).opcode);
+        Assertions.assertArrayEquals(key, ReplicationProtocol.decodeKey(enclosed.get(0).body));
+        Assertions.assertArrayEquals(value, ReplicationProtocol.decodeValue(enclosed.get(0).body));
+        Assertions.assertEquals(2, enclosed.get(1).requestId);
+        Assertions.assertEquals(Opcode.DELETE, enclosed.get(1).opcode);
+        Assertions.assertArrayEquals(key, ReplicationProtocol.decodeKey(enclosed.get(1).body));
+    }
+
+    @Test
+    void testReadFrame_EndOfStream() throws IOException {
+        // when
+        final Frame frame = ReplicationProtocol.readFrame(channelOf(ByteBuffer.allocate(0)), pool);
+        // then
+        Assertions.assertNull(frame);
+    }
+
+    @Test
+    void testReadFrame_MalformedLength() {
+        // given
+        final ByteBuffer encoded = ByteBuffer.allocate(Integer.BYTES).putInt(0, -1);
+        // then
+        Assertions.assertThrows(ProtocolException.class,
+                () -> ReplicationProtocol.readFrame(channelOf(encoded), pool));
+    }
+
+    private static ByteBuffer concat(final ByteBuffer header, final List<ByteBuffer> frames) {
+        final ByteBuffer result = ByteBuffer.allocate(
+                header.remaining() + frames.stream().mapToInt(ByteBuffer::remaining).sum());
+        result.put(header.duplicate());
+        frames.forEach(frame -> result.put(frame.duplicate()));
+        result.flip();
+        return result;
+    }
+
+    private static ReadableByteChannel channelOf(final ByteBuffer... buffers) {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        for (ByteBuffer buffer : buffers) {
+            final byte[] part = new byte[buffer.remaining()];
+            buffer.get(part);
+            bytes.write(part, 0, part.length);
+        }
+        return Channels.newChannel(new ByteArrayInputStream(bytes.toByteArray()));
+    }
+}
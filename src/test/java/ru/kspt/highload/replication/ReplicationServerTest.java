@@ -0,0 +1,120 @@
+package ru.kspt.highload.replication;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import ru.kspt.highload.dto.Key;
+import ru.kspt.highload.dto.PayloadStatus;
+import ru.kspt.highload.dto.ReplicaResponse;
+import ru.kspt.highload.dto.ResponseStatus;
+import ru.kspt.highload.tracing.SlowTraces;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+class ReplicationServerTest {
+    private static final byte[] BROKEN_KEY = new byte[] {-1};
+
+    private final byte[] value = new byte[2 * 1024 * 1024];
+
+    private final BufferPool pool = new BufferPool(16, 1024, 4096);
+
+    private ReplicationServer server;
+
+    private ReplicationClient client;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        server = new ReplicationServer(new StubHandler(),
+                new SlowTraces(1, Duration.ofHours(1)), pool);
+        server.start();
+        client = ReplicationClient.connect("localhost", server.port(), Duration.ofSeconds(1), pool);
+    }
+
+    @AfterEach
+    void tearDown() {
+        client.close();
+        server.stop();
+    }
+
+    @Test
+    void testGetBatch_ResponsesLargerThanFrameAreSplit() throws Exception {
+        // given
+        final List<byte[]> keys = IntStream.range(0, 17)
+                .mapToObj(i -> new byte[] {(byte) i})
+                .collect(Collectors.toList());
+        // when
+        final List<CompletableFuture<ReplicaResponse>> responses = client.getEntities(keys);
+        // then
+        for (CompletableFuture<ReplicaResponse> response : responses) {
+            final ReplicaResponse found = response.get(10, TimeUnit.SECONDS);
+            Assertions.assertEquals(PayloadStatus.FOUND, found.payloadStatus);
+            Assertions.assertEquals(value.length, found.payload.length);
+        }
+        Assertions.assertEquals(ResponseStatus.ACK,
+                client.ping().get(10, TimeUnit.SECONDS).responseStatus);
+    }
+
+    @Test
+    void testGet_FailureOfHandlerIsAnswered() throws Exception {
+        // when
+        final ReplicaResponse response = client.getEntity(BROKEN_KEY, 0).get(10, TimeUnit.SECONDS);
+        // then
+        Assertions.assertEquals(ResponseStatus.NACK, response.responseStatus);
+    }
+
+    @Test
+    void testGetBatch_FailureOfHandlerFailsItsRequestOnly() throws Exception {
+        // given
+        final List<byte[]> keys = Arrays.asList(new byte[] {1}, BROKEN_KEY, new byte[] {2});
+        // when
+        final List<CompletableFuture<ReplicaResponse>> responses = client.getEntities(keys);
+        // then
+        Assertions.assertEquals(ResponseStatus.ACK,
+                responses.get(0).get(10, TimeUnit.SECONDS).responseStatus);
+        Assertions.assertEquals(ResponseStatus.NACK,
+                responses.get(1).get(10, TimeUnit.SECONDS).responseStatus);
+        Assertions.assertEquals(ResponseStatus.ACK,
+                responses.get(2).get(10, TimeUnit.SECONDS).responseStatus);
+    }
+
+    /**
+     * Finds the same value for every key but {@link #BROKEN_KEY}, which it fails to serve
+     */
+    private class StubHandler implements ReplicationHandler {
+        @Override
+        public ReplicaResponse getEntity(final Key key) {
+            if (Arrays.equals(BROKEN_KEY, key.getBytes())) {
+                throw new IllegalStateException("Broken key");
+            }
+            return ReplicaResponse.entityFound(value);
+        }
+
+        @Override
+        public ReplicaResponse putEntity(final Key key, final byte[] value) {
+            return ReplicaResponse.success();
+        }
+
+        @Override
+        public ReplicaResponse deleteEntity(final Key key) {
+            return ReplicaResponse.success();
+        }
+
+        @Override
+        public ReplicaResponse putEntities(final List<Key> keys, final List<byte[]> values) {
+            return ReplicaResponse.success();
+        }
+
+        @Override
+        public ReplicaResponse transferEntity(final Key key, final byte[] value) {
+            return ReplicaResponse.success();
+        }
+    }
+}
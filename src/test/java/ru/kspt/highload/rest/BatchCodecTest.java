@@ -0,0 +1,90 @@
+package ru.kspt.highload.rest;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import ru.kspt.highload.dto.Key;
+import ru.kspt.highload.dto.ReplicaResponse;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+class BatchCodecTest {
+    @Test
+    void testDecodeKeys() {
+        // given
+        final byte[] body = ByteBuffer.allocate(11)
+                .putInt(2).put("k1".getBytes())
+                .putInt(1).put("k".getBytes())
+                .array();
+        // when
+        final List<Key> keys = BatchCodec.decodeKeys(body);
+        // then
+        Assertions.assertEquals(Arrays.asList(Key.of("k1"), Key.of("k")), keys);
+    }
+
+    @Test
+    void testDecodeEntries() {
+        // given
+        final byte[] body = ByteBuffer.allocate(13)
+                .putInt(1).put("k".getBytes())
+                .putInt(4).put(new byte[] {1, 2, 3, 4})
+                .array();
+        final List<Key> keys = new ArrayList<>();
+        final List<byte[]> values = new ArrayList<>();
+        // when
+        BatchCodec.decodeEntries(body, keys, values);
+        // then
+        Assertions.assertEquals(Arrays.asList(Key.of("k")), keys);
+        Assertions.assertArrayEquals(new byte[] {1, 2, 3, 4}, values.get(0));
+    }
+
+    @Test
+    void testDecodeKeys_TruncatedBody() {
+        // given
+        final byte[] body = ByteBuffer.allocate(5).putInt(2).put((byte) 'k').array();
+        // when & then
+        Assertions.assertThrows(IllegalArgumentException.class, () -> BatchCodec.decodeKeys(body));
+    }
+
+    @Test
+    void testDecodeEntries_LengthBeyondBody() {
+        // given
+        final byte[] body = ByteBuffer.allocate(10)
+                .putInt(1).put("k".getBytes())
+                .putInt(0x7FFFFFF0).put((byte) 1)
+                .array();
+        // when & then
+        Assertions.assertThrows(IllegalArgumentException.class,
+                () -> BatchCodec.decodeEntries(body, new ArrayList<>(), new ArrayList<>()));
+    }
+
+    @Test
+    void testDecodeKeys_NegativeLength() {
+        // given
+        final byte[] body = ByteBuffer.allocate(4).putInt(-1).array();
+        // when & then
+        Assertions.assertThrows(IllegalArgumentException.class, () -> BatchCodec.decodeKeys(body));
+    }
+
+    @Test
+    void testEncodeResults() {
+        // given
+        final List<ReplicaResponse> results = Arrays.asList(
+                ReplicaResponse.entityFound(new byte[] {7}),
+                ReplicaResponse.entityNotFound(),
+                ReplicaResponse.fail());
+        // when
+        final ByteBuffer encoded = ByteBuffer.wrap(BatchCodec.encodeResults(results, 200));
+        // then
+        Assertions.assertEquals(200, encoded.getShort());
+        Assertions.assertEquals(1, encoded.getInt());
+        Assertions.assertEquals(7, encoded.get());
+        Assertions.assertEquals(404, encoded.getShort());
+        Assertions.assertEquals(0, encoded.getInt());
+        Assertions.assertEquals(504, encoded.getShort());
+        Assertions.assertEquals(0, encoded.getInt());
+        Assertions.assertFalse(encoded.hasRemaining());
+    }
+}
@@ -0,0 +1,98 @@
+package ru.kspt.highload.service;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+
+class AdmissionControllerTest {
+    private static final Duration TARGET = Duration.ofMillis(5);
+
+    private static final Duration INTERVAL = Duration.ofMillis(20);
+
+    private final AdmissionController admission = new AdmissionController(TARGET, INTERVAL, 2);
+
+    @Test
+    void testTryAcquire_InFlightRequestsAreLimited() {
+        // given
+        Assertions.assertTrue(admission.tryAcquire());
+        Assertions.assertTrue(admission.tryAcquire());
+        // when
+        final boolean isAdmitted = admission.tryAcquire();
+        // then
+        Assertions.assertFalse(isAdmitted);
+        Assertions.assertEquals(1, admission.rejectedCount());
+        admission.release();
+        Assertions.assertTrue(admission.tryAcquire());
+    }
+
+    @Test
+    void testTryAcquire_RejectsAfterStandingQueue() throws InterruptedException {
+        // given
+        admission.onQueueDelay(TARGET.toNanos() * 2);
+        Thread.sleep(INTERVAL.toMillis() + 5);
+        admission.onQueueDelay(TARGET.toNanos() * 2);
+        // when
+        final boolean isAdmitted = admission.tryAcquire();
+        // then
+        Assertions.assertFalse(isAdmitted);
+        Assertions.assertTrue(admission.isOverloaded());
+    }
+
+    @Test
+    void testTryAcquire_BurstIsAbsorbed() throws InterruptedException {
+        // given
+        admission.onQueueDelay(TARGET.toNanos() * 2);
+        admission.onQueueDelay(0);
+        Thread.sleep(INTERVAL.toMillis() + 5);
+        admission.onQueueDelay(TARGET.toNanos() * 2);
+        // when
+        final boolean isAdmitted = admission.tryAcquire();
+        // then
+        Assertions.assertTrue(isAdmitted);
+        Assertions.assertFalse(admission.isOverloaded());
+    }
+
+    @Test
+    void testTryAcquire_AdmitsBetweenDrops() throws InterruptedException {
+        // given
+        admission.onQueueDelay(TARGET.toNanos() * 2);
+        Thread.sleep(INTERVAL.toMillis() + 5);
+        admission.onQueueDelay(TARGET.toNanos() * 2);
+        Assertions.assertFalse(admission.tryAcquire());
+        // when
+        final boolean isAdmitted = admission.tryAcquire();
+        // then
+        Assertions.assertTrue(isAdmitted);
+        Assertions.assertTrue(admission.isOverloaded());
+    }
+
+    @Test
+    void testTryAcquire_RecoversOnceDelayIsBelowTarget() throws InterruptedException {
+        // given
+        admission.onQueueDelay(TARGET.toNanos() * 2);
+        Thread.sleep(INTERVAL.toMillis() + 5);
+        admission.onQueueDelay(TARGET.toNanos() * 2);
+        Thread.sleep(INTERVAL.toMillis() + 5);
+        // when
+        admission.onQueueDelay(0);
+        // then
+        Assertions.assertFalse(admission.isOverloaded());
+        Assertions.assertTrue(admission.tryAcquire());
+    }
+
+    @Test
+    void testTryAcquire_RecoversOnceIdle() throws InterruptedException {
+        // given
+        admission.onQueueDelay(TARGET.toNanos() * 2);
+        Thread.sleep(INTERVAL.toMillis() + 5);
+        admission.onQueueDelay(TARGET.toNanos() * 2);
+        Assertions.assertFalse(admission.tryAcquire());
+        Thread.sleep(INTERVAL.toMillis() + 5);
+        // when
+        final boolean isAdmitted = admission.tryAcquire();
+        // then
+        Assertions.assertTrue(isAdmitted);
+        Assertions.assertFalse(admission.isOverloaded());
+    }
+}
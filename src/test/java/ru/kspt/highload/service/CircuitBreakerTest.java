@@ -0,0 +1,75 @@
+package ru.kspt.highload.service;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+
+class CircuitBreakerTest {
+    private static final int FAILURES_THRESHOLD = 3;
+
+    @Test
+    void testOnFailure_OpensAfterConsecutiveFailures() {
+        // given
+        final CircuitBreaker breaker = new CircuitBreaker(FAILURES_THRESHOLD, Duration.ofHours(1));
+        // when
+        breaker.onFailure();
+        breaker.onFailure();
+        breaker.onSuccess();
+        breaker.onFailure();
+        breaker.onFailure();
+        final boolean isAllowedBefore = breaker.allowRequest();
+        final boolean isJustOpened = breaker.onFailure();
+        // then
+        Assertions.assertTrue(isAllowedBefore);
+        Assertions.assertTrue(isJustOpened);
+        Assertions.assertEquals(CircuitBreaker.State.OPEN, breaker.state());
+        Assertions.assertFalse(breaker.allowRequest());
+    }
+
+    @Test
+    void testAllowRequest_SingleProbeWhenOpen() {
+        // given
+        final CircuitBreaker breaker = new CircuitBreaker(FAILURES_THRESHOLD, Duration.ZERO);
+        for (int i = 0; i < FAILURES_THRESHOLD; i++) {
+            breaker.onFailure();
+        }
+        // when
+        final boolean isProbeAllowed = breaker.allowRequest();
+        final boolean isSecondRequestAllowed = breaker.allowRequest();
+        // then
+        Assertions.assertTrue(isProbeAllowed);
+        Assertions.assertFalse(isSecondRequestAllowed);
+        Assertions.assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.state());
+    }
+
+    @Test
+    void testOnSuccess_ClosesAfterSuccessfulProbe() {
+        // given
+        final CircuitBreaker breaker = new CircuitBreaker(FAILURES_THRESHOLD, Duration.ZERO);
+        for (int i = 0; i < FAILURES_THRESHOLD; i++) {
+            breaker.onFailure();
+        }
+        breaker.allowRequest();
+        // when
+        breaker.onSuccess();
+        // then
+        Assertions.assertEquals(CircuitBreaker.State.CLOSED, breaker.state());
+        Assertions.assertTrue(breaker.allowRequest());
+    }
+
+    @Test
+    void testOnFailure_ReopensAfterFailedProbe() {
+        // given
+        final CircuitBreaker breaker = new CircuitBreaker(FAILURES_THRESHOLD, Duration.ZERO);
+        for (int i = 0; i < FAILURES_THRESHOLD; i++) {
+            breaker.onFailure();
+        }
+        breaker.allowRequest();
+        // when
+        final boolean isJustOpened = breaker.onFailure();
+        // then
+        Assertions.assertFalse(isJustOpened);
+        Assertions.assertEquals(CircuitBreaker.State.OPEN, breaker.state());
+    }
+}
@@ -0,0 +1,42 @@
+package ru.kspt.highload.service;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+class HedgeBudgetTest {
+    private final HedgeBudget hedgeBudget = new HedgeBudget();
+
+    @Test
+    void testTryAcquire_NoRequestsSent() {
+        // when
+        final boolean isAcquired = hedgeBudget.tryAcquire();
+        // then
+        Assertions.assertFalse(isAcquired);
+    }
+
+    @Test
+    void testTryAcquire_AtMostFivePercentOfRequests() {
+        // given
+        hedgeBudget.onRequestsSent(100);
+        // when
+        int hedgesCount = 0;
+        while (hedgeBudget.tryAcquire()) {
+            hedgesCount++;
+        }
+        // then
+        Assertions.assertEquals(5, hedgesCount);
+    }
+
+    @Test
+    void testTryAcquire_BurstIsLimited() {
+        // given
+        hedgeBudget.onRequestsSent(1_000_000);
+        // when
+        int hedgesCount = 0;
+        while (hedgeBudget.tryAcquire()) {
+            hedgesCount++;
+        }
+        // then
+        Assertions.assertEquals(10, hedgesCount);
+    }
+}
@@ -0,0 +1,38 @@
+package ru.kspt.highload.service;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+class PhiAccrualFailureDetectorTest {
+    private static final long INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final PhiAccrualFailureDetector detector = new PhiAccrualFailureDetector(8, 100,
+            Duration.ofMillis(10), Duration.ZERO, Duration.ofNanos(INTERVAL_NANOS));
+
+    @Test
+    void testIsAvailable_NoHeartbeatYet() {
+        // then
+        Assertions.assertEquals(0.0, detector.phi(System.nanoTime()));
+        Assertions.assertTrue(detector.isAvailable(System.nanoTime()));
+    }
+
+    @Test
+    void testPhi_GrowsWithTimeSinceLastHeartbeat() {
+        // given
+        for (int i = 0; i < 10; i++) {
+            detector.heartbeat(i * INTERVAL_NANOS);
+        }
+        final long lastHeartbeat = 9 * INTERVAL_NANOS;
+        // when
+        final double onTime = detector.phi(lastHeartbeat + INTERVAL_NANOS);
+        final double late = detector.phi(lastHeartbeat + 2 * INTERVAL_NANOS);
+        // then
+        Assertions.assertTrue(onTime < 1);
+        Assertions.assertTrue(late > onTime);
+        Assertions.assertTrue(detector.isAvailable(lastHeartbeat + INTERVAL_NANOS));
+        Assertions.assertFalse(detector.isAvailable(lastHeartbeat + 10 * INTERVAL_NANOS));
+    }
+}
@@ -6,9 +6,11 @@ import org.junit.jupiter.api.Assumptions;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.params.ParameterizedTest;
 import org.junit.jupiter.params.provider.ValueSource;
+import ru.kspt.highload.dto.Key;
 
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 class ReplicaResolverTest {
     private final Replica[] allReps = new Replica[] {
@@ -18,11 +20,11 @@ class ReplicaResolverTest {
 
     private final ReplicaResolver replicaResolver = new ReplicaResolver(Arrays.asList(allReps));
 
-    private final byte[] keyFor1stReplica = new byte[] {1, 2, 2};
+    private final Key keyFor1stReplica = Key.of(new byte[] {1, 2, 2});
 
-    private final byte[] keyFor2ndReplica = new byte[] {1, 2, 3};
+    private final Key keyFor2ndReplica = Key.of(new byte[] {1, 2, 3});
 
-    private final byte[] keyFor3rdReplica = new byte[] {1, 2, 4};
+    private final Key keyFor3rdReplica = Key.of(new byte[] {1, 2, 4});
 
     @ParameterizedTest(name = "[{index}] {0} replica(s)")
     @ValueSource(ints = {1, 2, 3})
@@ -66,6 +68,22 @@ class ReplicaResolverTest {
         }
     }
 
+    @Test
+    void testChooseReplicasForKey_SuspectedReplicaIsSkipped() {
+        // given
+        final long now = System.nanoTime();
+        for (int i = 10; i > 0; i--) {
+            allReps[0].failureDetector.heartbeat(now - TimeUnit.SECONDS.toNanos(10)
+                    - TimeUnit.MILLISECONDS.toNanos(100 * i));
+        }
+        allReps[0].updateSuspicion(now);
+        // when
+        final Replica[] replicas = replicaResolver.chooseReplicasForKey(keyFor1stReplica, 3);
+        // then
+        Assertions.assertTrue(allReps[0].isSuspected());
+        Assertions.assertArrayEquals(new Replica[] {allReps[1], allReps[2], allReps[0]}, replicas);
+    }
+
     @Test
     void testChooseReplicasForKey_SameReplicaForSameHash() {
         // given
@@ -74,8 +92,8 @@ class ReplicaResolverTest {
         Assumptions.assumeFalse(Arrays.equals(keyOne, keyTwo));
         Assumptions.assumeTrue(Arrays.hashCode(keyOne) == Arrays.hashCode(keyTwo));
         // when
-        final Replica[] replicasOne = replicaResolver.chooseReplicasForKey(keyOne, 1);
-        final Replica[] replicasTwo = replicaResolver.chooseReplicasForKey(keyTwo, 1);
+        final Replica[] replicasOne = replicaResolver.chooseReplicasForKey(Key.of(keyOne), 1);
+        final Replica[] replicasTwo = replicaResolver.chooseReplicasForKey(Key.of(keyTwo), 1);
         // then
         Assertions.assertArrayEquals(replicasOne, replicasTwo);
     }
@@ -0,0 +1,82 @@
+package ru.kspt.highload.service;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.NoSuchElementException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+class SingleFlightTest {
+    private final SingleFlight<String, Integer> singleFlight = new SingleFlight<>();
+
+    @Test
+    void testExecute_ConcurrentCallsAreCoalesced() throws Exception {
+        // given
+        final long arrivedAt = System.nanoTime();
+        final CompletableFuture<Integer> call = new CompletableFuture<>();
+        final AtomicInteger callsCount = new AtomicInteger();
+        final CompletableFuture<Integer> leader = singleFlight.execute("key", arrivedAt, () -> {
+            callsCount.incrementAndGet();
+            return call;
+        });
+        // when
+        final CompletableFuture<Integer> follower = singleFlight.execute("key", arrivedAt, () -> {
+            callsCount.incrementAndGet();
+            return CompletableFuture.completedFuture(2);
+        });
+        call.complete(1);
+        // then
+        Assertions.assertEquals(1, (int) leader.get());
+        Assertions.assertEquals(1, (int) follower.get());
+        Assertions.assertEquals(1, callsCount.get());
+        Assertions.assertEquals(1, singleFlight.coalescedCallsCount());
+    }
+
+    @Test
+    void testExecute_CallStartedBeforeArrivalIsNotJoined() throws Exception {
+        // given
+        final CompletableFuture<Integer> staleCall = new CompletableFuture<>();
+        final CompletableFuture<Integer> freshCall = new CompletableFuture<>();
+        final CompletableFuture<Integer> stale = singleFlight.execute("key", System.nanoTime(),
+                () -> staleCall);
+        final long arrivedAt = System.nanoTime();
+        // when
+        final CompletableFuture<Integer> fresh = singleFlight.execute("key", arrivedAt, () -> freshCall);
+        final CompletableFuture<Integer> follower = singleFlight.execute("key", arrivedAt,
+                () -> CompletableFuture.completedFuture(3));
+        staleCall.complete(1);
+        freshCall.complete(2);
+        // then
+        Assertions.assertEquals(1, (int) stale.get());
+        Assertions.assertEquals(2, (int) fresh.get());
+        Assertions.assertEquals(2, (int) follower.get());
+        Assertions.assertEquals(1, singleFlight.coalescedCallsCount());
+    }
+
+    @Test
+    void testExecute_SequentialCallsAreNotCoalesced() throws Exception {
+        // given
+        final AtomicInteger callsCount = new AtomicInteger();
+        // when
+        singleFlight.execute("key", System.nanoTime(), () ->
+                CompletableFuture.completedFuture(callsCount.incrementAndGet())).get();
+        singleFlight.execute("key", System.nanoTime(), () ->
+                CompletableFuture.completedFuture(callsCount.incrementAndGet())).get();
+        // then
+        Assertions.assertEquals(2, callsCount.get());
+        Assertions.assertEquals(0, singleFlight.coalescedCallsCount());
+    }
+
+    @Test
+    void testExecute_ExceptionIsShared() {
+        // when
+        final CompletableFuture<Integer> result = singleFlight.execute("key", System.nanoTime(), () -> {
+            throw new NoSuchElementException();
+        });
+        // then
+        final ExecutionException e = Assertions.assertThrows(ExecutionException.class, result::get);
+        Assertions.assertTrue(e.getCause() instanceof NoSuchElementException);
+    }
+}
@@ -0,0 +1,149 @@
+package ru.kspt.highload.service;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import ru.kspt.highload.dto.ReplicaResponse;
+import ru.kspt.highload.tracing.Trace;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+class TaskSchedulerTest {
+    /**
+     * Enough requests to earn a hedge from the budget
+     */
+    private static final int REPLICAS_COUNT = 20;
+
+    private final TaskScheduler scheduler = new TaskScheduler(
+            new AdmissionController(Duration.ofSeconds(1), Duration.ofSeconds(1), 100));
+
+    private final Replica slowReplica = Replica.create("localhost:1");
+
+    private final Replica spareReplica = Replica.create("localhost:2");
+
+    @BeforeEach
+    void setUp() {
+        scheduler.start();
+        for (int i = 0; i < 16; i++) {
+            slowReplica.latencyTracker.record(TimeUnit.MILLISECONDS.toNanos(1));
+        }
+    }
+
+    @AfterEach
+    void tearDown() {
+        scheduler.stop();
+    }
+
+    @Test
+    void testSchedule_BlockingHedgeDoesNotHoldTimer() throws Exception {
+        // given
+        final CountDownLatch isHedging = new CountDownLatch(1);
+        final CountDownLatch isUnblocked = new CountDownLatch(1);
+        final Function<Replica, CompletableFuture<ReplicaResponse>> request = replica -> {
+            if (replica != spareReplica) {
+                return new CompletableFuture<>();
+            }
+            // as if the connection to the spare replica is blocked on write
+            isHedging.countDown();
+            awaitQuietly(isUnblocked);
+            return CompletableFuture.completedFuture(ReplicaResponse.success());
+        };
+        // when
+        final CompletableFuture<List<ReplicaResponse>> result = scheduler.schedule(
+                ReplicaResponse::success, request,
+                Collections.nCopies(REPLICAS_COUNT, slowReplica),
+                Collections.singletonList(spareReplica),
+                2, new Trace(1, "test", System.nanoTime()));
+        // then
+        try {
+            Assertions.assertTrue(isHedging.await(5, TimeUnit.SECONDS));
+            final CountDownLatch isTimerFired = new CountDownLatch(1);
+            Timeouts.schedule(isTimerFired::countDown, 0);
+            Assertions.assertTrue(isTimerFired.await(5, TimeUnit.SECONDS));
+        } finally {
+            isUnblocked.countDown();
+        }
+        Assertions.assertEquals(2, result.get(5, TimeUnit.SECONDS).size());
+    }
+
+    @Test
+    void testSchedule_LocalRequestRunsAlongWithRemoteOnes() throws Exception {
+        // given
+        final CountDownLatch isRemoteSent = new CountDownLatch(1);
+        // the local request only completes once a remote one is sent
+        final Supplier<ReplicaResponse> localRequest = () -> {
+            try {
+                return isRemoteSent.await(5, TimeUnit.SECONDS)
+                        ? ReplicaResponse.success()
+                        : ReplicaResponse.fail();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return ReplicaResponse.fail();
+            }
+        };
+        final Function<Replica, CompletableFuture<ReplicaResponse>> request = replica -> {
+            isRemoteSent.countDown();
+            return CompletableFuture.completedFuture(ReplicaResponse.success());
+        };
+        // when
+        final CompletableFuture<List<ReplicaResponse>> result = scheduler.schedule(
+                localRequest, request, Collections.singletonList(spareReplica),
+                Collections.emptyList(), 2, new Trace(1, "test", System.nanoTime()));
+        // then
+        Assertions.assertEquals(2, result.get(10, TimeUnit.SECONDS).size());
+    }
+
+    @Test
+    void testSchedule_IsRecordedAsQuorum() throws Exception {
+        // when
+        final List<RecordedEvent> events = recordQuorums(() -> scheduler.schedule(
+                ReplicaResponse::success,
+                replica -> CompletableFuture.completedFuture(ReplicaResponse.fail()),
+                Collections.singletonList(spareReplica), Collections.emptyList(),
+                2, new Trace(1, "test", System.nanoTime()))
+                .get(10, TimeUnit.SECONDS));
+        // then
+        Assertions.assertEquals(1, events.size());
+        Assertions.assertEquals(2, events.get(0).getInt("ack"));
+        Assertions.assertEquals(2, events.get(0).getInt("from"));
+        Assertions.assertEquals(1, events.get(0).getInt("acknowledged"));
+        Assertions.assertEquals("not enough replicas", events.get(0).getString("outcome"));
+    }
+
+    private static List<RecordedEvent> recordQuorums(final Callable<?> requests)
+            throws Exception {
+        final Path file = Files.createTempFile("task-scheduler-test", ".jfr");
+        try (Recording recording = new Recording()) {
+            recording.enable("ru.kspt.highload.Quorum").withThreshold(Duration.ZERO);
+            recording.start();
+            requests.call();
+            recording.stop();
+            recording.dump(file);
+            return RecordingFile.readAllEvents(file);
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    private static void awaitQuietly(final CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package ru.kspt.highload.service;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import ru.kspt.highload.dto.Key;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+class TopologyTest {
+    private final Replica first = Replica.create("example.com:8081");
+
+    private final Replica second = Replica.create("example.com:8082");
+
+    private final Replica third = Replica.create("example.com:8083");
+
+    @Test
+    void testRebalancingTo_AllReplicas() {
+        // given
+        final Topology topology = Topology.of(Arrays.asList(first, second));
+        // when
+        final Topology rebalancing = topology.rebalancingTo(Arrays.asList(second, third));
+        // then
+        Assertions.assertTrue(rebalancing.isRebalancing());
+        Assertions.assertEquals(Arrays.asList(first, second, third),
+                Arrays.asList(rebalancing.allReplicas().toArray()));
+    }
+
+    @Test
+    void testChooseNextReplicasForKey_PlacedAsOnceRebalanced() {
+        // given
+        final List<Replica> nextReplicas = Arrays.asList(second, third);
+        final Topology rebalancing = Topology.of(Arrays.asList(first, second, third))
+                .rebalancingTo(nextReplicas);
+        for (int i = 0; i < 10; i++) {
+            final Key key = Key.of("key" + i);
+            // when
+            final Replica[] chosen = rebalancing.chooseNextReplicasForKey(key, 1);
+            final Replica[] chosenAll = rebalancing.chooseNextReplicasForKey(key, 3);
+            // then
+            Assertions.assertArrayEquals(
+                    Topology.of(nextReplicas).chooseReplicasForKey(key, 1), chosen);
+            Assertions.assertEquals(
+                    new HashSet<>(nextReplicas), new HashSet<>(Arrays.asList(chosenAll)));
+        }
+    }
+
+    @Test
+    void testRebalanced_NextReplicasAreCurrent() {
+        // given
+        final Topology rebalancing = Topology.of(Arrays.asList(first, second))
+                .rebalancingTo(Arrays.asList(second, first, third));
+        // when
+        final Topology rebalanced = rebalancing.rebalanced();
+        // then
+        Assertions.assertFalse(rebalanced.isRebalancing());
+        Assertions.assertEquals(3, rebalanced.size());
+        Assertions.assertEquals(Arrays.asList(second, first, third), rebalanced.replicas());
+    }
+}
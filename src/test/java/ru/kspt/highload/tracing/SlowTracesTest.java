@@ -0,0 +1,55 @@
+package ru.kspt.highload.tracing;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.List;
+
+class SlowTracesTest {
+    private static final long SLOW_NANOS = Duration.ofMillis(100).toNanos();
+
+    private final SlowTraces slowTraces = new SlowTraces(2, Duration.ofMillis(50));
+
+    private static Trace traceStartedAgo(final long id, final long nanos) {
+        return new Trace(id, "GET", System.nanoTime() - nanos);
+    }
+
+    @Test
+    void testOffer_FastTraceIsDropped() {
+        // given
+        final Trace trace = traceStartedAgo(1, 0);
+        // when
+        final boolean isKept = slowTraces.offer(trace);
+        // then
+        Assertions.assertFalse(isKept);
+        Assertions.assertTrue(slowTraces.snapshot().isEmpty());
+    }
+
+    @Test
+    void testOffer_OldestTraceIsOverwritten() {
+        // given
+        slowTraces.offer(traceStartedAgo(1, SLOW_NANOS));
+        slowTraces.offer(traceStartedAgo(2, SLOW_NANOS));
+        // when
+        slowTraces.offer(traceStartedAgo(3, SLOW_NANOS));
+        // then
+        final List<Trace> traces = slowTraces.snapshot();
+        Assertions.assertEquals(2, traces.size());
+        Assertions.assertEquals(3, traces.get(0).id());
+        Assertions.assertEquals(2, traces.get(1).id());
+    }
+
+    @Test
+    void testRender_SpansAreListed() {
+        // given
+        final Trace trace = traceStartedAgo(0xabc, SLOW_NANOS);
+        trace.record("replica", "localhost:8080 ACK", trace.startNanos());
+        slowTraces.offer(trace);
+        // when
+        final String rendered = slowTraces.render();
+        // then
+        Assertions.assertTrue(rendered.startsWith("trace abc GET at "));
+        Assertions.assertTrue(rendered.contains("replica localhost:8080 ACK"));
+    }
+}
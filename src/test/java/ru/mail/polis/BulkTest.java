@@ -0,0 +1,94 @@
+package ru.mail.polis;
+
+import one.nio.http.Response;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests of the bulk import into a two node {@link KVService} cluster
+ */
+class BulkTest extends ClusterTestBase {
+    private static final Duration TIMEOUT = Duration.ofMinutes(1);
+    private File data0;
+    private File data1;
+    private KVDao dao0;
+    private KVDao dao1;
+    private KVService storage0;
+    private KVService storage1;
+
+    @BeforeEach
+    void beforeEach() throws Exception {
+        final int port0 = randomPort();
+        final int port1 = randomPort();
+        endpoints = new LinkedHashSet<>(Arrays.asList(endpoint(port0), endpoint(port1)));
+        data0 = Files.createTempDirectory();
+        dao0 = KVDaoFactory.create(data0);
+        storage0 = KVServiceFactory.create(port0, dao0, endpoints);
+        start(0, storage0);
+        data1 = Files.createTempDirectory();
+        dao1 = KVDaoFactory.create(data1);
+        storage1 = KVServiceFactory.create(port1, dao1, endpoints);
+        start(1, storage1);
+    }
+
+    @AfterEach
+    void afterEach() throws IOException {
+        stop(0, storage0);
+        dao0.close();
+        Files.recursiveDelete(data0);
+        stop(1, storage1);
+        dao1.close();
+        Files.recursiveDelete(data1);
+        endpoints = Collections.emptySet();
+    }
+
+    @Test
+    void storedOnAllReplicas() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            final String[] keys = {randomId(), randomId(), randomId()};
+            final byte[][] values = {randomValue(), randomValue(), randomValue()};
+
+            assertEquals(201, bulkUpsert(0, records(keys, values), 2, 2).getStatus());
+
+            for (int i = 0; i < keys.length; i++) {
+                final Response response = get(1, keys[i], 1, 1);
+                assertEquals(200, response.getStatus());
+                assertArrayEquals(values[i], response.getBody());
+            }
+            assertTrue(metrics(0).contains("kvstorage_bulk_records_total 3\n"));
+        });
+    }
+
+    @Test
+    void unreachableRF() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            stop(1, storage1);
+            final String[] keys = {randomId(), randomId()};
+            final byte[][] values = {randomValue(), randomValue()};
+
+            assertEquals(504, bulkUpsert(0, records(keys, values), 2, 2).getStatus());
+
+            assertTrue(metrics(0).contains("kvstorage_bulk_records_total 0\n"));
+        });
+    }
+
+    @Test
+    void malformedRecords() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            final byte[] truncated = Arrays.copyOf(records(new String[] {randomId()},
+                    new byte[][] {randomValue()}), 10);
+
+            assertEquals(400, bulkUpsert(0, truncated, 2, 2).getStatus());
+        });
+    }
+}
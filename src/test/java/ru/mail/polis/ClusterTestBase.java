@@ -22,6 +22,10 @@ import one.nio.http.Response;
 import one.nio.net.ConnectionString;
 import org.jetbrains.annotations.NotNull;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
@@ -110,4 +114,60 @@ abstract class ClusterTestBase extends TestBase {
             final int from) throws Exception {
         return client(node).put(path(key, ack, from), data);
     }
+
+    Response bulkUpsert(
+            final int node,
+            @NotNull final byte[] records,
+            final int ack,
+            final int from) throws Exception {
+        return client(node).put("/v0/bulk?replicas=" + ack + "/" + from, records);
+    }
+
+    Response batchGet(
+            final int node,
+            @NotNull final String[] keys,
+            final int ack,
+            final int from) throws Exception {
+        return client(node).post("/v0/batch?replicas=" + ack + "/" + from, records(keys, null));
+    }
+
+    Response rebalance(
+            final int node,
+            @NotNull final String members,
+            final int replicas) throws Exception {
+        return client(node).put("/v0/topology?replicas=" + replicas,
+                members.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @NotNull
+    String topology(final int node) throws Exception {
+        return new String(client(node).get("/v0/topology").getBody(), StandardCharsets.UTF_8);
+    }
+
+    @NotNull
+    String metrics(final int node) throws Exception {
+        return new String(client(node).get("/v0/metrics").getBody(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @param values values following the keys, {@code null} for the keys only
+     * @return body of a batch or bulk request
+     */
+    @NotNull
+    static byte[] records(
+            @NotNull final String[] keys,
+            final byte[][] values) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        for (int i = 0; i < keys.length; i++) {
+            final byte[] key = keys[i].getBytes(StandardCharsets.UTF_8);
+            out.writeInt(key.length);
+            out.write(key);
+            if (values != null) {
+                out.writeInt(values[i].length);
+                out.write(values[i]);
+            }
+        }
+        return bytes.toByteArray();
+    }
 }
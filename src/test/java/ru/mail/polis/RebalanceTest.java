@@ -0,0 +1,133 @@
+package ru.mail.polis;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests of rebalancing a {@link KVService} cluster, which keeps every entity on two of its
+ * members, when a member joins it and when a member leaves it
+ */
+class RebalanceTest extends ClusterTestBase {
+    private static final Duration TIMEOUT = Duration.ofMinutes(1);
+    private static final int NODES_COUNT = 4;
+    private final File[] data = new File[NODES_COUNT];
+    private final KVDao[] daos = new KVDao[NODES_COUNT];
+    private final KVService[] storages = new KVService[NODES_COUNT];
+    private List<String> members;
+
+    @BeforeEach
+    void beforeEach() throws Exception {
+        members = new ArrayList<>();
+        for (int i = 0; i < NODES_COUNT; i++) {
+            members.add(endpoint(randomPort()));
+        }
+        endpoints = new LinkedHashSet<>(members);
+        for (int i = 0; i < NODES_COUNT; i++) {
+            // the joining member knows the next members already
+            final List<String> topology = i < NODES_COUNT - 1
+                    ? members.subList(0, NODES_COUNT - 1)
+                    : members;
+            data[i] = Files.createTempDirectory();
+            daos[i] = KVDaoFactory.create(data[i]);
+            storages[i] = KVServiceFactory.create(
+                    portOf(members.get(i)), daos[i], new LinkedHashSet<>(topology));
+            start(i, storages[i]);
+        }
+    }
+
+    @AfterEach
+    void afterEach() throws IOException {
+        for (int i = 0; i < NODES_COUNT; i++) {
+            if (storages[i] != null) {
+                stop(i, storages[i]);
+            }
+            daos[i].close();
+            Files.recursiveDelete(data[i]);
+        }
+        endpoints = Collections.emptySet();
+    }
+
+    @Test
+    void joinAndLeave() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            final String[] keys = new String[32];
+            final byte[][] values = new byte[keys.length][];
+            for (int i = 0; i < keys.length; i++) {
+                keys[i] = randomId();
+                values[i] = randomValue();
+            }
+            assertEquals(201, bulkUpsert(0, records(keys, values), 2, 2).getStatus());
+
+            // the last member joins
+            assertEquals(202, rebalance(0, String.join("\n", members), 2).getStatus());
+            awaitMembers(members, 0, NODES_COUNT);
+            for (int node = 0; node < NODES_COUNT; node++) {
+                awaitFound(node, keys, values);
+            }
+
+            // the first member leaves
+            final List<String> remaining = members.subList(1, NODES_COUNT);
+            assertEquals(202, rebalance(1, String.join("\n", remaining), 2).getStatus());
+            awaitMembers(remaining, 1, NODES_COUNT);
+            stop(0, storages[0]);
+            storages[0] = null;
+            for (int node = 1; node < NODES_COUNT; node++) {
+                awaitFound(node, keys, values);
+            }
+        });
+    }
+
+    private void awaitMembers(final List<String> expected, final int fromNode, final int toNode)
+            throws Exception {
+        final String membersLine = "members: " + String.join(" ", expected) + "\n";
+        for (int node = fromNode; node < toNode; node++) {
+            while (!topology(node).startsWith(membersLine)) {
+                Thread.sleep(100);
+            }
+        }
+    }
+
+    /**
+     * Waits for both owners of every key to answer, which they may fail to do for a while
+     * right after the rebalancing, while they are busy, but never do if they miss the key
+     */
+    private void awaitFound(final int node, final String[] keys, final byte[][] values)
+            throws Exception {
+        final byte[] expected = found(values);
+        while (!Arrays.equals(expected, batchGet(node, keys, 2, 2).getBody())) {
+            Thread.sleep(100);
+        }
+    }
+
+    /**
+     * @return batch response body with every value found
+     */
+    private static byte[] found(final byte[][] values) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        for (byte[] value : values) {
+            out.writeShort(200);
+            out.writeInt(value.length);
+            out.write(value);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static int portOf(final String endpoint) {
+        return Integer.parseInt(endpoint.substring(endpoint.lastIndexOf(':') + 1));
+    }
+}
@@ -28,6 +28,7 @@ import java.io.File;
 import java.io.IOException;
 import java.time.Duration;
 import java.util.Collections;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
 
 import static org.junit.jupiter.api.Assertions.*;
@@ -164,6 +165,32 @@ class SingleNodeTest extends TestBase {
         });
     }
 
+    @Test
+    void insertLarge() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            final String key1 = randomId();
+            final byte[] value1 = new byte[64 * 1024];
+            ThreadLocalRandom.current().nextBytes(value1);
+            final String key2 = randomId();
+            final byte[] value2 = randomValue();
+
+            // Insert
+            assertEquals(201, upsert(key1, value1).getStatus());
+            assertEquals(201, upsert(key2, value2).getStatus());
+
+            // Check, twice over the same connection, that the large body is framed right
+            for (int i = 0; i < 2; i++) {
+                final Response response1 = get(key1);
+                assertEquals(200, response1.getStatus());
+                assertArrayEquals(value1, response1.getBody());
+
+                final Response response2 = get(key2);
+                assertEquals(200, response2.getStatus());
+                assertArrayEquals(value2, response2.getBody());
+            }
+        });
+    }
+
     @Test
     void lifecycle2keys() {
         assertTimeoutPreemptively(TIMEOUT, () -> {